@@ -0,0 +1,125 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The AhoCorasick class is a multi-pattern string matcher.
+ * All patterns are compiled into one automaton, so a text is scanned once whatever the number of patterns:
+ * the cost is proportional to the text length plus the number of matches, not to the number of patterns.
+ * Matching is case-insensitive.
+ */
+public class AhoCorasick {
+	private final List<String> patterns;
+	private final ArrayList<HashMap<Character, Integer>> next = new ArrayList<>(); // node : (char : child node)
+	private final ArrayList<Integer> output = new ArrayList<>();                     // node : pattern ending here, or -1
+	private int[] fail;                                                             // node : longest proper suffix node
+	private int[] dictionary;                                                       // node : nearest suffix node with an output, or -1
+
+	/**
+	 * Builds the automaton for the given patterns. Pattern IDs are their indexes in the list.
+	 *
+	 * @param patterns the patterns to match, compared case-insensitively
+	 */
+	public AhoCorasick(List<String> patterns) {
+		this.patterns = patterns;
+		newNode();
+		for (int id = 0; id < patterns.size(); id++) {
+			int node = 0;
+			for (char c : patterns.get(id).toLowerCase().toCharArray()) {
+				Integer child = next.get(node).get(c);
+				if (child == null) {
+					child = newNode();
+					next.get(node).put(c, child);
+				}
+				node = child;
+			}
+			output.set(node, id);
+		}
+		buildLinks();
+	}
+
+	private int newNode() {
+		next.add(new HashMap<>());
+		output.add(-1);
+		return next.size() - 1;
+	}
+
+	/**
+	 * Computes failure and dictionary links breadth-first, so a node's suffix links are ready before its children's.
+	 */
+	private void buildLinks() {
+		fail = new int[next.size()];
+		dictionary = new int[next.size()];
+		dictionary[0] = -1;
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		for (int child : next.get(0).values()) {
+			fail[child] = 0;
+			dictionary[child] = -1;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			int node = queue.poll();
+			for (var edge : next.get(node).entrySet()) {
+				int child = edge.getValue();
+				int suffix = fail[node];
+				while (suffix != 0 && !next.get(suffix).containsKey(edge.getKey())) {
+					suffix = fail[suffix];
+				}
+				Integer target = next.get(suffix).get(edge.getKey());
+				fail[child] = target != null && target != child ? target : 0;
+				dictionary[child] = output.get(fail[child]) >= 0 ? fail[child] : dictionary[fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Finds every pattern that occurs anywhere in the text.
+	 *
+	 * @param text the text to scan
+	 * @return the IDs of the matching patterns
+	 */
+	public BitSet search(String text) {
+		BitSet matches = new BitSet(patterns.size());
+		int node = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			while (node != 0 && !next.get(node).containsKey(c)) {
+				node = fail[node];
+			}
+			node = next.get(node).getOrDefault(c, 0);
+			for (int match = output.get(node) >= 0 ? node : dictionary[node]; match > 0; match = dictionary[match]) {
+				matches.set(output.get(match));
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Finds every pattern that is a prefix of the text, following trie edges only.
+	 *
+	 * @param text the text to scan
+	 * @return the IDs of the matching patterns
+	 */
+	public BitSet searchPrefixes(String text) {
+		BitSet matches = new BitSet(patterns.size());
+		int node = 0;
+		for (int i = 0; i < text.length(); i++) {
+			Integer child = next.get(node).get(Character.toLowerCase(text.charAt(i)));
+			if (child == null) {
+				break;
+			}
+			node = child;
+			if (output.get(node) >= 0) {
+				matches.set(output.get(node));
+			}
+		}
+		return matches;
+	}
+
+	public String pattern(int id) { return patterns.get(id); }
+
+	public int size() { return patterns.size(); }
+}
@@ -1,43 +1,33 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.TimeoutException;
 
 /**
- * The Client class represents the client-side application.
- * It connects to the server, sends commands based on user input,
- * handles server responses, and manages command execution during server inspect mode.
+ * The Client class represents the interactive client-side application.
+ * It is a console shell on top of {@link PubSubClient}: it reads commands from the user, prints server output,
+ * and manages command execution during server inspect mode. All networking is done by the PubSubClient.
  */
-public class Client {
-	private Socket socket;
-	private BufferedReader in;
-	private PrintWriter out;
-	private static Boolean isPublisher = null;
-	private static String topic = null;
+public class Client implements PubSubClient.Listener {
+	private final PubSubClient client;
 	private volatile boolean running = true;
-	public static boolean isServerInspecting = false;
-	private static final ArrayList<String> backlog = new ArrayList<>();
-	private static final ArrayList<String> publisherOnlyCommands = new ArrayList<>(Arrays.asList("send", "list"));
-	private static final ArrayList<String> disabledWhenInspecting = new ArrayList<>(Arrays.asList("send", "list", "listall"));
+	private final ArrayList<String> backlog = new ArrayList<>(); // Guarded by itself: filled by the console, drained by the reader thread
+	private static final ArrayList<String> publisherOnlyCommands = new ArrayList<>(Arrays.asList("send", "sendttl", "sendkey", "list"));
+	private static final ArrayList<String> disabledWhenInspecting = new ArrayList<>(Arrays.asList("send", "sendttl", "sendkey", "list", "listall"));
+	private static final long REQUEST_TIMEOUT_MILLIS = 10_000;                         // How long the "request" command waits for a reply
 	private final Scanner scanner = new Scanner(System.in);
+	private volatile Metrics.Latency endToEnd = new Metrics.Latency();                // Traced deliveries from other publishers, reset by 'trace on'
 
 	/**
-	 * Constructs a Client with the specified socket connection.
+	 * Constructs a Client on top of a connected PubSubClient.
 	 *
-	 * @param socket the socket connection to the server
+	 * @param client the connected client API
 	 */
-	public Client(Socket socket) {
-		try {
-			this.socket = socket;
-			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			this.out = new PrintWriter(socket.getOutputStream(), true);
-		} catch (IOException e) {
-			closeEverything();
-		}
+	public Client(PubSubClient client) {
+		this.client = client;
+		client.addListener(this);
 	}
 
 	/**
@@ -45,11 +35,11 @@ public class Client {
 	 * Handles user input and sends commands to the server.
 	 */
 	private void start() {
-		System.out.println("--- CONNECTED TO SERVER ON PORT " + socket.getPort() + " ---\n"
+		String endpoint = client.getPort() == -1 ? "UNIX SOCKET " + client.getAddress() : "PORT " + client.getPort();
+		System.out.println("--- CONNECTED TO SERVER ON " + endpoint + " ---\n"
 		                   + "> Enter 'help' for a list of available commands.\n");
-		receiveMessage(); // Start the receiveMessage thread
 
-		// Use the main thread for input handling
+		// Use the main thread for input handling, server output arrives on the PubSubClient reader thread
 		try {
 			while (running) {
 				processCommand(scanner.nextLine());
@@ -60,30 +50,6 @@ public class Client {
 		}
 	}
 
-	/**
-	 * Starts a new thread to listen for messages from the server.
-	 * Handles server responses and updates the client's state accordingly.
-	 */
-	private void receiveMessage() {
-		new Thread(() -> {
-			while (running) {
-				try {
-					String messageFromServer = in.readLine();
-					if (messageFromServer == null) {
-						closeEverything();
-					}
-					handleMessageFromServer(messageFromServer);
-				} catch (IOException e) {
-					if (!running) {
-						break;
-					}
-					System.out.println("> Connection lost: " + e.getMessage());
-					closeEverything();
-				}
-			}
-		}).start();
-	}
-
 	/**
 	 * Processes the user's input command.
 	 * Sends commands to the server or handles them locally as needed.
@@ -99,31 +65,37 @@ public class Client {
 		String command = tokens[0].toLowerCase();
 
 		// If the server is inspecting, verify & queue the command for later execution
-		if (isServerInspecting && disabledWhenInspecting.contains(command)) {
-			if (!isPublisher && publisherOnlyCommands.contains(command)) {
+		if (client.isServerInspecting() && disabledWhenInspecting.contains(command)) {
+			if (!client.isPublisher() && publisherOnlyCommands.contains(command)) {
 				System.out.println("> You cannot use the command '" + command + "' as a subscriber.\n");
 			} else {
 				System.out.println(command.equals("listall")
 				                       ? "> Command '" + inputLine + "' will execute last (to avoid inconsistencies) when Inspect mode is ended.\n"
 				                       : "> Command '" + inputLine + "' has been queued and will execute when Inspect mode is ended.\n");
-				backlog.add(inputLine);
+				synchronized (backlog) { backlog.add(inputLine); }
 			}
 			return;
 		}
 
-		// Commands that use out.println() send a request to the client handler to fulfill the command
+		// Commands that use client.sendCommand() send a request to the client handler to fulfill the command
 		// The rest of the commands are handled entirely or partially locally
 		switch (command) {
 		case "help" -> showHelp();
-		case "show" -> out.println("show");
-		case "send" -> handleSendCommand(tokens);
-		case "list" -> out.println("list");
-		case "listall" -> out.println("listall");
-		case "quit" -> {
-			out.println("quit");
-			closeEverything();
-		}
+		case "show" -> client.sendCommand("show");
+		case "send", "sendttl", "sendkey" -> handleSendCommand(tokens);
+		case "list" -> client.sendCommand("list");
+		case "listall" -> client.sendCommand(inputLine.trim());
+		case "quit" -> closeEverything();
 		case "publish", "subscribe" -> handleRegistration(tokens);
+		case "filter" -> handleFilterCommand(tokens);
+		case "search" -> client.sendCommand(inputLine.trim());
+		case "durable" -> handleDurableCommand(tokens);
+		case "group" -> handleGroupCommand(tokens);
+		case "unsubscribe" -> client.sendCommand(inputLine.trim());
+		case "trace" -> handleTraceCommand(tokens);
+		case "request" -> handleRequestCommand(tokens);
+		case "batching" -> System.out.println("> Send batching: " + client.describeBatching() + "\n");
+		case "reply" -> handleReplyCommand(tokens);
 		default -> System.out.println("> Unknown command. Enter 'help' to see the list of available commands.\n");
 		}
 	}
@@ -133,19 +105,31 @@ public class Client {
 	 * Shows different commands based on the client's role and server inspect mode.
 	 */
 	private void showHelp() {
+		boolean isServerInspecting = client.isServerInspecting();
 		System.out.println("--- HELP: AVAILABLE COMMANDS ---");
-		if (isPublisher == null) {
+		if (client.isPublisher() == null) {
 			System.out.println("> [publish | subscribe] <topic>: Register as publisher (read-write) or subscriber (read-only) for <topic>");
+			System.out.println("> durable <name> <topic>: Subscribe through a durable subscription, which keeps your place while you are away");
+			System.out.println("> group <name> <topic>: Subscribe as a member of a shared group, which splits the topic's messages between its members");
 		} else {
-			if (isPublisher) { // Only publishers can use these commands
+			if (client.isPublisher()) { // Only publishers can use these commands
 				System.out.println((isServerInspecting ? "* " : "") + "> send <message>: Send a message to the server\n" +
+				                   (isServerInspecting ? "* " : "") + "> sendttl <ttl> <message>: Send a message that expires after <ttl> (e.g. 500ms, 30s, 5m, 2h)\n" +
+				                   (isServerInspecting ? "* " : "") + "> sendkey <key> <message>: Send a message for <key> (same partition for a key; replaces its previous value on conflated topics)\n" +
 				                   (isServerInspecting ? "* " : "") + "> list: List the messages you have sent in the topic");
 			}
-			// Only registered clients (both publishers & subscribers) can use this command
-			System.out.println((isServerInspecting ? "* " : "") + "> listall: List all messages in the topic");
+			// Only registered clients (both publishers & subscribers) can use these commands
+			System.out.println((isServerInspecting ? "* " : "") + "> listall [since <time> [until <time>]]: List all messages in the topic, or those in a time window");
+			System.out.println((isServerInspecting ? "  " : "") + "> search <terms...> [page <n>]: List the messages containing all the terms, most recent first");
+			System.out.println((isServerInspecting ? "  " : "") + "> filter [<keyword | prefix | regex | users> <value>... | off]: Only receive matching messages");
 		}
 		// All clients (registered & unregistered) can use these commands
 		System.out.println((isServerInspecting ? "  " : "") + "> show: Show available topics");
+		System.out.println((isServerInspecting ? "  " : "") + "> unsubscribe <name>: Delete a durable subscription");
+		System.out.println((isServerInspecting ? "  " : "") + "> trace [on | off]: Stamp your messages with their send time, or show the end-to-end latency of stamped messages received");
+		System.out.println((isServerInspecting ? "  " : "") + "> request <topic> <message>: Ask one subscriber of <topic> and wait for its reply");
+		System.out.println((isServerInspecting ? "  " : "") + "> reply <replyTo> <message>: Answer a request you received");
+		System.out.println((isServerInspecting ? "  " : "") + "> batching: Show how your outgoing commands are coalesced into writes");
 		System.out.println((isServerInspecting ? "  " : "") + "> quit: Disconnect from the server\n");
 		if (isServerInspecting) {
 			System.out.println("* Commands marked with an asterisk(*) are disabled during Inspect mode.\n"
@@ -154,26 +138,155 @@ public class Client {
 	}
 
 	/**
-	 * "send": Sends a message to the server.
+	 * "send" | "sendttl" | "sendkey": Sends a message to the server, optionally with a time to live or a key.
 	 * Only available to publishers.
 	 *
 	 * @param tokens the user's input command tokens
 	 */
 	private void handleSendCommand(String[] tokens) {
+		Boolean isPublisher = client.isPublisher();
 		if (isPublisher == null || !isPublisher) {
 			System.out.println(isPublisher == null ? "> You need to register as a publisher first.\n"
 			                                       : "> You are registered as a subscriber. You cannot send messages.\n");
 			return;
 		}
 
-		if (tokens.length < 2) {
-			System.out.println("> Usage: send <message>\n");
+		boolean hasTtl = tokens[0].equalsIgnoreCase("sendttl");
+		boolean hasKey = tokens[0].equalsIgnoreCase("sendkey");
+		if (tokens.length < (hasTtl || hasKey ? 3 : 2)) {
+			System.out.println(hasTtl ? "> Usage: sendttl <ttl> <message>\n" : hasKey ? "> Usage: sendkey <key> <message>\n" : "> Usage: send <message>\n");
 			return;
 		}
 
+		long ttlMillis = 0;
+		if (hasTtl) {
+			try {
+				ttlMillis = Math.max(1, TimeIndex.parseDuration(tokens[1])); // 0 would mean no TTL
+			} catch (IllegalArgumentException e) {
+				System.out.println("> " + e.getMessage() + "\n");
+				return;
+			}
+		}
+
 		// Combine tokens to form the message in case of multiple words
-		String message = String.join(" ", Arrays.copyOfRange(tokens, 1, tokens.length));
-		out.println(message);
+		String message = String.join(" ", Arrays.copyOfRange(tokens, hasTtl || hasKey ? 2 : 1, tokens.length));
+		// The server echoes the message back, which is printed like any other output
+		if (hasKey) {
+			client.publishKeyed(tokens[1], message).exceptionally(e -> {
+				System.out.println("> " + e.getMessage() + "\n");
+				return null;
+			});
+		} else {
+			client.publish(message, ttlMillis);
+		}
+	}
+
+	/**
+	 * "trace": Turns stamping of published messages on or off, or shows the end-to-end latency of the stamped messages
+	 * received from other publishers. Latencies across hosts are only meaningful when their clocks are synchronized.
+	 *
+	 * @param tokens the user's input command tokens
+	 */
+	private void handleTraceCommand(String[] tokens) {
+		if (tokens.length == 1) {
+			System.out.println("> End-to-end latency: " + endToEnd + "\n");
+			return;
+		}
+
+		switch (tokens[1].toLowerCase()) {
+		case "on" -> {
+			endToEnd = new Metrics.Latency();
+			client.setTracing(true);
+			System.out.println("> Your messages are now stamped with their send time.\n");
+		}
+		case "off" -> {
+			client.setTracing(false);
+			System.out.println("> Your messages are no longer stamped.\n");
+		}
+		default -> System.out.println("> Usage: trace [on | off]\n");
+		}
+	}
+
+	/**
+	 * "request": Sends a request to one subscriber of a topic and prints its reply, or why there is none, when it comes.
+	 *
+	 * @param tokens the user's input command tokens
+	 */
+	private void handleRequestCommand(String[] tokens) {
+		if (tokens.length < 3) {
+			System.out.println("> Usage: request <topic> <message>\n");
+			return;
+		}
+
+		String message = String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length));
+		client.request(tokens[1], message, REQUEST_TIMEOUT_MILLIS).whenComplete((reply, e) -> {
+			if (e == null) {
+				System.out.println(reply + "\n");
+			} else {
+				System.out.println("> Request to '" + tokens[1] + "' failed: "
+				                   + (e instanceof TimeoutException ? "no reply from the server" : e.getMessage()) + "\n");
+			}
+		});
+	}
+
+	/**
+	 * "reply": Answers a request received from another client.
+	 *
+	 * @param tokens the user's input command tokens
+	 */
+	private void handleReplyCommand(String[] tokens) {
+		if (tokens.length < 3) {
+			System.out.println("> Usage: reply <replyTo> <message>\n");
+			return;
+		}
+		// The server answers with an error if the request has timed out or was never sent to this client
+		client.sendCommand("reply " + tokens[1] + " " + String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length)));
+	}
+
+	/**
+	 * "filter": Shows, sets or removes the server-side content filter.
+	 *
+	 * @param tokens the user's input command tokens
+	 */
+	private void handleFilterCommand(String[] tokens) {
+		if (tokens.length == 1) {
+			client.sendCommand("filter");
+		} else if (tokens.length == 2 && tokens[1].equalsIgnoreCase("off")) {
+			client.setFilter(null);
+		} else {
+			client.setFilter(String.join(" ", Arrays.copyOfRange(tokens, 1, tokens.length)));
+		}
+	}
+
+	/**
+	 * "durable": Subscribes through a named durable subscription.
+	 * Deliveries are acknowledged by the PubSubClient, so the server resumes after the last printed message.
+	 *
+	 * @param tokens the command tokens containing the subscription name and the topic
+	 */
+	private void handleDurableCommand(String[] tokens) {
+		if (tokens.length < 3) {
+			System.out.println("> Usage: durable <name> <topic_name>\n");
+			return;
+		}
+		if (client.isPublisher() != null) {
+			System.out.println("> You are currently a '" + (client.isPublisher() ? "publisher" : "subscriber") + "' for topic '" + client.getTopic()
+			                   + "'. Switching to durable subscription '" + tokens[1] + "'.");
+		}
+		client.subscribeDurable(tokens[1], String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length)));
+	}
+
+	/**
+	 * "group": Subscribes as a member of a shared subscription group.
+	 *
+	 * @param tokens the command tokens containing the group name and the topic
+	 */
+	private void handleGroupCommand(String[] tokens) {
+		if (tokens.length < 3) {
+			System.out.println("> Usage: group <name> <topic_name>\n");
+			return;
+		}
+		client.joinGroup(tokens[1], String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length)));
 	}
 
 	/**
@@ -188,6 +301,8 @@ public class Client {
 			return;
 		}
 
+		Boolean isPublisher = client.isPublisher();
+		String topic = client.getTopic();
 		if (isPublisher != null) { // Allow clients to change their role and topic
 			String newRole = tokens[0].toLowerCase();
 			String newTopic = String.join("_", Arrays.copyOfRange(tokens, 1, tokens.length));
@@ -212,35 +327,77 @@ public class Client {
 			}
 		}
 
-		// Update the client's role and topic client-side
-		String role = tokens[0].toLowerCase();
-		isPublisher = role.equals("publish");
-		topic = String.join("_", Arrays.copyOfRange(tokens, 1, tokens.length)); // "example topic" -> "example_topic"
-
-		// Send registration command to the server to update the client's role and topic server-side
-		// token 0 is the role, token 1 is the topic --> "publish football"
-		out.println(String.join(" ", tokens));
+		// The role and topic are updated client-side immediately, then sent to the server --> "publish football"
+		String newTopic = String.join(" ", Arrays.copyOfRange(tokens, 1, tokens.length));
+		if (tokens[0].equalsIgnoreCase("publish")) {
+			client.registerPublisher(newTopic);
+		} else {
+			client.registerSubscriber(newTopic);
+		}
 	}
 
 	/**
-	 * Handles messages received from the server.
-	 * Updates the client's inspect mode status and executes backlogged commands if necessary.
+	 * Prints regular server output.
 	 *
-	 * @param messageFromServer the message received from the server
+	 * @param line the line received from the server
 	 */
-	private void handleMessageFromServer(String messageFromServer) {
-		String[] tokens = messageFromServer.split("\\s+");
+	@Override
+	public void onLine(String line) { System.out.println(line); }
 
-		if (tokens[0].equals("IS_SERVER_INSPECTING")) {
-			isServerInspecting = Boolean.parseBoolean(tokens[1]);
-			if (!isServerInspecting) {
-				executeBacklogCommands();
-			}
-			return;
+	@Override
+	public void onGap(String topic, long firstMissed, long lastMissed) {
+		System.out.println(firstMissed == lastMissed ? "> (GAP) Message " + topic + "@" + firstMissed + " was not received.\n"
+		                                             : "> (GAP) Messages " + topic + "@" + firstMissed + " to " + lastMissed + " were not received.\n");
+	}
+
+	@Override
+	public void onError(String line, RuntimeException e) {
+		System.out.println("> Could not handle a line from the server (" + e + "): " + line + "\n");
+	}
+
+	@Override
+	public void onRequest(PubSubClient.Request request) {
+		System.out.println(request + "\n> Answer with: reply " + request.getReplyTo() + " <message>\n");
+	}
+
+	@Override
+	public void onDelivery(PubSubClient.Delivery delivery) {
+		if (!delivery.isOwn() && delivery.getLatencyMicros() != -1) {
+			endToEnd.record(delivery.getLatencyMicros() * 1_000);
+		}
+	}
+
+	/**
+	 * Executes backlogged commands once the server ends inspect mode.
+	 *
+	 * @param isInspecting whether the server is now inspecting the topic
+	 */
+	@Override
+	public void onInspectChange(boolean isInspecting) {
+		if (!isInspecting) {
+			executeBacklogCommands();
 		}
+	}
 
-		// If it's not an inspect mode start/end, the message is meant for the client
-		System.out.println(messageFromServer);
+	@Override
+	public void onThrottle(long millis, String scope) {
+		System.out.println("> (THROTTLED) Server " + scope + " rate limit reached, your messages are being delayed (~" + millis + "ms).\n");
+	}
+
+	@Override
+	public void onReconnecting(int attempt, long delayMillis, Exception cause) {
+		System.out.println("> Connection lost (" + cause.getMessage() + "). Reconnecting in " + delayMillis + "ms (attempt " + attempt + ")...");
+	}
+
+	@Override
+	public void onReconnected() { System.out.println("> Reconnected to the server.\n"); }
+
+	@Override
+	public void onDisconnect(Exception cause) {
+		if (cause != null) {
+			System.out.println("> Connection lost: " + cause.getMessage());
+		}
+		closeEverything();
 	}
 
 	/**
@@ -248,11 +405,16 @@ public class Client {
 	 * Commands are executed in order, except for 'list' and 'listall' commands, executed last.
 	 */
 	private void executeBacklogCommands() {
-		if (backlog.isEmpty()) {
-			return;
+		ArrayList<String> commands;
+		synchronized (backlog) {
+			if (backlog.isEmpty()) {
+				return;
+			}
+			commands = new ArrayList<>(backlog);
+			backlog.clear();
 		}
 
-		backlog.sort((a, b) -> { // Sort "list" and "listall" commands to be executed last to avoid interleaving
+		commands.sort((a, b) -> { // Sort "list" and "listall" commands to be executed last to avoid interleaving
 			if (a.startsWith("list") && !b.startsWith("list")) {
 				return 1;
 			}
@@ -264,56 +426,48 @@ public class Client {
 
 		System.out.println("--- COMMANDS TO BE EXECUTED ---");
 		int i = 1;
-		for (String cmd : backlog) {
+		for (String cmd : commands) {
 			System.out.println("> " + (i++) + ": " + cmd);
 		}
 		System.out.println();
 
-		for (String cmd : backlog) {
+		for (String cmd : commands) {
 			processCommand(cmd);
 		}
-		backlog.clear();
 	}
 
 	/**
-	 * Closes the socket and input/output streams, and exits the application.
+	 * Closes the connection and exits the application.
 	 */
-	private void closeEverything() {
-		running = false;
-		try {
-			if (socket != null && !socket.isClosed()) {
-				socket.close();
-			}
-			if (in != null) {
-				in.close();
-			}
-			if (out != null) {
-				out.close();
-			}
-			backlog.clear(); // In case the client is closed before inspect mode ends (e.g. kicked)
-			scanner.close();
-			System.out.println("--- CLIENT SHUTDOWN ---");
-			System.exit(0);
-		} catch (IOException e) {
-			System.out.println("> Error closing resources: " + e.getMessage());
+	private synchronized void closeEverything() {
+		if (!running) {
+			return;
 		}
+		running = false;
+		client.close();
+		synchronized (backlog) { backlog.clear(); } // In case the client is closed before inspect mode ends (e.g. kicked)
+		scanner.close();
+		System.out.println("--- CLIENT SHUTDOWN ---");
+		System.exit(0);
 	}
 
 	/**
 	 * The main method to start the client application.
-	 * Expects a hostname and port number as arguments.
+	 * Expects a hostname and port number as arguments, or "unix:<path>" to connect through the server's Unix domain socket.
 	 *
 	 * @param args command-line arguments, expects two arguments: the hostname and port number
 	 */
 	public static void main(String[] args) {
-		if (args.length < 2) {
-			System.err.println("> Usage: java Client <hostname> <port>");
+		boolean unix = args.length == 1 && args[0].startsWith("unix:");
+		if (args.length < 2 && !unix) {
+			System.err.println("> Usage: java Client <hostname> <port> | java Client unix:<socketPath>");
 			return;
 		}
 
 		try {
-			Socket socket = new Socket(args[0], Integer.parseInt(args[1]));
-			Client client = new Client(socket);
+			PubSubClient connection = unix ? PubSubClient.connect(Path.of(args[0].substring("unix:".length())))
+			                               : PubSubClient.connect(args[0], Integer.parseInt(args[1]));
+			Client client = new Client(connection);
 			client.start();
 		} catch (IOException e) {
 			System.out.println("> Unable to connect to the server.");
@@ -1,15 +1,26 @@
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * The ClientHandler class manages communication with a connected client.
@@ -18,16 +29,33 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ClientHandler implements Runnable {
 	public static ConcurrentHashMap<Integer, ClientHandler> clientHandlers = new ConcurrentHashMap<>();         // userID : ClientHandler
 	public static ConcurrentHashMap<String, ConcurrentLinkedQueue<Message>> topics = new ConcurrentHashMap<>(); // topic : all-messages-of-topic
-	public final HashMap<String, ArrayList<Message>> publisherMessages = new HashMap<>();                       // topic : messages-sent-by-client
+	private static final ConcurrentHashMap<String, Set<ClientHandler>> clientsByTopic = new ConcurrentHashMap<>(); // topic : clients registered on it
+	public final ConcurrentHashMap<String, ArrayList<Message>> publisherMessages = new ConcurrentHashMap<>();   // topic : messages-sent-by-client
+	private static final HashMap<String, ArrayList<Message>> expiring = new HashMap<>();                        // topic : expired-messages-awaiting-removal
 	private final Server server;
-	private final Socket socket;
+	private final Closeable socket;                                          // A TCP Socket or a UnixSocket
+	private final String transport;                                          // "tcp" or "unix"
 	private BufferedReader in;
-	private PrintWriter out;
+	private Outbound out;                                                    // Two lanes: control frames overtake queued data frames
 	private Boolean isPublisher = null;
-	private String topic = null;
-	private boolean clientRunning = true;                                    // Originally was volatile, however realized it is unnecessary
+	private volatile String topic = null;                                    // Volatile: read by other clients' threads when broadcasting
+	private volatile boolean clientRunning = true;                           // Volatile again: the idle reaper reads it from the timer thread
 	private static final AtomicInteger clientCounter = new AtomicInteger(0); // Unique ID for each client
+	private static final long MAX_PERMIT_WAIT_NANOS = 1_000_000_000;         // Longest wait reserved for a rate limit permit at once
+	private static final String[] THROTTLE_SCOPES = { "connection", "topic", "global" }; // In the order the limits are checked
 	private final int userID;
+	private volatile long lastReadTime = System.currentTimeMillis();         // Any line from the client (commands, messages, PONG) counts
+	private TimerWheel.Timeout idleCheck;                                    // Pending idle check in the server's timer wheel
+	private final TokenBucket rateLimit = RateLimiter.newConnectionBucket(); // Per-connection publish limit
+	private boolean throttled = false;                                       // Whether the client has been told it is being throttled
+	private volatile long permitWaitUntil = 0;                               // Waiting for a rate limit permit until then, not idle
+	private volatile TopicFilterIndex.Filter filter = null;                  // Server-side content filter, null delivers everything
+	private volatile DurableSubscriptions.Subscription durable = null;       // Named subscription being consumed, null if none
+	private volatile SubscriptionGroups.Group group = null;                  // Shared group this subscriber belongs to, null if none
+	private final Object closing = new Object();                             // Closing paths race: the one leaving the group must get the unsent frames
+	private String countedTopic = null;                                      // Registration counted in TopicStats, guarded by closing
+	private long traceMicros = 0;                                            // Trace timestamp of the command being handled, 0 if none
+	private boolean countedAsPublisher;
 
 	/**
 	 * Constructs a ClientHandler for the given client socket and server.
@@ -35,9 +63,20 @@ public class ClientHandler implements Runnable {
 	 * @param socket the client's socket connection
 	 * @param server the server instance
 	 */
-	public ClientHandler(Socket socket, Server server) {
+	public ClientHandler(Socket socket, Server server) { this(socket, "tcp", server); }
+
+	/**
+	 * Constructs a ClientHandler for a client connected through the server's Unix domain socket.
+	 *
+	 * @param socket the client's connection
+	 * @param server the server instance
+	 */
+	public ClientHandler(UnixSocket socket, Server server) { this(socket, "unix", server); }
+
+	private ClientHandler(Closeable socket, String transport, Server server) {
 		this.server = server;
 		this.socket = socket;
+		this.transport = transport;
 		this.userID = clientCounter.getAndIncrement(); // Important: Assign unique ID to client instead of .size() to avoid clients getting same ID
 		clientHandlers.put(this.userID, this);         // Important: Add immediately so both registered and unregistered are handled
 	}
@@ -49,8 +88,12 @@ public class ClientHandler implements Runnable {
 	@Override
 	public void run() {
 		try {
-			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			this.out = new PrintWriter(socket.getOutputStream(), true);
+			InputStream input = socket instanceof UnixSocket unix ? unix.getInputStream() : ((Socket) socket).getInputStream();
+			OutputStream output = socket instanceof UnixSocket unix ? unix.getOutputStream() : ((Socket) socket).getOutputStream();
+			this.in = new BufferedReader(new InputStreamReader(input));
+			this.out = new Outbound(output, server::execute, () -> closeEverything(socket, in, out), userID);
+			out.printControl("HEARTBEAT " + server.getHeartbeatMillis() + " " + server.getIdleTimeoutMillis()); // Lets the client detect a dead server
+			scheduleIdleCheck(server.getHeartbeatMillis());
 
 			String messageFromClient;
 			while (clientRunning) { // Main loop for handling client messages
@@ -59,7 +102,16 @@ public class ClientHandler implements Runnable {
 					if (messageFromClient == null) {
 						break; // Client disconnected
 					}
+					lastReadTime = System.currentTimeMillis();
+					Tracing.Command event = new Tracing.Command();
+					event.begin();
 					processCommand(messageFromClient);
+					if (event.shouldCommit()) {
+						event.userID = userID;
+						event.command = messageFromClient.trim().split("\\s+", 2)[0].toLowerCase();
+						event.topic = topic;
+						event.commit();
+					}
 				} catch (SocketTimeoutException e) {
 					if (!server.isRunning()) {
 						break;
@@ -70,9 +122,62 @@ public class ClientHandler implements Runnable {
 			}
 		} catch (IOException e) {
 			System.out.println("> IOException in ClientHandler run(): " + e.getMessage());
+		} finally {
+			closeEverything(socket, in, out); // Important: Also clean up clients that vanish without sending 'quit'
 		}
 	}
 
+	/**
+	 * Schedules the next idle check for this client in the server's timer wheel.
+	 *
+	 * @param delayMillis the delay before the check runs
+	 */
+	private void scheduleIdleCheck(long delayMillis) {
+		idleCheck = server.getTimerWheel().schedule(this::checkIdle, delayMillis);
+	}
+
+	/**
+	 * Idle check, run on the timer wheel thread.
+	 * Pings a client that has been silent for a heartbeat interval, and reaps it once the idle timeout expires.
+	 * Only one check is pending per client at any time; it reschedules itself for when the client could next be idle.
+	 * Reaping is handed to the server pool since closing waits briefly for pending frames to be written.
+	 */
+	private void checkIdle() {
+		if (!clientRunning) {
+			return;
+		}
+
+		long idle = System.currentTimeMillis() - Math.max(lastReadTime, permitWaitUntil);
+		long heartbeat = server.getHeartbeatMillis();
+		long timeout = server.getIdleTimeoutMillis();
+		if (idle >= timeout) {
+			server.execute(this::reap);
+		} else if (idle >= heartbeat) {
+			sendHeartbeat();
+			scheduleIdleCheck(Math.min(heartbeat, timeout - idle));
+		} else {
+			scheduleIdleCheck(heartbeat - idle);
+		}
+	}
+
+	private void sendHeartbeat() {
+		out.printControl("PING");
+		Metrics.heartbeatsSent.increment();
+	}
+
+	/**
+	 * Evicts a client that has not sent anything (not even a PONG) within the idle timeout.
+	 */
+	private void reap() {
+		if (!clientRunning) {
+			return;
+		}
+		clientRunning = false;
+		Metrics.reapedConnections.increment();
+		System.out.println("> Client " + userID + " idle for over " + server.getIdleTimeoutMillis() / 1000 + "s, connection reaped.");
+		closeEverything(socket, in, out);
+	}
+
 	/**
 	 * Processes a command or message received from the client.
 	 *
@@ -86,12 +191,104 @@ public class ClientHandler implements Runnable {
 		// Non-default commands are specific functions that the client requests from the server
 		// Default command is the client sending a message
 		switch (command) {
+		case "pong" -> {} // Heartbeat reply, lastReadTime already updated
+		case "ping" -> out.printControl("PONG");
 		case "show" -> sendTopicList();
-		case "listall" -> listAllTopicMessages();
+		case "listall" -> listAllTopicMessages(tokens);
 		case "list" -> listPublisherMessages();
 		case "quit" -> interruptThread();
 		case "publish", "subscribe" -> handleRegistration(tokens);
-		default -> broadcastMessage(message);
+		case "resume" -> handleResume(tokens);
+		case "trace" -> handleTraced(tokens, message);
+		case "durable" -> handleDurable(tokens);
+		case "ack" -> handleAck(tokens);
+		case "unsubscribe" -> handleUnsubscribe(tokens);
+		case "group" -> handleGroup(tokens);
+		case "filter" -> handleFilter(tokens);
+		case "search" -> searchTopicMessages(tokens);
+		case "send" -> { // Explicit form used by the clients, the body may itself look like a command
+			applyRateLimits();
+			broadcastMessage(message.trim().substring(4).trim(), 0);
+		}
+		case "sendttl" -> handleSendWithTtl(tokens, message);
+		case "sendkey" -> handleSendWithKey(tokens, message);
+		case "request" -> handleRequest(tokens, message);
+		case "reply" -> handleReply(tokens, message);
+		default -> {
+			applyRateLimits();
+			broadcastMessage(message, 0);
+		}
+		}
+	}
+
+	/**
+	 * Applies the connection, topic and global publish rate limits before a message is broadcast.
+	 * When a limit is exceeded the client is sent a "THROTTLE <millis> <scope>" frame and this thread sleeps
+	 * until the permit is available. Since this thread is the only reader of the socket, nothing more is read
+	 * from the client in the meantime and TCP flow control pushes back on the publisher.
+	 * No permit is reserved more than MAX_PERMIT_WAIT_NANOS ahead: past that, the permits already reserved for this
+	 * publish are given back and this thread waits before asking again, so publishers sharing a limit cannot pile up
+	 * unbounded waits. The client is not considered idle while it waits.
+	 */
+	private void applyRateLimits() {
+		TokenBucket topicLimit = topic == null ? null : RateLimiter.topicLimits.get(topic);
+		TokenBucket[] limits = { rateLimit, topicLimit, RateLimiter.global };
+		long[] waits = new long[limits.length];
+		boolean counted = false;
+		while (true) {
+			int refused = -1;
+			for (int i = 0; i < limits.length && refused == -1; i++) {
+				waits[i] = limits[i] == null ? 0 : limits[i].reserve(MAX_PERMIT_WAIT_NANOS);
+				if (waits[i] < 0) {
+					refused = i;
+				}
+			}
+			int limiting = refused;
+			if (refused != -1) {
+				for (int i = 0; i < refused; i++) { // Not used for this attempt
+					if (limits[i] != null) {
+						limits[i].release();
+					}
+				}
+			} else {
+				limiting = 0;
+				for (int i = 1; i < limits.length; i++) {
+					if (waits[i] > waits[limiting]) {
+						limiting = i;
+					}
+				}
+				if (waits[limiting] == 0) {
+					throttled = false;
+					return;
+				}
+			}
+
+			if (!counted) { // Counted once per delayed publish
+				switch (limiting) {
+				case 0 -> Metrics.throttledByConnection.increment();
+				case 1 -> Metrics.throttledByTopic.increment();
+				default -> Metrics.throttledByGlobal.increment();
+				}
+				counted = true;
+			}
+			long wait = Math.abs(waits[limiting]);
+			if (!throttled) { // One notice per throttling episode, not per message
+				out.printControl("THROTTLE " + Math.max(1, wait / 1_000_000) + " " + THROTTLE_SCOPES[limiting]);
+				throttled = true;
+			}
+
+			permitWaitUntil = System.currentTimeMillis() + wait / 1_000_000 + 1; // The server stops reading, the client is not idle
+			try {
+				Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				lastReadTime = System.currentTimeMillis();
+			}
+			if (refused == -1) {
+				return;
+			}
 		}
 	}
 
@@ -102,7 +299,14 @@ public class ClientHandler implements Runnable {
 		StringBuilder topicsList = new StringBuilder();
 		topicsList.append("--- SHOW: EXISTING TOPICS ---\n");
 		for (String topic : topics.keySet()) {
-			topicsList.append("> ").append(topic).append("\n");
+			if (PartitionedTopics.baseOf(topic) == null) {
+				topicsList.append("> ").append(topic).append("\n");
+			}
+		}
+		for (var partitioned : PartitionedTopics.all().entrySet()) {
+			topicsList.append("> ").append(partitioned.getKey()).append(" (").append(partitioned.getValue()).append(" partitions, '")
+			    .append(PartitionedTopics.partition(partitioned.getKey(), 0)).append("' to '")
+			    .append(PartitionedTopics.partition(partitioned.getKey(), partitioned.getValue() - 1)).append("')\n");
 		}
 		// Send the topics list to the client
 		out.println(topics.isEmpty() ? "> No topics available.\n" : topicsList);
@@ -118,41 +322,52 @@ public class ClientHandler implements Runnable {
 			return;
 		}
 
-		if (publisherMessages.get(topic).isEmpty()) {
+		ArrayList<Message> sent = new ArrayList<>();
+		synchronized (publisherMessages) {
+			for (String partition : PartitionedTopics.storageTopics(topic)) {
+				sent.addAll(publisherMessages.getOrDefault(partition, new ArrayList<>()));
+			}
+		}
+		if (sent.isEmpty()) {
 			out.println("> You have not sent any messages in '" + topic + "'.\n");
 			return;
 		}
 
 		// Important: Use StringBuilder to build the message and print it all at once, avoiding interleaving
 		StringBuilder messageOutput = new StringBuilder();
-		synchronized (publisherMessages) {
-			messageOutput.append("--- LIST: YOU SENT " + publisherMessages.get(topic).size() + " MESSAGES IN '" + topic + "' ---\n\n");
-			for (Message msg : publisherMessages.get(topic)) {
-				messageOutput.append(msg.toString()).append("\n");
-			}
-			messageOutput.append("--- LIST: END OF MESSAGES YOU SENT ---\n");
-			out.println(messageOutput);
+		messageOutput.append("--- LIST: YOU SENT " + sent.size() + " MESSAGES IN '" + topic + "' ---\n\n");
+		for (Message msg : PartitionedTopics.inPublishOrder(sent)) {
+			messageOutput.append(msg.toString()).append("\n");
 		}
+		messageOutput.append("--- LIST: END OF MESSAGES YOU SENT ---\n");
+		out.println(messageOutput);
 	}
 
 	/**
-	 * "listall": Lists all messages in the current topic.
+	 * "listall": Lists all messages in the current topic, or those published within a time window.
+	 * Usage: listall [since <time> [until <time>]]
+	 *
+	 * @param tokens the command tokens containing the optional time window
 	 */
-	private void listAllTopicMessages() {
+	private void listAllTopicMessages(String[] tokens) {
 		if (isPublisher == null) {
 			out.println("> You need to subscribe/publish to a topic first.\n");
 			return;
 		}
 
-		ConcurrentLinkedQueue<Message> messages = topics.get(topic);
-		if (messages == null || messages.isEmpty()) {
-			out.println("> No messages available for topic '" + topic + "'.\n");
+		if (tokens.length > 1) {
+			listTopicMessagesInWindow(tokens);
 			return;
 		}
 
-		// Important: Create a snapshot of the messages to ensure consistency
-		ArrayList<Message> snapshot;
-		synchronized (messages) { snapshot = new ArrayList<>(messages); }
+		// Important: Create a snapshot of the messages to ensure consistency (across all partitions on a partitioned topic)
+		Tracing.ListAll event = new Tracing.ListAll();
+		event.begin();
+		ArrayList<Message> snapshot = PartitionedTopics.snapshot(topic);
+		if (snapshot.isEmpty()) {
+			out.println("> No messages available for topic '" + topic + "'.\n");
+			return;
+		}
 
 		// Important: Use StringBuilder to build the message and print it all at once, avoiding interleaving
 		StringBuilder messageOutput = new StringBuilder();
@@ -162,6 +377,103 @@ public class ClientHandler implements Runnable {
 		}
 		messageOutput.append("--- LISTALL: END OF MESSAGES IN '").append(topic).append("' ---\n");
 		out.println(messageOutput);
+		commitListAll(event, userID, topic, snapshot.size());
+	}
+
+	/**
+	 * Commits a listall event, if a recording wants it.
+	 *
+	 * @param event    the event, begun when the listing started
+	 * @param userID   the client the messages were listed to, -1 for the server operator
+	 * @param topic    the listed topic
+	 * @param messages the number of messages listed
+	 */
+	public static void commitListAll(Tracing.ListAll event, int userID, String topic, int messages) {
+		if (event.shouldCommit()) {
+			event.userID = userID;
+			event.topic = topic;
+			event.messages = messages;
+			event.commit();
+		}
+	}
+
+	/**
+	 * "listall since": Lists the messages in the current topic published within a time window, using the topic's time index.
+	 *
+	 * @param tokens the command tokens containing the time window
+	 */
+	private void listTopicMessagesInWindow(String[] tokens) {
+		TimeIndex.Window window;
+		try {
+			window = TimeIndex.Window.parse(tokens, 1);
+		} catch (IllegalArgumentException e) {
+			out.println("> " + e.getMessage() + "\n");
+			return;
+		}
+
+		Tracing.ListAll event = new Tracing.ListAll();
+		event.begin();
+		ArrayList<Message> messages = PartitionedTopics.snapshot(topic, window);
+		if (messages.isEmpty()) {
+			out.println("> No messages in topic '" + topic + "' " + window + ".\n");
+			return;
+		}
+
+		StringBuilder messageOutput = new StringBuilder();
+		messageOutput.append("--- LISTALL: ").append(messages.size()).append(" MESSAGES IN '").append(topic).append("' ").append(window).append(" ---\n\n");
+		for (Message msg : messages) {
+			messageOutput.append(msg.toString()).append("\n");
+		}
+		messageOutput.append("--- LISTALL: END OF MESSAGES IN '").append(topic).append("' ---\n");
+		out.println(messageOutput);
+		commitListAll(event, userID, topic, messages.size());
+	}
+
+	/**
+	 * "search": Lists the messages in the current topic containing all the given terms, most recent first.
+	 * Usage: search <terms...> [page <n>]
+	 *
+	 * @param tokens the command tokens containing the search terms and optional page
+	 */
+	private void searchTopicMessages(String[] tokens) {
+		if (isPublisher == null) {
+			out.println("> You need to subscribe/publish to a topic first.\n");
+			return;
+		}
+
+		try {
+			out.println(SearchIndex.Query.parse(tokens).run(topic));
+		} catch (IllegalArgumentException e) {
+			out.println("> " + e.getMessage() + "\n");
+		}
+	}
+
+	/**
+	 * "filter": Sets, clears or shows this client's server-side content filter.
+	 * Only messages matching the filter are sent to the client, saving the bandwidth of messages it would discard.
+	 * Usage: filter <keyword | prefix | regex | users> <value>... | filter off | filter
+	 *
+	 * @param tokens the command tokens containing the filter type and values
+	 */
+	private void handleFilter(String[] tokens) {
+		if (tokens.length == 1) {
+			out.println(filter == null ? "> No filter set, all messages in the topic are delivered.\n" : "> Current filter: " + filter + "\n");
+			return;
+		}
+
+		if (tokens.length == 2 && tokens[1].equalsIgnoreCase("off")) {
+			filter = null;
+			out.println("> Filter removed, all messages in the topic will be delivered.\n");
+		} else {
+			try {
+				filter = TopicFilterIndex.Filter.parse(tokens);
+			} catch (IllegalArgumentException e) {
+				out.println("> " + e.getMessage() + "\n");
+				return;
+			}
+			out.println("> Filter set: " + filter + ". Only matching messages will be delivered.\n");
+		}
+		TopicFilterIndex.rebuild(topic);
 	}
 
 	/**
@@ -172,62 +484,843 @@ public class ClientHandler implements Runnable {
 	 */
 	private void handleRegistration(String[] tokens) {
 		String role = tokens[0].toLowerCase();
-		topic = String.join("_", Arrays.copyOfRange(tokens, 1, tokens.length)); // "example topic" -> "example_topic"
-		isPublisher = role.equals("publish");                                   // Important: Determine if the client is a publisher or subscriber
+		String topic = String.join("_", Arrays.copyOfRange(tokens, 1, tokens.length)); // "example topic" -> "example_topic"
+		leaveDurable();
+		leaveGroup();
+		register(role.equals("publish"), topic, null);                                // Important: Determine if the client is a publisher or subscriber
+	}
 
-		System.out.println("> Client (ID " + userID + ") registered as '" + (isPublisher ? "publisher" : "subscriber") + "' on '" + topic + "'.");
-		out.println("--- REGISTRATION SUCCESSFUL ---\n"
-		            + "> Registered as '" + (isPublisher ? "publisher" : "subscriber") + "' on topic '" + topic + "'.\n"
-		            + "> Enter 'help' for a list of available commands.\n");
+	/**
+	 * "resume": Re-registers a reconnecting client and replays the messages it missed while disconnected.
+	 * Usage: resume <publish | subscribe> <lastMessageID> <topic>, or resume <publish | subscribe> <topic>@<lastMessageID>
+	 *
+	 * @param tokens the command tokens containing the role, the last message ID seen by the client and the topic
+	 */
+	private void handleResume(String[] tokens) {
+		Message.GlobalId globalId = tokens.length == 3 ? Message.parseGlobalId(tokens[2]) : null;
+		if ((tokens.length < 4 && globalId == null) || (globalId == null && !tokens[2].matches("-?\\d{1,18}|\\d{1,2}:-?\\d{1,18}(,\\d{1,2}:-?\\d{1,18})*"))
+		    || !List.of("publish", "subscribe").contains(tokens[1].toLowerCase())) {
+			out.println("> Usage: resume <publish | subscribe> <lastMessageID | partition:lastMessageID,...> <topic>\n"
+			            + "> Usage: resume <publish | subscribe> <topic>@<lastMessageID>\n");
+			return;
+		}
 
-		topics.putIfAbsent(topic, new ConcurrentLinkedQueue<>()); // Ensure topic is added to topics map
-		publisherMessages.putIfAbsent(topic, new ArrayList<>());  // Ensure topic is added to client-specific map
+		leaveDurable();
+		leaveGroup();
+		if (globalId != null) {
+			register(tokens[1].equalsIgnoreCase("publish"), globalId.getTopic(), globalId.getId());
+			return;
+		}
+		String topic = String.join("_", Arrays.copyOfRange(tokens, 3, tokens.length));
+		if (!tokens[2].contains(":")) {
+			register(tokens[1].equalsIgnoreCase("publish"), topic, Long.parseLong(tokens[2]));
+			return;
+		}
+
+		// One resume point per partition (IDs are counted per partition); a partition the client has not heard of is replayed whole
+		HashMap<String, Long> resumePoints = new HashMap<>();
+		for (String point : tokens[2].split(",")) {
+			String[] fields = point.split(":");
+			resumePoints.put(PartitionedTopics.partition(topic, Integer.parseInt(fields[0])), Long.parseLong(fields[1]));
+		}
+		registerWithResumePoints(tokens[1].equalsIgnoreCase("publish"), topic, partition -> resumePoints.getOrDefault(partition, -1L));
+	}
+
+	/**
+	 * "durable": Subscribes through a named durable subscription.
+	 * The server keeps the subscription's committed offset while the client is away and, when a client attaches
+	 * to it again, replays every message published after that offset before live delivery resumes.
+	 * Usage: durable <name> <topic>
+	 *
+	 * @param tokens the command tokens containing the subscription name and the topic
+	 */
+	private void handleDurable(String[] tokens) {
+		if (tokens.length < 3 || !tokens[1].matches("[\\w.-]{1,64}")) {
+			out.println("> Usage: durable <name> <topic> (names use letters, digits, '_', '-' and '.')\n");
+			return;
+		}
+
+		String topic = String.join("_", Arrays.copyOfRange(tokens, 2, tokens.length));
+		if (PartitionedTopics.isPartitioned(topic)) { // A single committed offset cannot track several independently ordered partitions
+			out.println("> Topic '" + topic + "' is partitioned: durable subscriptions follow one partition, e.g. '" + PartitionedTopics.partition(topic, 0) + "'.\n");
+			return;
+		}
+		DurableSubscriptions.Subscription subscription;
+		try {
+			subscription = DurableSubscriptions.attach(tokens[1], topic, this);
+		} catch (IllegalStateException e) {
+			out.println("> " + e.getMessage() + "\n");
+			return;
+		}
+		if (durable != subscription) {
+			leaveDurable();
+		}
+		leaveGroup();
+		durable = subscription;
+		register(false, topic, subscription.getCommitted());
+	}
+
+	/**
+	 * "group": Subscribes as a member of a shared subscription group.
+	 * The members of a group share the topic's messages: each message goes to one member, the least loaded.
+	 * Usage: group <name> <topic>
+	 *
+	 * @param tokens the command tokens containing the group name and the topic
+	 */
+	private void handleGroup(String[] tokens) {
+		if (tokens.length < 3 || !tokens[1].matches("[\\w.-]{1,64}")) {
+			out.println("> Usage: group <name> <topic> (names use letters, digits, '_', '-' and '.')\n");
+			return;
+		}
+
+		String topic = String.join("_", Arrays.copyOfRange(tokens, 2, tokens.length));
+		if (group != null && group.getName().equals(tokens[1]) && group.getTopic().equals(topic)) {
+			out.println("> You are already a member of group '" + tokens[1] + "'.\n");
+			return;
+		}
+		leaveGroup();
+		SubscriptionGroups.Group joined;
+		try {
+			joined = SubscriptionGroups.join(tokens[1], topic, this);
+		} catch (IllegalStateException e) {
+			out.println("> " + e.getMessage() + "\n");
+			return;
+		}
+		leaveDurable();
+		group = joined;
+		register(false, topic, null);
+		out.println("> Joined group '" + joined.getName() + "': messages on '" + topic + "' are shared between its "
+		            + joined.getMembers().size() + " members.\n");
+	}
+
+	/**
+	 * Leaves the shared group this subscriber belongs to, if any.
+	 *
+	 * @return the group left, or null if none
+	 */
+	private SubscriptionGroups.Group leaveGroup() {
+		SubscriptionGroups.Group current = group;
+		if (current != null) {
+			SubscriptionGroups.leave(current, this);
+			current.forget(this);
+			group = null;
+		}
+		return current;
+	}
+
+	/**
+	 * Hands the messages a departed member never received to the remaining members of its group.
+	 *
+	 * @param group  the group the member left
+	 * @param unsent the messages taken back from the member's outbound queue
+	 */
+	private static void redeliver(SubscriptionGroups.Group group, List<Object> unsent) {
+		int redelivered = 0;
+		for (Object tag : unsent) {
+			Message msg = (Message) tag;
+			Set<ClientHandler> accepted = TopicFilterIndex.forTopic(group.getTopic()).match(msg.getUserID(), msg.getBody());
+			ClientHandler member = group.pick(m -> m.filter == null || accepted.contains(m));
+			if (member != null) {
+				member.out.println("> MESSAGE RECEIVED:\n" + msg, null, msg);
+				group.delivered(member, true);
+				redelivered++;
+			}
+		}
+		System.out.println("> " + redelivered + " of " + unsent.size() + " undelivered messages handed to the remaining members of group '"
+		                   + group.getName() + "'.");
+	}
+
+	/**
+	 * "ack": Commits the durable subscription's offset up to a message ID.
+	 * Acknowledgements are cumulative and silent, so a consumer can cheaply acknowledge a batch at a time.
+	 * Usage: ack <messageID>
+	 *
+	 * @param tokens the command tokens containing the last processed message ID
+	 */
+	private void handleAck(String[] tokens) {
+		if (tokens.length != 2 || !tokens[1].matches("\\d{1,18}")) {
+			out.println("> Usage: ack <messageID>\n");
+			return;
+		}
+		DurableSubscriptions.Subscription subscription = durable;
+		if (subscription == null) {
+			out.println("> You are not consuming a durable subscription.\n");
+			return;
+		}
+		subscription.commit(Long.parseLong(tokens[1]));
+	}
+
+	/**
+	 * "unsubscribe": Deletes a durable subscription, detaching from it first if this client is consuming it.
+	 * Usage: unsubscribe <name>
+	 *
+	 * @param tokens the command tokens containing the subscription name
+	 */
+	private void handleUnsubscribe(String[] tokens) {
+		if (tokens.length != 2) {
+			out.println("> Usage: unsubscribe <name>\n");
+			return;
+		}
+		if (durable != null && durable.getName().equals(tokens[1])) {
+			leaveDurable();
+		}
+		try {
+			DurableSubscriptions.delete(tokens[1]);
+		} catch (IllegalStateException e) {
+			out.println("> " + e.getMessage() + "\n");
+			return;
+		}
+		out.println("> Durable subscription '" + tokens[1] + "' deleted.\n");
+	}
+
+	/**
+	 * Detaches from the durable subscription being consumed, if any. Its offset is kept for the next consumer.
+	 */
+	private void leaveDurable() {
+		DurableSubscriptions.Subscription subscription = durable;
+		if (subscription != null) {
+			subscription.detach(this);
+			durable = null;
+		}
+	}
+
+	/**
+	 * Registers the client on a topic, optionally replaying the messages after a resume point.
+	 * Runs under the topic's lock, like broadcastMessage(), so every message is either replayed here or
+	 * delivered live afterwards: a resuming client sees no gap and no duplicate.
+	 * The client is also told the ID of the last message published before it joined, its resume point
+	 * should the connection drop before anything is delivered.
+	 * A subscriber registering on a conflated topic first receives its current values as a snapshot.
+	 *
+	 * @param asPublisher whether to register as a publisher
+	 * @param topic       the topic to register on
+	 * @param resumeFrom  the last message ID the client has seen, or null for a plain registration
+	 */
+	private void register(boolean asPublisher, String topic, Long resumeFrom) {
+		registerWithResumePoints(asPublisher, topic, resumeFrom == null ? null : partition -> resumeFrom);
+	}
+
+	/**
+	 * Registers the client on a topic with a resume point per partition.
+	 * On a partitioned topic the locks of all the partitions are held, taken in partition order, while registering.
+	 *
+	 * @param asPublisher whether to register as a publisher
+	 * @param topic       the topic to register on
+	 * @param resumeFrom  the last message ID the client has seen in each partition (or in the topic), or null for a plain registration
+	 */
+	private void registerWithResumePoints(boolean asPublisher, String topic, Function<String, Long> resumeFrom) {
+		List<String> partitions = PartitionedTopics.storageTopics(topic);
+		boolean readsBacklog = resumeFrom != null || (!asPublisher && ConflatedTopics.isConflated(topic));
+		for (String partition : partitions) {
+			topics.computeIfAbsent(partition, t -> new ConcurrentLinkedQueue<>()); // Ensure topic is added to topics map
+			publisherMessages.putIfAbsent(partition, new ArrayList<>());          // Ensure topic is added to client-specific map
+			if (readsBacklog) {
+				SpillStore.pageIn(partition);
+			}
+		}
+
+		String previousTopic = this.topic;
+		registerLocked(asPublisher, topic, partitions, 0, resumeFrom);
+		out.awaitRoom();
+
+		if (filter != null) { // The filter follows the client to its new topic
+			TopicFilterIndex.rebuild(previousTopic);
+			TopicFilterIndex.rebuild(topic);
+		}
 		if (server.isInspectingTopic(topic))
 			setIsServerInspecting(true); // Important: If server inspecting topic, notify client
 	}
 
+	/**
+	 * Takes the lock of each partition in turn, then registers while holding them all.
+	 *
+	 * @param next the index of the next partition to lock
+	 */
+	private void registerLocked(boolean asPublisher, String topic, List<String> partitions, int next, Function<String, Long> resumeFrom) {
+		if (next < partitions.size()) {
+			ConcurrentLinkedQueue<Message> messages = topics.computeIfAbsent(partitions.get(next), t -> new ConcurrentLinkedQueue<>());
+			synchronized (messages) {
+				registerLocked(asPublisher, topic, partitions, next + 1, resumeFrom);
+			}
+			return;
+		}
+
+		this.isPublisher = asPublisher;
+		this.topic = topic;
+		countRegistration(topic, asPublisher);
+		String role = asPublisher ? "publisher" : "subscriber";
+		StringBuilder registration = new StringBuilder();
+		registration.append("--- REGISTRATION SUCCESSFUL ---\n")
+		    .append("> Registered as '").append(role).append("' on topic '").append(topic).append("'")
+		    .append(partitions.size() > 1 ? " (" + partitions.size() + " partitions)" : "").append(".\n")
+		    .append("> Enter 'help' for a list of available commands.\n\n");
+		for (String partition : partitions) { // Before any snapshot, whose IDs skip superseded values
+			if (ConflatedTopics.isConflated(partition)) {
+				registration.append("CONFLATED ").append(partition).append(" true\n");
+			}
+		}
+
+		if (resumeFrom == null) {
+			System.out.println("> Client (ID " + userID + ") registered as '" + role + "' on '" + topic + "'.");
+			if (!asPublisher && ConflatedTopics.isConflated(topic)) { // Current values first, then live updates
+				ConcurrentLinkedQueue<Message> messages = topics.get(topic);
+				registration.append("--- SNAPSHOT: ").append(TopicStats.of(topic).getMessages()).append(" CURRENT VALUES IN '").append(topic).append("' ---\n\n");
+				for (Message msg : messages) {
+					registration.append("> MESSAGE RECEIVED:\n").append(msg).append("\n");
+				}
+			}
+		} else {
+			ArrayList<Message> missed = new ArrayList<>();
+			for (String partition : partitions) {
+				long after = resumeFrom.apply(partition);
+				for (Message msg : topics.get(partition)) { // Queue order is ID order: messages are created under this lock
+					if (msg.getId() > after) {
+						missed.add(msg);
+					}
+				}
+			}
+			registration.append("--- RESUMED: ").append(missed.size()).append(" MISSED MESSAGES IN '").append(topic).append("' ---\n\n");
+			for (Message msg : partitions.size() > 1 ? PartitionedTopics.inPublishOrder(missed) : missed) {
+				registration.append("> MESSAGE RECEIVED:\n").append(msg).append("\n");
+			}
+			String after = partitions.size() > 1 ? "per-partition resume points" : "message ID " + resumeFrom.apply(topic);
+			System.out.println("> Client (ID " + userID + ") resumed as '" + role + "' on '" + topic + "' after " + after + " (" + missed.size() + " missed).");
+		}
+		for (String partition : partitions) {
+			registration.append("LAST_MESSAGE_ID ").append(partition).append(" ").append(Message.lastAssignedId(partition)).append("\n");
+		}
+		registration.setLength(registration.length() - 1);
+		out.offer(registration, null, null); // Under the topic's lock: the caller waits for room once it is released
+	}
+
+	/**
+	 * Moves the client's count in the topic statistics and its entry in the topic's recipients to its new registration,
+	 * or removes them on disconnect.
+	 *
+	 * @param topic       the topic the client is now registered on, or null when it disconnects
+	 * @param asPublisher whether the client is now a publisher
+	 */
+	private void countRegistration(String topic, boolean asPublisher) {
+		synchronized (closing) {
+			if (countedTopic != null) {
+				TopicStats.registered(countedTopic, countedAsPublisher, -1);
+				clientsByTopic.get(countedTopic).remove(this);
+			}
+			countedTopic = clientRunning ? topic : null; // A client closed meanwhile is not counted again
+			countedAsPublisher = asPublisher;
+			if (countedTopic != null) {
+				TopicStats.registered(countedTopic, asPublisher, 1);
+				clientsByTopic.computeIfAbsent(countedTopic, t -> ConcurrentHashMap.newKeySet()).add(this);
+			}
+		}
+	}
+
+	/**
+	 * "trace": Handles a command carrying the client's send time, which the messages it publishes pass on to their
+	 * subscribers for end-to-end latency measurement.
+	 * Usage: trace <epochMicros> <command>, e.g. trace 1760000000000000 send hello
+	 *
+	 * @param tokens  the command tokens
+	 * @param message the full command line, to keep the traced command's own spacing
+	 */
+	private void handleTraced(String[] tokens, String message) {
+		if (tokens.length < 3 || !tokens[1].matches("\\d{1,18}") || tokens[2].equalsIgnoreCase("trace")) {
+			out.println("> Usage: trace <epochMicros> <command>\n");
+			return;
+		}
+
+		String command = message.trim().substring(5).trim();             // "<epochMicros> <command>"
+		traceMicros = Long.parseLong(tokens[1]);
+		try {
+			processCommand(command.substring(tokens[1].length()).trim());
+		} finally {
+			traceMicros = 0;
+		}
+	}
+
+	/**
+	 * "request": Sends a request to one subscriber of a topic; its reply comes back to this client only, as
+	 * "REPLY <correlationId> <responderID> <body>", or "REPLY_FAILED <correlationId> <reason>".
+	 * Usage: request <correlationId> <timeoutMillis> <topic> <body>
+	 *
+	 * @param tokens  the command tokens
+	 * @param message the full command line, to keep the body's own spacing
+	 */
+	private void handleRequest(String[] tokens, String message) {
+		if (tokens.length < 5 || !tokens[1].matches("[\\w.:-]{1,64}") || !tokens[2].matches("\\d{1,9}")) {
+			out.println("> Usage: request <correlationId> <timeoutMillis> <topic> <body>\n");
+			return;
+		}
+
+		long timeoutMillis = Math.max(1, Math.min(RequestReply.MAX_TIMEOUT_MILLIS, Long.parseLong(tokens[2])));
+		String body = message.trim().split("\\s+", 5)[4];
+		applyRateLimits();
+		RequestReply.request(server, this, tokens[1], timeoutMillis, tokens[3], body);
+	}
+
+	/**
+	 * "reply": Answers a request routed to this client. The reply goes to the requester only.
+	 * Usage: reply <replyTo> <body>, where replyTo is the destination the request came with
+	 *
+	 * @param tokens  the command tokens
+	 * @param message the full command line, to keep the body's own spacing
+	 */
+	private void handleReply(String[] tokens, String message) {
+		if (tokens.length < 3) {
+			out.println("> Usage: reply <replyTo> <body>\n");
+			return;
+		}
+
+		if (!RequestReply.reply(this, tokens[1], message.trim().split("\\s+", 3)[2])) {
+			out.println("> No request awaits a reply from you on '" + tokens[1] + "' (it may have timed out).\n");
+		}
+	}
+
+	/**
+	 * "sendttl": Broadcasts a message that expires after a time to live.
+	 * Usage: sendttl <ttl> <message>, e.g. sendttl 30s price update
+	 *
+	 * @param tokens  the command tokens
+	 * @param message the full command line, to keep the body's own spacing
+	 */
+	private void handleSendWithTtl(String[] tokens, String message) {
+		long ttlMillis;
+		try {
+			if (tokens.length < 3) {
+				throw new IllegalArgumentException("Usage: sendttl <ttl> <message>, e.g. sendttl 30s price update");
+			}
+			ttlMillis = TimeIndex.parseDuration(tokens[1]);
+		} catch (IllegalArgumentException e) {
+			out.println("> " + e.getMessage() + "\n");
+			return;
+		}
+
+		String body = message.trim().substring(tokens[0].length()).trim();
+		applyRateLimits();
+		broadcastMessage(body.substring(tokens[1].length()).trim(), Math.max(1, ttlMillis));
+	}
+
+	/**
+	 * "sendkey": Broadcasts a message updating the value of a key.
+	 * On a conflated topic it replaces the key's previous value; elsewhere the key is only informative.
+	 * Usage: sendkey <key> <message>, e.g. sendkey EURUSD 1.0842
+	 *
+	 * @param tokens  the command tokens
+	 * @param message the full command line, to keep the body's own spacing
+	 */
+	private void handleSendWithKey(String[] tokens, String message) {
+		if (tokens.length < 3 || tokens[1].length() > 64) {
+			out.println("> Usage: sendkey <key> <message>, e.g. sendkey EURUSD 1.0842 (keys are at most 64 characters)\n");
+			return;
+		}
+
+		String body = message.trim().substring(tokens[0].length()).trim();
+		applyRateLimits();
+		broadcastMessage(body.substring(tokens[1].length()).trim(), 0, tokens[1]);
+	}
+
 	/**
 	 * "send": Broadcasts a message to all clients subscribed to the same topic.
 	 * Stores the message in the client's own message list.
 	 *
 	 * @param messageBody the body of the message to broadcast
+	 * @param ttlMillis   the message's time to live, 0 to keep it until it is deleted
+	 */
+	private void broadcastMessage(String messageBody, long ttlMillis) { broadcastMessage(messageBody, ttlMillis, null); }
+
+	/**
+	 * Broadcasts a message, optionally with a key. On a conflated topic a keyed message replaces the key's previous
+	 * value in storage, and its deliveries supersede undelivered ones for the same key.
+	 *
+	 * @param messageBody the body of the message to broadcast
+	 * @param ttlMillis   the message's time to live, 0 to keep it until it is deleted
+	 * @param key         the key of the value the message updates, or null
+	 */
+	private void broadcastMessage(String messageBody, long ttlMillis, String key) {
+		String topic = PartitionedTopics.route(this.topic, key); // The key's partition on a partitioned topic
+		store(server, this, userID, null, topic, messageBody, ttlMillis, key, traceMicros);
+	}
+
+	/**
+	 * Stores and delivers a message relayed by another node of a federation. It reaches this node's clients like a
+	 * local publish, but is not forwarded again.
+	 *
+	 * @param server      the server instance
+	 * @param origin      the node the message was published on
+	 * @param userID      the publisher's ID on that node
+	 * @param topic       the topic, or partition, the message was stored under on that node
+	 * @param messageBody the body of the message
+	 * @param ttlMillis   the message's time to live, 0 to keep it until it is deleted
+	 * @param key         the key of the value the message updates, or null
 	 */
-	private void broadcastMessage(String messageBody) {
-		Message message = new Message(userID, topic, messageBody);
-		topics.computeIfAbsent(topic, msgs -> new ConcurrentLinkedQueue<>()).offer(message); // Noticed NullPointerException without this
-		publisherMessages.computeIfAbsent(topic, msgs -> new ArrayList<>()).add(message);    // Important: Store the message in the client's own list
-		clientHandlers.values()
-		    .stream()
-		    .filter(ch -> topic.equals(ch.topic))
-		    .forEach(ch -> ch.out.println((ch != this ? "> MESSAGE RECEIVED:\n" : "> MESSAGE SENT:\n") + message));
+	public static void storeRelayed(Server server, String origin, int userID, String topic, String messageBody, long ttlMillis, String key) {
+		store(server, null, userID, origin, topic, messageBody, ttlMillis, key, 0);
 	}
 
-	public void broadcastMessageFromServer(String message) { out.println(message); }
+	/**
+	 * Creates a message, stores it on its topic and delivers it to the topic's clients. Messages published on this
+	 * node are also forwarded to the federated nodes interested in the topic.
+	 *
+	 * @param server      the server instance
+	 * @param publisher   the local publisher, confirmed and skipped in the fan-out, or null for a relayed message
+	 * @param userID      the publisher's ID
+	 * @param origin      the node the message was published on, null for this node
+	 * @param topic       the topic, or partition, to store the message under
+	 * @param messageBody the body of the message
+	 * @param ttlMillis   the message's time to live, 0 to keep it until it is deleted
+	 * @param key         the key of the value the message updates, or null
+	 * @param traceMicros the publishing client's trace timestamp, passed on to subscribers, 0 for none
+	 */
+	private static void store(Server server, ClientHandler publisher, int userID, String origin, String topic, String messageBody, long ttlMillis, String key,
+	                          long traceMicros) {
+		Tracing.Publish event = new Tracing.Publish();
+		event.begin();
+		String wholeTopic = PartitionedTopics.baseOf(topic);                                                             // Clients on the whole partitioned topic, null if not a partition
+		ConcurrentLinkedQueue<Message> messages = topics.computeIfAbsent(topic, msgs -> new ConcurrentLinkedQueue<>()); // Noticed NullPointerException without this
+
+		// Filters are evaluated once for all clients on the topic, clients without a filter get everything
+		int filterID = publisher == null ? -1 : userID;                                                                  // "users" filters name clients of this node
+		Set<ClientHandler> accepted = TopicFilterIndex.forTopic(topic).match(filterID, messageBody);
+		if (wholeTopic != null) {
+			Set<ClientHandler> acceptedOnWholeTopic = TopicFilterIndex.forTopic(wholeTopic).match(filterID, messageBody);
+			if (!acceptedOnWholeTopic.isEmpty()) {
+				accepted = new HashSet<>(accepted);
+				accepted.addAll(acceptedOnWholeTopic);
+			}
+		}
+
+		// Important: Create, store and deliver under the topic's lock so ID order, queue order and delivery order agree.
+		// Nothing waits under the lock: clients whose queue the message filled are waited for once it is released
+		ArrayList<Outbound> full = new ArrayList<>();
+		synchronized (messages) {
+			Message message = new Message(userID, topic, messageBody, key, origin, traceMicros);
+			messages.offer(message);
+			TopicStats.stored(message);
+			if (publisher != null) {
+				publisher.publisherMessages.computeIfAbsent(topic, msgs -> new ArrayList<>()).add(message); // Important: Store the message in the client's own list
+			}
+			index(message);
+			Message superseded = ConflatedTopics.replace(message);
+			if (superseded != null) {
+				removeMessages(topic, msg -> msg == superseded, 1);
+				Metrics.conflatedMessages.increment();
+			}
+			String conflationKey = key != null && ConflatedTopics.isConflated(topic) ? topic + " " + key : null;
+			if (ttlMillis > 0) {
+				server.getTimerWheel().schedule(() -> expire(server, message), ttlMillis);
+			}
+			if (publisher != null) {
+				Federation.forward(message, ttlMillis); // In topic order: forwarded under the same lock
+			}
+			String frame = message.toString(); // Formatted once for all recipients
+			String received = "> MESSAGE RECEIVED:\n" + frame;
+			Set<ClientHandler> matched = accepted;
+			long fanOutStart = System.nanoTime();
+			if (publisher != null && publisher.out.offer("> MESSAGE SENT:\n" + frame, null, null)) { // Every publish is confirmed
+				full.add(publisher.out);
+			}
+			ClientHandler[] recipients = recipientsOf(topic, wholeTopic);
+			List<ClientHandler> behind = FanOut.deliver(recipients, ch -> {
+				if (ch == publisher || ch.group != null) { // Shared group members get the group's share below
+					return false;
+				}
+				if (ch.filter != null && !matched.contains(ch)) {
+					Metrics.filteredDeliveries.increment();
+					return false;
+				}
+				return ch.handOver(message, received, conflationKey, null);
+			});
+			for (ClientHandler ch : behind) {
+				full.add(ch.out);
+			}
+			for (List<SubscriptionGroups.Group> groups : List.of(SubscriptionGroups.on(topic), SubscriptionGroups.on(wholeTopic))) {
+				for (SubscriptionGroups.Group shared : groups) { // One member per group, the least loaded
+					ClientHandler member = shared.pick(m -> m.filter == null || matched.contains(m));
+					if (member != null) {
+						if (member.handOver(message, received, conflationKey, message)) {
+							full.add(member.out);
+						}
+						shared.delivered(member, false);
+					}
+				}
+			}
+			long fanOutNanos = System.nanoTime() - fanOutStart;
+			TopicStats.fannedOut(topic, fanOutNanos);
+			if (event.shouldCommit()) {
+				event.topic = topic;
+				event.messageID = message.getId();
+				event.userID = userID;
+				event.origin = origin;
+				event.size = message.getSize();
+				event.recipients = recipients.length;
+				event.fanOutNanos = fanOutNanos;
+				event.commit();
+			}
+		}
+		for (Outbound slow : full) { // Backpressure on the producer only, e.g. the publishing client's own thread
+			slow.awaitRoom();
+		}
+	}
+
+	/**
+	 * Queues a message frame for this subscriber without waiting, recording the hand-off for Flight Recorder.
+	 * Called under the topic's lock.
+	 *
+	 * @param message       the delivered message
+	 * @param frame         the formatted frame
+	 * @param conflationKey the conflation key, or null
+	 * @param tag           the tag handed back if the frame is never written, or null
+	 * @return true if the subscriber's queue is now full, and the producer should wait for it once the lock is released
+	 */
+	private boolean handOver(Message message, String frame, String conflationKey, Object tag) {
+		Tracing.Delivery event = new Tracing.Delivery();
+		event.begin();
+		boolean full = out.offer(frame, conflationKey, tag);
+		if (event.shouldCommit()) {
+			event.topic = message.getTopic();
+			event.messageID = message.getId();
+			event.subscriberID = userID;
+			event.queued = out.depth();
+			event.commit();
+		}
+		return full;
+	}
+
+	/**
+	 * Returns the subscribers that can serve requests on a topic: those registered on it, or on the whole partitioned
+	 * topic if it is a partition.
+	 *
+	 * @param topic the topic named by the request
+	 * @return the subscribers
+	 */
+	public static ClientHandler[] respondersOf(String topic) {
+		ArrayList<ClientHandler> responders = new ArrayList<>();
+		for (ClientHandler candidate : recipientsOf(topic, PartitionedTopics.baseOf(topic))) {
+			if (candidate.isPublisher == Boolean.FALSE) {
+				responders.add(candidate);
+			}
+		}
+		return responders.toArray(new ClientHandler[0]);
+	}
+
+	/**
+	 * Returns the clients that receive the messages stored under a topic: those registered on it and, for a partition,
+	 * those registered on the whole partitioned topic.
+	 *
+	 * @param topic      the topic, or a partition
+	 * @param wholeTopic the partitioned topic the partition belongs to, or null
+	 * @return the clients, in no particular order
+	 */
+	private static ClientHandler[] recipientsOf(String topic, String wholeTopic) {
+		Set<ClientHandler> onTopic = clientsByTopic.getOrDefault(topic, Set.of());
+		Set<ClientHandler> onWholeTopic = wholeTopic == null ? Set.of() : clientsByTopic.getOrDefault(wholeTopic, Set.of());
+		if (onWholeTopic.isEmpty()) {
+			return onTopic.toArray(new ClientHandler[0]);
+		}
+		ArrayList<ClientHandler> recipients = new ArrayList<>(onTopic.size() + onWholeTopic.size());
+		recipients.addAll(onTopic);
+		recipients.addAll(onWholeTopic);
+		return recipients.toArray(new ClientHandler[0]);
+	}
+
+	/**
+	 * Called on the timer wheel thread when a message's time to live has passed.
+	 * Expired messages are collected per topic and removed in one pass by a task on the server pool,
+	 * since removal takes the topic's lock and the wheel thread must not block.
+	 *
+	 * @param server  the server instance, whose pool removes the batch
+	 * @param message the expired message
+	 */
+	private static void expire(Server server, Message message) {
+		String topic = message.getTopic();
+		boolean firstInBatch;
+		synchronized (expiring) {
+			ArrayList<Message> batch = expiring.computeIfAbsent(topic, t -> new ArrayList<>());
+			firstInBatch = batch.isEmpty();
+			batch.add(message);
+		}
+		if (firstInBatch) {
+			server.execute(() -> removeExpired(topic));
+		}
+	}
+
+	/**
+	 * Removes a topic's batch of expired messages from storage, per-user lists, indexes and future replays.
+	 *
+	 * @param topic the topic whose expired messages to remove
+	 */
+	private static void removeExpired(String topic) {
+		ArrayList<Message> batch;
+		synchronized (expiring) { batch = expiring.remove(topic); }
+		if (batch == null) {
+			return;
+		}
+
+		Set<Message> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+		targets.addAll(batch);
+		int removed = removeMessages(topic, targets::contains, targets.size()).size();
+		if (removed > 0) {
+			Metrics.expiredMessages.computeIfAbsent(topic, t -> new LongAdder()).add(removed);
+		}
+	}
+
+	/**
+	 * Adds a newly created message to its topic's indexes.
+	 * Called under the topic's lock, so indexes see messages in publish order.
+	 *
+	 * @param message the message to index
+	 */
+	private static void index(Message message) {
+		SearchIndex.forTopic(message.getTopic()).add(message);
+		TimeIndex.forTopic(message.getTopic()).add(message);
+	}
+
+	/**
+	 * Removes the messages of a topic matching a condition from the topic, its publishers' lists and its indexes.
+	 * Runs under the topic's lock so a message is never indexed or delivered after its removal.
+	 *
+	 * @param topic     the topic to remove messages from
+	 * @param condition which messages to remove
+	 * @return the removed messages
+	 */
+	public static ArrayList<Message> removeMessages(String topic, Predicate<Message> condition) {
+		return removeMessages(topic, condition, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes at most limit messages of a topic matching a condition, stopping the scan as soon as the limit is reached.
+	 * Messages are scanned oldest first, so removing a known set of old messages (e.g. expired ones) rarely walks the whole topic.
+	 *
+	 * @param topic     the topic to remove messages from
+	 * @param condition which messages to remove
+	 * @param limit     the number of matching messages after which to stop
+	 * @return the removed messages
+	 */
+	private static ArrayList<Message> removeMessages(String topic, Predicate<Message> condition, int limit) {
+		ArrayList<Message> removed = new ArrayList<>();
+		ConcurrentLinkedQueue<Message> messages = topics.get(topic);
+		if (messages == null) {
+			return removed;
+		}
+
+		synchronized (messages) {
+			Iterator<Message> iterator = messages.iterator();
+			while (iterator.hasNext() && removed.size() < limit) {
+				Message msg = iterator.next();
+				if (condition.test(msg)) {
+					iterator.remove();
+					removed.add(msg);
+				}
+			}
+			if (removed.isEmpty()) {
+				return removed;
+			}
+			TimeIndex.forTopic(topic).remove(removed); // First: the search index resolves its matches through it
+			SearchIndex.forTopic(topic).remove(removed);
+			ConflatedTopics.forget(topic, removed);
+			TopicStats.removed(topic, removed);
+			SpillStore.removed(topic, removed);
+
+			// A message is only in its publisher's own list, relayed messages in none
+			HashMap<Integer, HashSet<Long>> idsByPublisher = new HashMap<>();
+			for (Message msg : removed) {
+				if (msg.getOrigin() != null) {
+					continue;
+				}
+				idsByPublisher.computeIfAbsent(msg.getUserID(), u -> new HashSet<>()).add(msg.getId());
+			}
+			for (var publisher : idsByPublisher.entrySet()) {
+				ClientHandler clientHandler = clientHandlers.get(publisher.getKey());
+				ArrayList<Message> sent = clientHandler == null ? null : clientHandler.publisherMessages.get(topic);
+				if (sent != null) {
+					synchronized (clientHandler.publisherMessages) { sent.removeIf(msg -> publisher.getValue().contains(msg.getId())); }
+				}
+			}
+			for (Message msg : removed) {
+				msg.release();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes every message of a topic from the topic, its publishers' lists and its indexes.
+	 *
+	 * @param topic the topic to clear
+	 */
+	public static void clearMessages(String topic) {
+		ConcurrentLinkedQueue<Message> messages = topics.get(topic);
+		if (messages == null) {
+			return;
+		}
+
+		synchronized (messages) {
+			for (Message msg : messages) {
+				msg.release();
+			}
+			messages.clear();
+			SearchIndex.clear(topic);
+			TimeIndex.clear(topic);
+			ConflatedTopics.clear(topic);
+			TopicStats.cleared(topic);
+			SpillStore.cleared(topic);
+			for (ClientHandler clientHandler : clientHandlers.values()) {
+				ArrayList<Message> sent = clientHandler.publisherMessages.get(topic);
+				if (sent != null) {
+					synchronized (clientHandler.publisherMessages) { sent.clear(); }
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a server notice (deletions, clears, configuration changes) on the control lane,
+	 * ahead of any message deliveries still queued for this client.
+	 *
+	 * @param message the notice to send
+	 */
+	public void broadcastMessageFromServer(String message) { out.printControl(message); }
+
+	/**
+	 * Sends a frame on the data lane, in order with message deliveries, e.g. a routed request or reply.
+	 *
+	 * @param frame the frame to send
+	 */
+	public void sendFrame(String frame) { out.println(frame); }
 
 	public void setIsServerInspecting(boolean isInspecting) {
 		try {
 			if (isInspecting) {
 				String commands = isPublisher ? "'send', 'list', 'listall'" : "'listall'";
-				out.println("--- SERVER INSPECT STARTED FOR '" + topic + "' ---\n"
-				            + "> Regular functionality has been temporarily suspended. See 'help' for a list of available commands.\n"
-				            + "> Use of " + commands + " will be queued and executed when the server ends Inspect mode.\n");
+				out.printControl("--- SERVER INSPECT STARTED FOR '" + topic + "' ---\n"
+				                 + "> Regular functionality has been temporarily suspended. See 'help' for a list of available commands.\n"
+				                 + "> Use of " + commands + " will be queued and executed when the server ends Inspect mode.\n");
 			} else
-				out.println("--- SERVER INSPECT ENDED FOR '" + topic + "' ---\n"
-				            + "> Server has exited Inspect mode for topic '" + topic + "'.\n"
-				            + "> Any backlogged commands will now be executed.\n");
-			out.println("IS_SERVER_INSPECTING " + isInspecting);
+				out.printControl("--- SERVER INSPECT ENDED FOR '" + topic + "' ---\n"
+				                 + "> Server has exited Inspect mode for topic '" + topic + "'.\n"
+				                 + "> Any backlogged commands will now be executed.\n");
+			out.printControl("IS_SERVER_INSPECTING " + isInspecting);
 		} catch (Exception e) {
 			System.out.println("> Error in setIsServerInspecting(): " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Tells the client that a topic it receives became conflated or regular, so it does not take the values skipped on
+	 * a conflated topic for lost messages. Called under the topic's lock, so it is told before any value is skipped.
+	 *
+	 * @param storageTopic the topic, or a partition
+	 * @param isConflated  whether the topic is now conflated
+	 */
+	public void setIsConflated(String storageTopic, boolean isConflated) { out.printControl("CONFLATED " + storageTopic + " " + isConflated); }
+
 	/**
 	 * Interrupts the client handler thread and closes resources.
 	 */
 	public void interruptThread() {
 		clientRunning = false;
 		if (!server.isRunning()) {
-			out.println("> Server initiated shutdown...");
+			out.printControl("> Server initiated shutdown...");
 		} else {
 			String role = isPublisher == null ? "Unregistered user" : isPublisher ? "Publisher" : "Subscriber";
 			String topic = getTopic() == null ? "" : " in topic '" + this.topic + "'";
@@ -244,7 +1337,8 @@ public class ClientHandler implements Runnable {
 	public void interruptThread(boolean isKicked) {
 		clientRunning = false;
 		if (isKicked) {
-			out.println("> You have been kicked from the server.");
+			out.printControl("> You have been kicked from the server.");
+			out.printControl("KICKED"); // Tells the client not to reconnect
 			System.out.println("> Client " + userID + " has been kicked from the server.");
 		}
 		closeEverything(socket, in, out);
@@ -255,21 +1349,38 @@ public class ClientHandler implements Runnable {
 	 *
 	 * @param socket the client's socket
 	 * @param in     the input stream from the client
-	 * @param out    the output stream to the client
+	 * @param out    the outgoing side of the connection
 	 */
-	private void closeEverything(Socket socket, BufferedReader in, PrintWriter out) {
-		clientHandlers.remove(userID);
-		System.out.println("> Client " + userID + " disconnected. Clients currently connected: " + clientHandlers.size() + ".");
+	private void closeEverything(Closeable socket, BufferedReader in, Outbound out) {
+		clientRunning = false;
+		if (idleCheck != null) {
+			idleCheck.cancel();
+		}
+		leaveDurable();
+		RequestReply.disconnected(this);
+		if (clientHandlers.remove(userID, this)) { // Only report once, closeEverything may be reached from several paths
+			System.out.println("> Client " + userID + " disconnected. Clients currently connected: " + clientHandlers.size() + ".");
+			if (filter != null) {
+				TopicFilterIndex.rebuild(topic);
+			}
+		}
+		synchronized (closing) {
+			countRegistration(null, false);
+			SubscriptionGroups.Group leftGroup = leaveGroup(); // Before closing, so no more messages are given to this client
+			if (out != null) {
+				List<Object> unsent = out.close(); // First, so pending notices (e.g. a kick) can still be written
+				if (leftGroup != null && !unsent.isEmpty()) {
+					redeliver(leftGroup, unsent);
+				}
+			}
+		}
 		try {
-			if (socket != null && !socket.isClosed()) {
-				socket.close();
+			if (socket != null) {
+				socket.close(); // No-op if already closed
 			}
 			if (in != null) {
 				in.close();
 			}
-			if (out != null) {
-				out.close();
-			}
 		} catch (IOException e) {
 			System.out.println("> Error closing socket: " + e.getMessage());
 		}
@@ -277,8 +1388,28 @@ public class ClientHandler implements Runnable {
 
 	public String getTopic() { return topic; }
 
+	public TokenBucket getRateLimit() { return rateLimit; }
+
+	public TopicFilterIndex.Filter getFilter() { return filter; }
+
 	public int getUserID() { return userID; }
 
+	public String getTransport() { return transport; }
+
+	public int getOutboundDepth() { return out.depth(); }
+
+	/**
+	 * Returns whether the client receives the messages stored under a topic: it is registered on that topic,
+	 * or on the partitioned topic it is a partition of.
+	 *
+	 * @param storageTopic the topic, or a partition
+	 * @return true if the client is on the topic
+	 */
+	public boolean receives(String storageTopic) {
+		String topic = this.topic;
+		return topic != null && (topic.equals(storageTopic) || topic.equals(PartitionedTopics.baseOf(storageTopic)));
+	}
+
 	public String getRole() { return (isPublisher == null) ? "Unregistered" : isPublisher ? "Publisher" : "Subscriber"; }
 
 	public int getNumMessagesSent() { return publisherMessages.get(topic) == null ? 0 : publisherMessages.get(topic).size(); }
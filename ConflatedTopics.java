@@ -0,0 +1,138 @@
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The ConflatedTopics class keeps the last-value state of conflated topics.
+ * On a conflated topic, a message published with a key replaces the previous message with the same key, so the
+ * topic holds one current value per key instead of every update. Subscribers registering on the topic receive the
+ * current values as a snapshot, and a slow subscriber's undelivered updates for a key are collapsed into the latest
+ * one by its {@link Outbound}.
+ *
+ * Messages without a key are kept as on any other topic. All updates happen under the topic's lock.
+ */
+public class ConflatedTopics {
+	private static final Set<String> conflated = ConcurrentHashMap.newKeySet();
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Message>> latest = new ConcurrentHashMap<>(); // topic : key : current value
+
+	private ConflatedTopics() {}
+
+	public static boolean isConflated(String topic) { return conflated.contains(topic); }
+
+	/**
+	 * Makes a topic conflated, keeping only the most recent retained message for each key.
+	 *
+	 * @param topic the topic
+	 * @return the number of superseded messages removed from the topic
+	 */
+	public static int enable(String topic) {
+		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.computeIfAbsent(topic, t -> new ConcurrentLinkedQueue<>());
+		synchronized (messages) {
+			if (!conflated.add(topic)) {
+				return 0;
+			}
+			notifyClients(topic, true);
+			ConcurrentHashMap<String, Message> values = latest.computeIfAbsent(topic, t -> new ConcurrentHashMap<>());
+			Set<Message> superseded = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (Message msg : messages) { // Oldest first: later values replace earlier ones
+				if (msg.getKey() != null) {
+					Message previous = values.put(msg.getKey(), msg);
+					if (previous != null) {
+						superseded.add(previous);
+					}
+				}
+			}
+			return superseded.isEmpty() ? 0 : ClientHandler.removeMessages(topic, superseded::contains).size();
+		}
+	}
+
+	/**
+	 * Makes a topic regular again. Messages published from now on are all kept.
+	 *
+	 * @param topic the topic
+	 */
+	public static void disable(String topic) {
+		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(topic);
+		if (messages == null) {
+			conflated.remove(topic);
+			return;
+		}
+		synchronized (messages) {
+			if (conflated.remove(topic)) {
+				notifyClients(topic, false);
+			}
+			latest.remove(topic);
+		}
+	}
+
+	/**
+	 * Tells the clients receiving a topic whether it is conflated. Called under the topic's lock.
+	 *
+	 * @param topic       the topic
+	 * @param isConflated whether the topic is now conflated
+	 */
+	private static void notifyClients(String topic, boolean isConflated) {
+		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
+			if (clientHandler.receives(topic)) {
+				clientHandler.setIsConflated(topic, isConflated);
+			}
+		}
+	}
+
+	/**
+	 * Records a newly published message as its key's current value. Called under the topic's lock.
+	 *
+	 * @param message the new message
+	 * @return the message it supersedes, to be removed from the topic, or null if none
+	 */
+	public static Message replace(Message message) {
+		if (message.getKey() == null || !isConflated(message.getTopic())) {
+			return null;
+		}
+		return latest.computeIfAbsent(message.getTopic(), t -> new ConcurrentHashMap<>()).put(message.getKey(), message);
+	}
+
+	/**
+	 * Forgets removed messages (deleted, expired...) that were their key's current value. Called under the topic's lock.
+	 *
+	 * @param topic   the topic
+	 * @param removed the removed messages
+	 */
+	public static void forget(String topic, List<Message> removed) {
+		ConcurrentHashMap<String, Message> values = latest.get(topic);
+		if (values == null) {
+			return;
+		}
+		for (Message msg : removed) {
+			if (msg.getKey() != null) {
+				values.remove(msg.getKey(), msg);
+			}
+		}
+	}
+
+	/**
+	 * Forgets every current value of a topic, used when all of its messages are cleared. The topic stays conflated.
+	 *
+	 * @param topic the topic
+	 */
+	public static void clear(String topic) {
+		ConcurrentHashMap<String, Message> values = latest.get(topic);
+		if (values != null) {
+			values.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of keys with a current value on a topic.
+	 *
+	 * @param topic the topic
+	 * @return the number of keys
+	 */
+	public static int keys(String topic) {
+		ConcurrentHashMap<String, Message> values = latest.get(topic);
+		return values == null ? 0 : values.size();
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The DurableSubscriptions class keeps named subscriptions that outlive their connections.
+ * Each subscription remembers the last message ID its consumer has committed on its topic; when a consumer attaches
+ * to the subscription again, possibly after a restart, the server delivers everything published after that offset.
+ *
+ * Acknowledgements are cumulative ("everything up to ID n is processed"), so a consumer can acknowledge a whole batch
+ * with one "ack" and a commit is a single compare-and-set in memory. Committed offsets are written to disk at most
+ * once per FLUSH_MILLIS, by the server pool, and when the server shuts down.
+ */
+public class DurableSubscriptions {
+	private static final Path FILE = Paths.get(System.getProperty("pubsub.subscriptionsFile", "logs/durable_subscriptions.txt"));
+	private static final long FLUSH_MILLIS = 1000;                                                             // Longest delay before commits reach the disk
+	private static final ConcurrentHashMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();    // name : subscription
+	private static volatile boolean dirty = false;
+
+	private DurableSubscriptions() {}
+
+	/**
+	 * Loads the persisted subscriptions and makes sure new message IDs on their topics are above their committed
+	 * offsets, since messages are numbered afresh when the server restarts.
+	 */
+	public static void load() {
+		if (!Files.exists(FILE)) {
+			return;
+		}
+		try {
+			for (String line : Files.readAllLines(FILE)) {
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length != 3 || !fields[2].matches("-?\\d{1,18}")) {
+					continue;
+				}
+				Subscription subscription = new Subscription(fields[0], fields[1], Long.parseLong(fields[2]));
+				subscriptions.put(subscription.name, subscription);
+				Message.ensureIdsAbove(subscription.topic, subscription.getCommitted());
+			}
+			System.out.println("> Loaded " + subscriptions.size() + " durable subscriptions from '" + FILE + "'.");
+		} catch (IOException e) {
+			System.out.println("> Error loading durable subscriptions: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Schedules the periodic flush of committed offsets on the server's timer wheel.
+	 *
+	 * @param server the server whose timer wheel and pool to use
+	 */
+	public static void startFlushing(Server server) {
+		server.getTimerWheel().schedule(() -> {
+			server.execute(DurableSubscriptions::save);
+			startFlushing(server);
+		}, FLUSH_MILLIS);
+	}
+
+	/**
+	 * Writes every subscription and its committed offset to disk if anything changed since the last write.
+	 * The file is replaced atomically, so a crash mid-write leaves the previous version.
+	 */
+	public static synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+		try {
+			Files.createDirectories(FILE.toAbsolutePath().getParent());
+			Path temp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+			try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temp))) {
+				for (Subscription subscription : subscriptions.values()) {
+					writer.println(subscription.name + " " + subscription.topic + " " + subscription.getCommitted());
+				}
+			}
+			Files.move(temp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			dirty = true;
+			System.out.println("> Error saving durable subscriptions: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Attaches a consumer to a named subscription, creating it if needed.
+	 * A new subscription starts after the last message published so far.
+	 *
+	 * @param name     the subscription name
+	 * @param topic    the subscription's topic
+	 * @param consumer the client handler consuming the subscription
+	 * @return the subscription
+	 * @throws IllegalStateException if the name is used on another topic or by another connected consumer
+	 */
+	public static Subscription attach(String name, String topic, ClientHandler consumer) {
+		Subscription subscription = subscriptions.computeIfAbsent(name, n -> {
+			dirty = true;
+			return new Subscription(n, topic, Message.lastAssignedId(topic));
+		});
+		synchronized (subscription) {
+			if (!subscription.topic.equals(topic)) {
+				throw new IllegalStateException("Subscription '" + name + "' is on topic '" + subscription.topic + "'.");
+			}
+			if (subscription.consumer != null && subscription.consumer != consumer) {
+				throw new IllegalStateException("Subscription '" + name + "' is already in use by client " + subscription.consumer.getUserID() + ".");
+			}
+			subscription.consumer = consumer;
+		}
+		return subscription;
+	}
+
+	/**
+	 * Deletes a named subscription that no consumer is attached to.
+	 *
+	 * @param name the subscription name
+	 * @throws IllegalStateException if the subscription does not exist or is in use
+	 */
+	public static void delete(String name) {
+		Subscription subscription = subscriptions.get(name);
+		if (subscription == null) {
+			throw new IllegalStateException("No durable subscription named '" + name + "'.");
+		}
+		synchronized (subscription) {
+			if (subscription.consumer != null) {
+				throw new IllegalStateException("Subscription '" + name + "' is in use by client " + subscription.consumer.getUserID() + ".");
+			}
+			subscriptions.remove(name);
+		}
+		dirty = true;
+	}
+
+	public static List<Subscription> all() { return new ArrayList<>(subscriptions.values()); }
+
+	/**
+	 * A named subscription and its committed offset.
+	 */
+	public static class Subscription {
+		private final String name;
+		private final String topic;
+		private volatile long committed;                                                                       // Last message ID acknowledged by the consumer
+		private ClientHandler consumer = null;                                                                 // Guarded by this, null while detached
+
+		private Subscription(String name, String topic, long committed) {
+			this.name = name;
+			this.topic = topic;
+			this.committed = committed;
+		}
+
+		/**
+		 * Commits every message up to an ID. Acknowledgements are cumulative, so an older ID is ignored.
+		 *
+		 * @param messageID the last message ID the consumer has processed
+		 */
+		public void commit(long messageID) {
+			if (messageID > committed) {
+				synchronized (this) {
+					committed = Math.max(committed, messageID);
+				}
+				dirty = true;
+			}
+		}
+
+		/**
+		 * Detaches a consumer, keeping the subscription and its offset.
+		 *
+		 * @param consumer the consumer to detach, ignored if another consumer has attached since
+		 */
+		public synchronized void detach(ClientHandler consumer) {
+			if (this.consumer == consumer) {
+				this.consumer = null;
+			}
+		}
+
+		public String getName() { return name; }
+
+		public String getTopic() { return topic; }
+
+		public long getCommitted() { return committed; }
+
+		public synchronized ClientHandler getConsumer() { return consumer; }
+	}
+}
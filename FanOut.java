@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * The FanOut class hands a message to its recipients, splitting very large recipient sets across a work-stealing pool.
+ * Small sets are delivered inline on the publisher's thread, where the cost of waking pool threads would exceed the
+ * work. The cut-over is adaptive: every fan-out measures the cost per recipient (parallel ones by timing each chunk),
+ * parallel ones also the fixed cost of using the pool, and the threshold is where splitting starts to pay off.
+ *
+ * deliver() returns once every recipient has been handed the message. Callers hold the topic's lock meanwhile, so the
+ * next message of the topic is only handed out afterwards and each recipient still sees the topic's messages in order.
+ * Delivery actions must never wait: the pool is shared by all topics and gets no compensating threads, so one slow
+ * subscriber would park its workers, and the wait would be taken for delivery cost. Recipients whose queue is full are
+ * returned instead, for the caller to wait for once it has released the lock.
+ */
+public class FanOut {
+	private static final int PARALLELISM = Integer.getInteger("pubsub.fanoutParallelism", Runtime.getRuntime().availableProcessors());
+	private static final ForkJoinPool pool = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null; // Null on a single core: always inline
+	private static final int MIN_THRESHOLD = 256;
+	private static final int MAX_THRESHOLD = 1 << 20;
+	private static final int MIN_CHUNK = 128;
+	private static final double WEIGHT = 0.05;                                                         // Weight of a new sample in the averages
+	private static final double MAX_SAMPLE = 4;                                                        // Samples are capped at this multiple of the average
+	private static volatile int threshold = Integer.getInteger("pubsub.fanoutThreshold", 2048);        // Recipients from which to split
+	private static volatile double nanosPerRecipient = 0;                                              // Average cost per recipient, 0 until measured
+	private static volatile double poolOverheadNanos = 0;                                              // Average fixed cost of a parallel fan-out
+
+	private FanOut() {}
+
+	/**
+	 * Hands a message to every recipient and waits until all of them have it.
+	 *
+	 * @param recipients the recipients
+	 * @param delivery   hands the message to a recipient without waiting, called at most once per recipient, possibly
+	 *                   from pool threads; returns true if the recipient's queue is now full
+	 * @return the recipients whose queue is full, to wait for once the caller's lock is released
+	 */
+	public static List<ClientHandler> deliver(ClientHandler[] recipients, Predicate<ClientHandler> delivery) {
+		int count = recipients.length;
+		long start = System.nanoTime();
+		if (pool == null || count < threshold) {
+			List<ClientHandler> full = List.of();
+			for (ClientHandler recipient : recipients) {
+				if (delivery.test(recipient)) {
+					if (full.isEmpty()) {
+						full = new ArrayList<>();
+					}
+					full.add(recipient);
+				}
+			}
+			if (count >= MIN_CHUNK) { // Too few recipients give a noisy per-recipient cost
+				nanosPerRecipient = average(nanosPerRecipient, (double) (System.nanoTime() - start) / count);
+				adapt();
+			}
+			return full;
+		}
+
+		int chunk = Math.max(MIN_CHUNK, count / (PARALLELISM * 4)); // A few chunks per thread, so idle threads can steal
+		LongAdder work = new LongAdder();
+		ConcurrentLinkedQueue<ClientHandler> full = new ConcurrentLinkedQueue<>();
+		pool.invoke(new Chunk(recipients, 0, count, chunk, delivery, work, full));
+		double overhead = (System.nanoTime() - start) - (double) work.sum() / PARALLELISM;
+		nanosPerRecipient = average(nanosPerRecipient, (double) work.sum() / count);
+		poolOverheadNanos = average(poolOverheadNanos, Math.max(1, overhead));
+		adapt();
+		return full.isEmpty() ? List.of() : new ArrayList<>(full);
+	}
+
+	/**
+	 * Moves the threshold to where parallel delivery becomes faster than inline delivery:
+	 * count * cost > count * cost / parallelism + overhead.
+	 * Updates from concurrent fan-outs may overwrite each other; the averages only need to be roughly right.
+	 */
+	private static void adapt() {
+		if (pool == null || nanosPerRecipient <= 0 || poolOverheadNanos <= 0) {
+			return;
+		}
+		double breakEven = poolOverheadNanos / (nanosPerRecipient * (1 - 1.0 / PARALLELISM));
+		threshold = (int) Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, breakEven));
+	}
+
+	/**
+	 * Moves an average towards a new sample. Samples are capped, so that a stall (a garbage collection, a preempted
+	 * thread) cannot swing the threshold on its own, while a lasting change still gets through in a few fan-outs.
+	 */
+	private static double average(double average, double sample) {
+		return average == 0 ? sample : average + WEIGHT * (Math.min(sample, MAX_SAMPLE * average) - average);
+	}
+
+	/**
+	 * Describes the fan-out configuration for the metrics report.
+	 *
+	 * @return the parallelism and the current threshold
+	 */
+	public static String describe() {
+		if (pool == null) {
+			return "inline only (1 core, see pubsub.fanoutParallelism)";
+		}
+		return PARALLELISM + " threads from " + threshold + " recipients" + (nanosPerRecipient > 0 ? String.format(
+		    " (%.0fns per recipient, %.0fus pool overhead)", nanosPerRecipient, poolOverheadNanos / 1000) : "");
+	}
+
+	/**
+	 * A range of recipients, split in halves until it is small enough to deliver to.
+	 */
+	private static class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;  // Never serialized, declared because ForkJoinTask is Serializable
+		private final ClientHandler[] recipients;
+		private final int from;
+		private final int to;
+		private final int chunk;
+		private final Predicate<ClientHandler> delivery;
+		private final LongAdder work;                   // Time spent delivering, summed over chunks
+		private final ConcurrentLinkedQueue<ClientHandler> full;
+
+		private Chunk(ClientHandler[] recipients, int from, int to, int chunk, Predicate<ClientHandler> delivery, LongAdder work,
+		              ConcurrentLinkedQueue<ClientHandler> full) {
+			this.recipients = recipients;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.delivery = delivery;
+			this.work = work;
+			this.full = full;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunk) {
+				long start = System.nanoTime();
+				for (int i = from; i < to; i++) {
+					if (delivery.test(recipients[i])) {
+						full.add(recipients[i]);
+					}
+				}
+				work.add(System.nanoTime() - start);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Chunk(recipients, from, middle, chunk, delivery, work, full), new Chunk(recipients, middle, to, chunk, delivery, work, full));
+		}
+	}
+}
@@ -0,0 +1,461 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Federation class links Server nodes so clients connected to any node share the same topics.
+ * Nodes listen for each other on a separate federation port and exchange topic interest: each node tells its peers
+ * which topics it has subscribers on. A message published on a node is forwarded only to the peers interested in its
+ * topic, where it is stored and delivered to their subscribers like a local publish.
+ *
+ * Nodes are meant to be linked as a full mesh (every node to every other). A node forwards only the messages its own
+ * clients published, never relayed ones, so a message crosses at most one link and cannot loop; links carry the origin
+ * node of each message, and a node drops any message that claims to come from itself. Two nodes keep one link between
+ * them: when both dial each other, the link dialed by the node whose name sorts first is kept.
+ *
+ * Each link has a writer that drains everything queued for the peer into one write and one flush, so publishes in a
+ * burst share segments and system calls. A peer too slow to keep up with LINK_QUEUE_LIMIT queued lines is dropped; its
+ * link is then dialed again and the interest exchanged afresh.
+ *
+ * Message IDs, durable subscriptions, shared groups, partitions and conflation remain per node: a partitioned or
+ * conflated topic has to be configured alike on every node.
+ */
+public class Federation {
+	private static final int PORT = Integer.getInteger("pubsub.federationPort", 0);                          // 0: do not accept links
+	private static final int LINK_QUEUE_LIMIT = Integer.getInteger("pubsub.linkQueueLimit", 100_000);       // Lines queued for a peer
+	private static final int MAX_BATCH = 1024;                                                              // Lines per write
+	private static final long REDIAL_MILLIS = 2000;                                                         // Delay before dialing a lost peer again
+	private static final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();                  // peer node name : link
+	private static final CopyOnWriteArrayList<Peer> peers = new CopyOnWriteArrayList<>();                   // Addresses this node dials
+	private static final Set<String> localInterest = new HashSet<>();                                       // Topics with subscribers here, guarded by itself
+	private static volatile String nodeName = null;                                                        // Null until started
+	private static volatile Server server;
+	private static ServerSocket listener;
+
+	private Federation() {}
+
+	/**
+	 * Starts the federation: accepts links on -Dpubsub.federationPort if set, and dials the peers listed in
+	 * -Dpubsub.peers (comma-separated host:port of their federation ports).
+	 *
+	 * @param server     the server whose pool, timer wheel and topics to use
+	 * @param clientPort the server's client port, part of the default node name
+	 */
+	public static void start(Server server, int clientPort) {
+		String peerList = System.getProperty("pubsub.peers", "").trim();
+		if (PORT == 0 && peerList.isEmpty()) {
+			return;
+		}
+		Federation.server = server;
+		nodeName = System.getProperty("pubsub.nodeName", hostName() + ":" + clientPort);
+		if (PORT != 0) {
+			try {
+				listener = new ServerSocket(PORT);
+				server.execute(Federation::acceptLinks);
+			} catch (IOException e) {
+				System.out.println("> Error opening federation port " + PORT + ": " + e.getMessage());
+			}
+		}
+		for (String peer : peerList.split(",")) {
+			String[] address = peer.trim().split(":");
+			if (address.length == 2 && address[1].matches("\\d{1,5}")) {
+				addPeer(address[0], Integer.parseInt(address[1]));
+			} else if (!peer.isBlank()) {
+				System.out.println("> Ignoring peer '" + peer.trim() + "': expected <host>:<port>.");
+			}
+		}
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			return "localhost";
+		}
+	}
+
+	public static boolean isEnabled() { return nodeName != null; }
+
+	public static String getNodeName() { return nodeName; }
+
+	/**
+	 * Adds a peer to dial, now and whenever its link is lost.
+	 *
+	 * @param host the peer's host
+	 * @param port the peer's federation port
+	 */
+	public static void addPeer(String host, int port) {
+		Peer peer = new Peer(host, port);
+		peers.add(peer);
+		dial(peer);
+	}
+
+	/**
+	 * Dials a peer unless a link to it is up, then checks again after REDIAL_MILLIS.
+	 */
+	private static void dial(Peer peer) {
+		if (!server.isRunning()) {
+			return;
+		}
+		Link current = peer.name == null ? null : links.get(peer.name);
+		if (current == null || current.closed) {
+			try {
+				server.execute(() -> {
+					try {
+						Socket socket = new Socket();
+						socket.connect(new InetSocketAddress(peer.host, peer.port), (int) REDIAL_MILLIS);
+						peer.lastError = null;
+						handshake(socket, peer);
+					} catch (IOException e) {
+						peer.lastError = e.getMessage();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				return; // Server is quitting
+			}
+		}
+		server.getTimerWheel().schedule(() -> dial(peer), REDIAL_MILLIS);
+	}
+
+	/**
+	 * Accepts links dialed by peers, on the server pool.
+	 */
+	private static void acceptLinks() {
+		System.out.println("--- FEDERATION NODE '" + nodeName + "' LISTENING ON PORT " + PORT + " ---");
+		while (server.isRunning()) {
+			try {
+				Socket socket = listener.accept();
+				server.execute(() -> {
+					try {
+						handshake(socket, null);
+					} catch (IOException e) {
+						System.out.println("> Federation handshake failed: " + e.getMessage());
+					}
+				});
+			} catch (IOException | RejectedExecutionException e) {
+				break; // Listener closed, server is quitting
+			}
+		}
+	}
+
+	/**
+	 * Exchanges node names over a new connection and, if the peer is acceptable, runs the link on this thread.
+	 *
+	 * @param socket the connection
+	 * @param dialed the peer this node dialed, or null if the peer dialed
+	 */
+	private static void handshake(Socket socket, Peer dialed) throws IOException {
+		socket.setTcpNoDelay(true); // The writer batches on its own
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		out.write("HELLO " + nodeName + "\n");
+		out.flush();
+		String hello = in.readLine();
+		if (hello == null || !hello.startsWith("HELLO ") || hello.length() == 6) {
+			socket.close();
+			return;
+		}
+		String name = hello.substring(6).trim();
+		if (name.equals(nodeName)) {
+			System.out.println("> Refused federation link with '" + name + "': same node name as this node.");
+			socket.close();
+			return;
+		}
+		if (dialed != null) {
+			dialed.name = name;
+		}
+
+		Link link = new Link(name, socket, out, dialed == null ? name : nodeName);
+		if (!register(link)) {
+			socket.close();
+			return;
+		}
+		System.out.println("> Federation link up with node '" + name + "' (" + socket.getRemoteSocketAddress() + ").");
+		try {
+			server.execute(link::write);
+			link.read(in);
+		} catch (RejectedExecutionException e) {
+			// Server is quitting
+		} finally {
+			close(link);
+			System.out.println("> Federation link down with node '" + name + "'.");
+		}
+	}
+
+	/**
+	 * Keeps a new link unless a preferred one to the same node is up: the one dialed by the node whose name sorts
+	 * first, or else the newer one. Both nodes apply the same rule, so they keep the same link.
+	 * Sends the new link this node's current interest.
+	 *
+	 * @return whether the link was kept
+	 */
+	private static boolean register(Link link) {
+		String first = nodeName.compareTo(link.node) < 0 ? nodeName : link.node;
+		synchronized (localInterest) {
+			Link existing = links.get(link.node);
+			if (existing != null && !existing.closed && existing.dialer.equals(first) && !link.dialer.equals(first)) {
+				return false;
+			}
+			links.put(link.node, link);
+			for (String topic : localInterest) {
+				link.send("SUB " + topic);
+			}
+			if (existing != null) {
+				close(existing);
+			}
+			return true;
+		}
+	}
+
+	private static void close(Link link) {
+		link.closed = true;
+		links.remove(link.node, link);
+		link.outgoing.offer(Link.CLOSE); // Wakes the writer, whether or not there is room left
+		try {
+			link.socket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Updates the interest advertised to peers after a subscriber registered on or left a topic.
+	 *
+	 * @param topic the topic, or a partition
+	 */
+	public static void interestChanged(String topic) {
+		if (!isEnabled()) {
+			return;
+		}
+		synchronized (localInterest) { // Serialized, so peers always end up with the latest state
+			boolean interested = TopicStats.of(topic).getSubscribers() > 0;
+			if (interested ? localInterest.add(topic) : localInterest.remove(topic)) {
+				for (Link link : links.values()) {
+					link.send((interested ? "SUB " : "UNSUB ") + topic);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forwards a message published on this node to the peers with subscribers on its topic, or on the partitioned
+	 * topic it belongs to. Called under the topic's lock, so each peer receives a topic's messages in order.
+	 *
+	 * @param message   the message
+	 * @param ttlMillis the message's time to live, 0 for none
+	 */
+	public static void forward(Message message, long ttlMillis) {
+		if (links.isEmpty()) {
+			return;
+		}
+		String topic = message.getTopic();
+		String wholeTopic = PartitionedTopics.baseOf(topic);
+		String line = null;
+		for (Link link : links.values()) {
+			if (link.remoteInterest.contains(topic) || (wholeTopic != null && link.remoteInterest.contains(wholeTopic))) {
+				if (line == null) { // Body last: it may contain spaces
+					line = "PUB " + nodeName + " " + message.getUserID() + " " + ttlMillis + " " + (message.getKey() == null ? "-" : message.getKey())
+					    + " " + topic + " " + message.getBody();
+				}
+				link.send(line);
+				link.forwarded.increment();
+			}
+		}
+	}
+
+	/**
+	 * Handles a line received from a peer.
+	 */
+	private static void received(Link link, String line) {
+		if (line.startsWith("PUB ")) {
+			String[] fields = line.split(" ", 7); // PUB origin userID ttl key topic body
+			if (fields.length < 7 || fields[1].equals(nodeName) || !fields[2].matches("-?\\d{1,9}") || !fields[3].matches("\\d{1,18}")) {
+				return; // Malformed, or our own message coming back
+			}
+			link.relayed.increment();
+			ClientHandler.storeRelayed(server, fields[1], Integer.parseInt(fields[2]), fields[5], fields[6], Long.parseLong(fields[3]),
+			                           fields[4].equals("-") ? null : fields[4]);
+		} else if (line.startsWith("SUB ")) {
+			link.remoteInterest.add(line.substring(4));
+		} else if (line.startsWith("UNSUB ")) {
+			link.remoteInterest.remove(line.substring(6));
+		}
+	}
+
+	/**
+	 * Closes every link and the federation port when the server shuts down.
+	 */
+	public static void stop() {
+		if (!isEnabled()) {
+			return;
+		}
+		try {
+			if (listener != null) {
+				listener.close();
+			}
+		} catch (IOException e) {
+			System.out.println("> Error closing federation port: " + e.getMessage());
+		}
+		for (Link link : links.values()) {
+			close(link);
+		}
+	}
+
+	/**
+	 * Describes the links for the "links" command.
+	 *
+	 * @return one line per link and per peer that is not linked
+	 */
+	public static String describe() {
+		if (!isEnabled()) {
+			return "> Federation is off (enable with -Dpubsub.federationPort=<port> and/or -Dpubsub.peers=<host:port,...>).\n";
+		}
+		StringBuilder description = new StringBuilder();
+		description.append("> NODE '").append(nodeName).append("'").append(PORT == 0 ? "" : ", federation port " + PORT).append("\n");
+		for (var entry : new TreeMap<>(links).entrySet()) {
+			Link link = entry.getValue();
+			long batches = link.batches.sum();
+			description.append("\t> '").append(entry.getKey()).append("' ").append(link.socket.getRemoteSocketAddress())
+			    .append(link.dialer.equals(nodeName) ? " (dialed)" : " (accepted)")
+			    .append(": interested in ").append(link.remoteInterest.size()).append(" topics, ")
+			    .append(link.forwarded.sum()).append(" forwarded in ").append(batches).append(" writes")
+			    .append(batches == 0 ? "" : String.format(" (%.1f lines per write)", (double) link.lines.sum() / batches))
+			    .append(", ").append(link.relayed.sum()).append(" relayed, ").append(link.outgoing.size()).append(" queued\n");
+		}
+		for (Peer peer : peers) {
+			if (peer.name == null || !links.containsKey(peer.name)) {
+				description.append("\t> ").append(peer.host).append(":").append(peer.port).append(": not linked")
+				    .append(peer.lastError == null ? "" : " (" + peer.lastError + ")").append("\n");
+			}
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Sums the messages forwarded and relayed over all links, for the metrics report.
+	 *
+	 * @return the summary
+	 */
+	public static String summary() {
+		if (!isEnabled()) {
+			return "off";
+		}
+		long forwarded = 0, relayed = 0;
+		for (Link link : links.values()) {
+			forwarded += link.forwarded.sum();
+			relayed += link.relayed.sum();
+		}
+		return "node '" + nodeName + "', " + links.size() + " links, " + forwarded + " forwarded, " + relayed + " relayed (current links)";
+	}
+
+	/**
+	 * An address this node dials, and the name of the node found there.
+	 */
+	private static class Peer {
+		private final String host;
+		private final int port;
+		private volatile String name = null;       // Learnt in the handshake
+		private volatile String lastError = null;
+
+		private Peer(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * A link to a peer node: the lines queued for it and the topics it has subscribers on.
+	 */
+	private static class Link {
+		private static final String CLOSE = "";                                                    // Tells the writer to stop
+		private final String node;
+		private final Socket socket;
+		private final BufferedWriter out;
+		private final String dialer;                                                               // Node that dialed the link
+		private final BlockingQueue<String> outgoing = new ArrayBlockingQueue<>(LINK_QUEUE_LIMIT + 1); // One spare slot for CLOSE
+		private final Set<String> remoteInterest = ConcurrentHashMap.newKeySet();
+		private final LongAdder forwarded = new LongAdder();
+		private final LongAdder relayed = new LongAdder();
+		private final LongAdder batches = new LongAdder();
+		private final LongAdder lines = new LongAdder();
+		private volatile boolean closed = false;
+
+		private Link(String node, Socket socket, BufferedWriter out, String dialer) {
+			this.node = node;
+			this.socket = socket;
+			this.out = out;
+			this.dialer = dialer;
+		}
+
+		/**
+		 * Queues a line for the peer, dropping the link if the peer has fallen too far behind.
+		 */
+		private void send(String line) {
+			if (closed) {
+				return;
+			}
+			if (outgoing.remainingCapacity() <= 1 || !outgoing.offer(line)) {
+				System.out.println("> Federation link with node '" + node + "' dropped: " + LINK_QUEUE_LIMIT + " lines queued.");
+				close(this);
+			}
+		}
+
+		/**
+		 * Writes queued lines until the link closes: everything queued at once goes out in one write and one flush.
+		 */
+		private void write() {
+			List<String> batch = new ArrayList<>();
+			try {
+				while (!closed) {
+					batch.add(outgoing.take());
+					outgoing.drainTo(batch, MAX_BATCH - 1);
+					for (String line : batch) {
+						if (line == CLOSE) {
+							return;
+						}
+						out.write(line);
+						out.write('\n');
+					}
+					out.flush();
+					batches.increment();
+					lines.add(batch.size());
+					batch.clear();
+				}
+			} catch (IOException | InterruptedException e) {
+				close(this);
+			}
+		}
+
+		/**
+		 * Reads the peer's lines until the link closes.
+		 */
+		private void read(BufferedReader in) {
+			try {
+				String line;
+				while (!closed && (line = in.readLine()) != null) {
+					received(this, line);
+				}
+			} catch (IOException e) {
+				// Link lost
+			}
+		}
+	}
+}
@@ -1,19 +1,37 @@
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Message class represents a message sent in a topic.
- * It contains a unique ID, the topic, the message content, and a timestamp.
+ * It contains an ID, the topic, the message content, a timestamp and, on conflated topics, an optional key.
+ * IDs are 64-bit sequence numbers counted per topic (each partition of a partitioned topic is a topic of its own), so
+ * publishes on different topics never contend for a counter; "<topic>@<ID>" identifies a message across topics.
+ * Messages are created under their topic's lock, so a topic's IDs follow its queue order without gaps.
+ * When the off-heap arena is enabled the content is kept in a {@link MessageArena} record and this object only
+ * holds a handle to it. The content of a message on a cold topic may also be spilled to disk by the {@link SpillStore},
+ * and is then read back from there until the topic is paged in again.
  */
 public class Message {
-	private static final AtomicInteger messageCounter = new AtomicInteger(0); // Unique ID for each message
-	private final int messageID;
+	private static final String SEPARATOR = "--------------------------------------------------------------------------------"; // Frames a message for display
+	private static final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<>(); // topic : ID sequence
+	private static final AtomicInteger topicCounter = new AtomicInteger(0);                       // Numbers topics for arena records
+	private final long messageID;
+	private final int topicNumber;                                            // Number of the topic's sequence, tags arena records
 	private final int userID;
-	private final String message;
+	private volatile String message;                                          // Null when the content is in the arena or spilled
+	private volatile long handle;                                             // Arena record, or -1 when the content is on the heap or spilled
+	private volatile long spillOffset = -1;                                   // Record in the topic's spill file, or -1 if not spilled
 	private final String topic;
-	private final Date timestamp = new Date();
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy - HH:mm:ss");
+	private final String key;                                                 // Last-value key, null if none
+	private final String origin;                                              // Node the message was published on, null for this node
+	private final long traceMicros;                                           // Publishing client's trace timestamp (epoch micros), 0 if none
+	private final int size;                                                   // Content size in UTF-8 bytes, for topic statistics
+	private final long timestamp = System.currentTimeMillis();
+	private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd/MM/yyyy - HH:mm:ss").withZone(ZoneId.systemDefault());
 
 	/**
 	 * Constructs a Message with the specified topic and content.
@@ -21,11 +39,50 @@ public class Message {
 	 * @param topic   the topic of the message
 	 * @param message the content of the message
 	 */
-	public Message(int userID, String topic, String message) {
-		this.messageID = messageCounter.getAndIncrement();
+	public Message(int userID, String topic, String message) { this(userID, topic, message, null); }
+
+	/**
+	 * Constructs a Message with a key, identifying the value it updates on a conflated topic.
+	 *
+	 * @param topic   the topic of the message
+	 * @param message the content of the message
+	 * @param key     the key, or null for a message without one
+	 */
+	public Message(int userID, String topic, String message, String key) { this(userID, topic, message, key, null); }
+
+	/**
+	 * Constructs a Message relayed from another node of a federation.
+	 *
+	 * @param userID  the publisher's ID on its own node
+	 * @param topic   the topic of the message
+	 * @param message the content of the message
+	 * @param key     the key, or null for a message without one
+	 * @param origin  the name of the node the message was published on, or null for this node
+	 */
+	public Message(int userID, String topic, String message, String key, String origin) { this(userID, topic, message, key, origin, 0); }
+
+	/**
+	 * Constructs a Message carrying the trace timestamp its publisher sent it with.
+	 *
+	 * @param userID      the publisher's ID on its own node
+	 * @param topic       the topic of the message
+	 * @param message     the content of the message
+	 * @param key         the key, or null for a message without one
+	 * @param origin      the name of the node the message was published on, or null for this node
+	 * @param traceMicros the publisher's send time in microseconds since the epoch, or 0 if it did not trace the message
+	 */
+	public Message(int userID, String topic, String message, String key, String origin, long traceMicros) {
+		Sequence sequence = sequences.computeIfAbsent(topic, t -> new Sequence(topicCounter.getAndIncrement()));
+		this.messageID = sequence.next.getAndIncrement();
+		this.topicNumber = sequence.topicNumber;
 		this.userID = userID;
 		this.topic = topic;
-		this.message = message.replaceAll("(.{80})", "$1\n"); // Wrap lines at 80 characters
+		this.key = key;
+		this.origin = origin;
+		this.traceMicros = traceMicros;
+		this.size = utf8Length(message);
+		this.handle = MessageArena.enabled ? MessageArena.store(topicNumber, messageID, message) : -1;
+		this.message = handle == -1 ? message : null;
 	}
 
 	/**
@@ -35,16 +92,207 @@ public class Message {
 	 */
 	@Override
 	public String toString() {
-		return "--------------------------------------------------------------------------------\n"
-		    + "USER-" + userID + " @ " + dateFormat.format(timestamp) + "\n"
-		    + "[ID " + messageID + " | TOPIC '" + topic + "']\n"
-		    + "BODY: " + message + "\n"
-		    + "--------------------------------------------------------------------------------\n";
+		return SEPARATOR + "\n"
+		    + "USER-" + userID + " @ " + dateFormat.format(Instant.ofEpochMilli(timestamp)) + (origin == null ? "" : " | NODE '" + origin + "'")
+		    + (traceMicros == 0 ? "" : " | TRACE " + traceMicros) + "\n"
+		    + "[ID " + messageID + " | TOPIC '" + topic + "'" + (key == null ? "" : " | KEY '" + key + "'") + "]\n"
+		    + "BODY: " + wrap(getBody()) + "\n"
+		    + SEPARATOR + "\n";
 	}
 
-	public int getId() { return messageID; }
+	/**
+	 * Wraps lines at 80 characters for display.
+	 * A line is never a frame separator (80 dashes), which would end the frame early for clients parsing it:
+	 * such a line is cut one character shorter. Clients join the lines back without separators, so this is lossless.
+	 *
+	 * @param body the message content
+	 * @return the wrapped content
+	 */
+	private static String wrap(String body) {
+		if (body.length() <= 80) {
+			return body;
+		}
+		StringBuilder wrapped = new StringBuilder(body.length() + body.length() / 40);
+		for (int i = 0; i < body.length(); ) {
+			int end = Math.min(body.length(), i + 80);
+			if (i > 0) {
+				wrapped.append('\n');
+				if (end - i == 80 && body.startsWith(SEPARATOR, i)) {
+					end--;
+				}
+			}
+			wrapped.append(body, i, end);
+			i = end;
+		}
+		return wrapped.toString();
+	}
+
+	/**
+	 * Counts the UTF-8 bytes of a string without encoding it.
+	 *
+	 * @param text the string
+	 * @return its length in UTF-8 bytes
+	 */
+	private static int utf8Length(String text) {
+		int bytes = text.length();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 0x800) {
+				bytes += Character.isSurrogate(c) ? 1 : 2; // A surrogate pair is 4 bytes for 2 chars
+			} else if (c >= 0x80) {
+				bytes++;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the ID of the most recently created message of a topic, or -1 if none has been created yet.
+	 *
+	 * @param topic the topic, or a partition
+	 * @return the last assigned message ID
+	 */
+	public static long lastAssignedId(String topic) {
+		Sequence sequence = sequences.get(topic);
+		return sequence == null ? -1 : sequence.next.get() - 1;
+	}
+
+	/**
+	 * Makes sure the next message IDs of a topic are greater than the given ID, e.g. offsets persisted by a previous
+	 * server run.
+	 *
+	 * @param topic     the topic, or a partition
+	 * @param messageID the ID that new messages must follow
+	 */
+	public static void ensureIdsAbove(String topic, long messageID) {
+		sequences.computeIfAbsent(topic, t -> new Sequence(topicCounter.getAndIncrement())).next.accumulateAndGet(messageID + 1, Math::max);
+	}
+
+	/**
+	 * Parses a message ID in its global form, "<topic>@<ID>".
+	 *
+	 * @param value the text to parse
+	 * @return the topic and the ID, or null if the text is not a global message ID
+	 */
+	public static GlobalId parseGlobalId(String value) {
+		int at = value.lastIndexOf('@');
+		if (at <= 0 || !value.substring(at + 1).matches("-?\\d{1,18}")) {
+			return null;
+		}
+		return new GlobalId(value.substring(0, at), Long.parseLong(value.substring(at + 1)));
+	}
+
+	/**
+	 * Frees the message's arena record once it has been removed from its topic. No-op for on-heap messages.
+	 */
+	public void release() {
+		long record = handle;
+		if (record != -1) {
+			MessageArena.free(record, topicNumber, messageID);
+		}
+	}
+
+	/**
+	 * Drops the in-memory content once it has been written to the topic's spill file. Called under the topic's lock.
+	 * The spill location is published before the content is dropped, so concurrent readers always find one of them.
+	 *
+	 * @param offset the record's offset in the spill file
+	 */
+	public void spilled(long offset) {
+		spillOffset = offset;
+		message = null;
+		long record = handle;
+		handle = -1;
+		if (record != -1) {
+			MessageArena.free(record, topicNumber, messageID);
+		}
+	}
+
+	/**
+	 * Restores the content read back from the spill file to the heap. Called under the topic's lock.
+	 *
+	 * @param body the content
+	 */
+	public void pagedIn(String body) {
+		message = body;
+		spillOffset = -1;
+	}
+
+	public boolean isSpilled() { return spillOffset != -1; }
+
+	public long spillOffset() { return spillOffset; }
+
+	public long getId() { return messageID; }
+
+	/** The ID in its global form, "<topic>@<ID>", unique across topics. */
+	public String getGlobalId() { return topic + "@" + messageID; }
 
 	public String getTopic() { return topic; }
 
+	public String getKey() { return key; }
+
 	public int getUserID() { return userID; }
+
+	/** The node the message was published on, or null if it was published on this node. */
+	public String getOrigin() { return origin; }
+
+	/** The publisher's trace timestamp in microseconds since the epoch, or 0 if the message is not traced. */
+	public long getTraceMicros() { return traceMicros; }
+
+	public long getTimestamp() { return timestamp; }
+
+	public int getSize() { return size; }
+
+	/**
+	 * Returns the message content, without the line wrapping added for display.
+	 *
+	 * @return the message content, or "(deleted)" if its arena record has already been freed
+	 */
+	public String getBody() {
+		String body = message;
+		if (body != null) {
+			return body;
+		}
+		long record = handle;
+		if (record != -1 && (body = MessageArena.read(record, topicNumber, messageID)) != null) {
+			return body;
+		}
+		long offset = spillOffset;
+		if (offset != -1 && (body = SpillStore.read(topic, offset)) != null) {
+			return body;
+		}
+		body = message; // Paged in meanwhile
+		return body == null ? "(deleted)" : body;
+	}
+
+	/**
+	 * A message ID in its global form: the topic and the ID within it.
+	 */
+	public static class GlobalId {
+		private final String topic;
+		private final long messageID;
+
+		private GlobalId(String topic, long messageID) {
+			this.topic = topic;
+			this.messageID = messageID;
+		}
+
+		public String getTopic() { return topic; }
+
+		public long getId() { return messageID; }
+
+		@Override
+		public String toString() { return topic + "@" + messageID; }
+	}
+
+	/**
+	 * A topic's ID sequence. The counter is only advanced under the topic's lock, so it is never contended;
+	 * it is atomic for the readers of the last assigned ID and for ensureIdsAbove().
+	 */
+	private static class Sequence {
+		private final int topicNumber;
+		private final AtomicLong next = new AtomicLong(0);
+
+		private Sequence(int topicNumber) { this.topicNumber = topicNumber; }
+	}
 }
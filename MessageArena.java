@@ -0,0 +1,165 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The MessageArena class stores message bodies off-heap, in slabs of direct memory.
+ * With millions of retained messages, keeping bodies out of the Java heap shrinks the object graph the garbage
+ * collector has to trace, which keeps old-generation pauses (and the fan-out latency spikes they cause) short.
+ *
+ * Records are allocated in power-of-two size classes: new records are carved from the current slab, and freed
+ * records go to their class's free list and are reused by later records of the same class.
+ * A record is [int topic number][int length][long messageID][UTF-8 body]. Message IDs are only unique within a topic,
+ * so a record is tagged with both. The topic number is cleared when the record is freed, so a reader racing with a
+ * delete sees that the message is gone instead of the bytes of whichever message reuses the space.
+ *
+ * Enabled with -Dpubsub.offHeap=true; slabs are -Dpubsub.arenaSlabKiB KiB each (default 1024).
+ */
+public class MessageArena {
+	public static final boolean enabled = Boolean.getBoolean("pubsub.offHeap");
+	private static final int SLAB_SIZE = Integer.getInteger("pubsub.arenaSlabKiB", 1024) * 1024;
+	private static final int MIN_CLASS = 5;                                                  // Smallest record: 32 bytes
+	private static final int HEADER = 16;
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final ArrayList<ByteBuffer> slabs = new ArrayList<>();                     // slab index : direct memory
+	private static final long[][] freeRecords = new long[32][];                               // size class : stack of free handles
+	private static final int[] freeCounts = new int[32];                                      // size class : free handles in the stack
+	private static int offset = SLAB_SIZE;                                                    // Next free byte in the last slab
+	private static long bytesInUse = 0;
+
+	private MessageArena() {}
+
+	/**
+	 * Copies a message body into the arena.
+	 *
+	 * @param topicNumber the number of the message's topic, used with the ID to detect reads of freed records
+	 * @param messageID   the ID of the message within its topic
+	 * @param body        the message body
+	 * @return the record's handle, or -1 if the body does not fit in a slab (it is then kept on the heap)
+	 */
+	public static long store(int topicNumber, long messageID, String body) {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		int sizeClass = sizeClass(HEADER + bytes.length);
+		if (1 << sizeClass > SLAB_SIZE) {
+			return -1;
+		}
+
+		long handle = allocate(sizeClass);
+		ByteBuffer slab = slabOf(handle);
+		int at = offset(handle);
+		slab.putInt(at + 4, bytes.length);
+		slab.putLong(at + 8, messageID);
+		slab.put(at + HEADER, bytes);
+		INT.setVolatile(slab, at, topicNumber); // Published last: readers only trust a record whose tag matches
+		return handle;
+	}
+
+	/**
+	 * Reads a message body back from the arena.
+	 *
+	 * @param handle      the record's handle
+	 * @param topicNumber the number of the topic of the message the record was stored for
+	 * @param messageID   the ID of the message the record was stored for
+	 * @return the body, or null if the record has been freed
+	 */
+	public static String read(long handle, int topicNumber, long messageID) {
+		ByteBuffer slab = slabOf(handle);
+		int at = offset(handle);
+		if (!holds(slab, at, topicNumber, messageID)) {
+			return null;
+		}
+		int length = slab.getInt(at + 4);
+		if (length < 0 || length > SLAB_SIZE - HEADER) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		slab.get(at + HEADER, bytes);
+		if (!holds(slab, at, topicNumber, messageID)) { // Freed and reused while copying
+			return null;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Checks a record's tag. The topic number is read first: once it matches, the ID written before it is visible.
+	 */
+	private static boolean holds(ByteBuffer slab, int at, int topicNumber, long messageID) {
+		return (int) INT.getVolatile(slab, at) == topicNumber && slab.getLong(at + 8) == messageID;
+	}
+
+	/**
+	 * Returns a record's space to its size class's free list.
+	 *
+	 * @param handle      the record's handle
+	 * @param topicNumber the number of the topic of the message the record was stored for
+	 * @param messageID   the ID of the message the record was stored for, so a record is never freed twice
+	 */
+	public static synchronized void free(long handle, int topicNumber, long messageID) {
+		ByteBuffer slab = slabs.get(slab(handle));
+		int at = offset(handle);
+		if (!holds(slab, at, topicNumber, messageID)) {
+			return;
+		}
+		INT.setVolatile(slab, at, -1);
+		int sizeClass = sizeClass(HEADER + slab.getInt(at + 4));
+		push(sizeClass, handle);
+		bytesInUse -= 1L << sizeClass;
+	}
+
+	private static synchronized long allocate(int sizeClass) {
+		int size = 1 << sizeClass;
+		bytesInUse += size;
+		if (freeCounts[sizeClass] > 0) {
+			return freeRecords[sizeClass][--freeCounts[sizeClass]];
+		}
+
+		if (offset + size > SLAB_SIZE) {
+			// Hand the rest of the current slab to the free lists, then start a new one
+			while (!slabs.isEmpty() && SLAB_SIZE - offset >= 1 << MIN_CLASS) {
+				int tail = 31 - Integer.numberOfLeadingZeros(SLAB_SIZE - offset);
+				push(tail, handle(slabs.size() - 1, offset));
+				offset += 1 << tail;
+			}
+			slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder()));
+			offset = 0;
+		}
+		long handle = handle(slabs.size() - 1, offset);
+		offset += size;
+		return handle;
+	}
+
+	private static void push(int sizeClass, long handle) {
+		if (freeRecords[sizeClass] == null) {
+			freeRecords[sizeClass] = new long[16];
+		} else if (freeCounts[sizeClass] == freeRecords[sizeClass].length) {
+			freeRecords[sizeClass] = Arrays.copyOf(freeRecords[sizeClass], freeCounts[sizeClass] * 2);
+		}
+		freeRecords[sizeClass][freeCounts[sizeClass]++] = handle;
+	}
+
+	private static synchronized ByteBuffer slabOf(long handle) { return slabs.get(slab(handle)); }
+
+	private static int sizeClass(int bytes) { return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(bytes - 1)); }
+
+	private static long handle(int slab, int offset) { return (long) slab << 32 | offset; }
+
+	private static int slab(long handle) { return (int) (handle >>> 32); }
+
+	private static int offset(long handle) { return (int) handle; }
+
+	/**
+	 * Describes the arena's memory usage, for the server's "metrics" command.
+	 *
+	 * @return the formatted usage, or a note that the arena is disabled
+	 */
+	public static synchronized String describe() {
+		if (!enabled) {
+			return "off (enable with -Dpubsub.offHeap=true)";
+		}
+		return (bytesInUse / 1024) + " KiB in use of " + ((long) slabs.size() * SLAB_SIZE / 1024) + " KiB in " + slabs.size() + " slabs";
+	}
+}
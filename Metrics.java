@@ -0,0 +1,107 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Metrics class holds server-wide counters.
+ * Counters are LongAdders so that hot paths can update them from many threads without contention.
+ */
+public class Metrics {
+	public static final LongAdder reapedConnections = new LongAdder();     // Sessions evicted by the idle reaper
+	public static final LongAdder heartbeatsSent = new LongAdder();        // PINGs sent to idle clients
+	public static final LongAdder throttledByConnection = new LongAdder(); // Publishes delayed by a per-connection limit
+	public static final LongAdder throttledByTopic = new LongAdder();      // Publishes delayed by a per-topic limit
+	public static final LongAdder throttledByGlobal = new LongAdder();     // Publishes delayed by the server-wide limit
+	public static final LongAdder filteredDeliveries = new LongAdder();    // Deliveries skipped because of a subscriber filter
+	public static final LongAdder conflatedMessages = new LongAdder();     // Stored values replaced by a newer value for the same key
+	public static final LongAdder conflatedFrames = new LongAdder();       // Queued deliveries superseded before being written
+	public static final Latency controlLatency = new Latency();            // Time control frames wait before being written
+	public static final Latency dataLatency = new Latency();               // Time data frames wait before being written
+	public static final Latency fanOutLatency = new Latency();             // Time to hand a message to all of its recipients
+	public static final ConcurrentHashMap<String, LongAdder> expiredMessages = new ConcurrentHashMap<>(); // topic : messages removed when their TTL passed
+
+	private Metrics() {}
+
+	/**
+	 * Builds a human-readable report of all counters.
+	 * Used by the server's "metrics" command.
+	 *
+	 * @return the formatted metrics report
+	 */
+	public static String report() {
+		return "--- METRICS ---\n"
+		    + "> CONNECTED CLIENTS:  " + ClientHandler.clientHandlers.size() + "\n"
+		    + "> HEARTBEATS SENT:    " + heartbeatsSent.sum() + "\n"
+		    + "> REAPED CONNECTIONS: " + reapedConnections.sum() + "\n"
+		    + "> THROTTLED (CONN):   " + throttledByConnection.sum() + "\n"
+		    + "> THROTTLED (TOPIC):  " + throttledByTopic.sum() + "\n"
+		    + "> THROTTLED (GLOBAL): " + throttledByGlobal.sum() + "\n"
+		    + "> FILTERED OUT:       " + filteredDeliveries.sum() + "\n"
+		    + "> CONFLATED (STORE):  " + conflatedMessages.sum() + "\n"
+		    + "> CONFLATED (SENDS):  " + conflatedFrames.sum() + "\n"
+		    + "> EXPIRED (TTL):      " + expiredMessages.values().stream().mapToLong(LongAdder::sum).sum() + "\n"
+		    + "> OFF-HEAP ARENA:     " + MessageArena.describe() + "\n"
+		    + "> MEMORY BUDGET:      " + SpillStore.describe() + "\n"
+		    + "> CONTROL LANE WAIT:  " + controlLatency + "\n"
+		    + "> DATA LANE WAIT:     " + dataLatency + "\n"
+		    + "> FAN-OUT TIME:       " + fanOutLatency + "\n"
+		    + "> FAN-OUT:            " + FanOut.describe() + "\n"
+		    + "> FEDERATION:         " + Federation.summary() + "\n"
+		    + "> REQUEST/REPLY:      " + RequestReply.describe() + "\n"
+		    + "--- END OF METRICS ---\n";
+	}
+
+	/**
+	 * A latency distribution: count, mean, maximum and a power-of-two histogram for percentiles.
+	 * Recording is lock-free so it can sit on hot paths.
+	 */
+	public static class Latency {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+		private final AtomicLongArray buckets = new AtomicLongArray(64); // i : samples in [2^(i-1), 2^i) nanoseconds
+
+		/**
+		 * Records one sample.
+		 *
+		 * @param nanos the latency in nanoseconds
+		 */
+		public void record(long nanos) {
+			nanos = Math.max(0, nanos);
+			count.increment();
+			total.add(nanos);
+			max.accumulate(nanos);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		}
+
+		/**
+		 * Returns an upper bound of a percentile, accurate to a factor of two.
+		 *
+		 * @param percentile the percentile, e.g. 99
+		 * @return the upper bound of the bucket holding the percentile, in nanoseconds
+		 */
+		public long percentile(double percentile) {
+			long samples = count.sum();
+			long rank = (long) Math.ceil(samples * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+				}
+			}
+			return max.get();
+		}
+
+		@Override
+		public String toString() {
+			long samples = count.sum();
+			if (samples == 0) {
+				return "no samples";
+			}
+			return samples + " samples, mean " + total.sum() / samples / 1000 + "us, p99 <= " + percentile(99) / 1000 + "us, max "
+			    + max.get() / 1000 + "us";
+		}
+	}
+}
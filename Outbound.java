@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The Outbound class is the outgoing side of one client connection, with two lanes.
+ * Control frames (inspect toggles, deletion and kick notices, heartbeats...) overtake data frames (message deliveries
+ * and command replies) that are still queued, so a client far behind on a backlog still learns about server state
+ * changes promptly. Frames are ordered within each lane, but not across lanes.
+ *
+ * Frames are written by a drain task on the server's pool, scheduled when a frame is queued to an idle connection,
+ * so a slow client no longer blocks the thread that produced the frame. The data lane is bounded: once it is full,
+ * producers wait for the client to catch up, as they did when they wrote to the socket directly. Producers holding a
+ * topic's lock never wait: they offer() the frame, which may exceed the bound by one frame per producer, and wait with
+ * awaitRoom() once the lock is released, so a slow client holds back the producer but never the topic.
+ *
+ * Data frames may carry a conflation key (a conflated topic's value key): a newer frame with the same key supersedes
+ * one that is still queued, so a slow client skips intermediate values instead of receiving every update.
+ * They may also carry a tag (a shared group's message), handed back by close() if the frame was never written.
+ */
+public class Outbound {
+	private static final int DATA_LIMIT = Integer.getInteger("pubsub.outboundLimit", 10_000); // Queued data frames before producers wait
+	private static final long CLOSE_TIMEOUT_MILLIS = 500;                                       // Time given to pending frames on close
+	private final ArrayDeque<Frame> control = new ArrayDeque<>();
+	private final ArrayDeque<Frame> data = new ArrayDeque<>();
+	private final HashMap<String, Frame> pendingByKey = new HashMap<>();                        // conflation key : queued data frame
+	private final ArrayList<Object> unsent = new ArrayList<>();                                  // Tags of the frames dropped when the connection closed
+	private final Writer writer;
+	private final Executor executor;
+	private final Runnable onFailure;
+	private final int owner;                                                                     // Client ID, for Flight Recorder events
+	private boolean draining = false;                                                            // Whether a drain task is scheduled or running
+	private boolean closed = false;
+
+	/**
+	 * Constructs the outgoing side of a connection.
+	 *
+	 * @param stream    the socket's output stream
+	 * @param executor  runs the drain tasks
+	 * @param onFailure called once if a write fails, e.g. to close the connection
+	 * @param owner     the ID of the client the connection belongs to
+	 */
+	public Outbound(OutputStream stream, Executor executor, Runnable onFailure, int owner) {
+		this.writer = new OutputStreamWriter(stream);
+		this.executor = executor;
+		this.onFailure = onFailure;
+		this.owner = owner;
+	}
+
+	/**
+	 * Queues a data frame: a message delivery or a command reply.
+	 * Waits while the data lane is full.
+	 *
+	 * @param text the frame, written followed by a line break
+	 */
+	public void println(Object text) { println(text, null); }
+
+	/**
+	 * Queues a data frame that supersedes any queued frame with the same conflation key.
+	 * The new frame is queued last, so frames stay in publish order; the superseded one is skipped.
+	 * Waits while the data lane is full.
+	 *
+	 * @param text           the frame, written followed by a line break
+	 * @param conflationKey  the key identifying the value the frame updates, or null for a frame that is always written
+	 */
+	public void println(Object text, String conflationKey) { println(text, conflationKey, null); }
+
+	/**
+	 * Queues a tagged data frame. Waits while the data lane is full.
+	 *
+	 * @param text          the frame, written followed by a line break
+	 * @param conflationKey the key identifying the value the frame updates, or null
+	 * @param tag           returned by close() if the frame is never written, or null
+	 */
+	public void println(Object text, String conflationKey, Object tag) {
+		if (awaitRoom()) {
+			offer(text, conflationKey, tag);
+		}
+	}
+
+	/**
+	 * Queues a data frame without waiting, even if the data lane is full. For producers holding a topic's lock, which
+	 * call awaitRoom() once they have released it when this returns true.
+	 *
+	 * @param text          the frame, written followed by a line break
+	 * @param conflationKey the key identifying the value the frame updates, or null
+	 * @param tag           returned by close() if the frame is never written, or null
+	 * @return true if the data lane is now full
+	 */
+	public boolean offer(Object text, String conflationKey, Object tag) {
+		boolean full;
+		synchronized (this) {
+			if (closed) {
+				if (tag != null) {
+					unsent.add(tag);
+				}
+				return false;
+			}
+			Frame frame = new Frame(String.valueOf(text), conflationKey, tag);
+			if (conflationKey != null) {
+				Frame superseded = pendingByKey.put(conflationKey, frame);
+				if (superseded != null) {
+					superseded.text = null;
+					Metrics.conflatedFrames.increment();
+				}
+			}
+			data.add(frame);
+			full = data.size() >= DATA_LIMIT;
+		}
+		schedule();
+		return full;
+	}
+
+	/**
+	 * Waits while the data lane is full, until the client catches up or the connection is closed.
+	 * Must not be called while holding a topic's lock.
+	 *
+	 * @return false if the thread was interrupted while waiting
+	 */
+	public boolean awaitRoom() {
+		synchronized (this) {
+			while (data.size() >= DATA_LIMIT && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a control frame, written before any queued data frame.
+	 *
+	 * @param text the frame, written followed by a line break
+	 */
+	public void printControl(String text) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			control.add(new Frame(text));
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		synchronized (this) {
+			if (draining) {
+				return;
+			}
+			draining = true;
+		}
+		executor.execute(this::drain);
+	}
+
+	/**
+	 * Writes queued frames, control lane first, until both lanes are empty.
+	 * Control frames are flushed immediately; data frames are flushed once the lanes are empty.
+	 */
+	private void drain() {
+		try {
+			boolean unflushed = false;
+			int frames = 0;                                                  // Frames written since the last flush
+			while (true) {
+				Frame frame;
+				String text;
+				boolean isControl;
+				synchronized (this) {
+					isControl = !control.isEmpty();
+					frame = isControl ? control.poll() : data.poll();
+					if (frame != null && frame.key != null) {
+						pendingByKey.remove(frame.key, frame); // Written from now on, no longer superseded
+					}
+					text = frame == null ? null : frame.text;
+					if (frame == null && !unflushed) {
+						draining = false;
+						notifyAll(); // Wakes close()
+						return;
+					}
+					if (!isControl && data.size() == DATA_LIMIT - 1) {
+						notifyAll(); // Wakes producers waiting for room
+					}
+				}
+
+				if (frame == null) { // Lanes empty: flush outside the lock, then check for frames queued meanwhile
+					flush(frames);
+					frames = 0;
+					unflushed = false;
+					continue;
+				}
+				if (text == null) { // Superseded by a newer value
+					continue;
+				}
+				writer.write(text);
+				writer.write('\n');
+				frames++;
+				if (isControl) {
+					flush(frames);
+					frames = 0;
+				}
+				unflushed = !isControl;
+				(isControl ? Metrics.controlLatency : Metrics.dataLatency).record(System.nanoTime() - frame.queuedAt);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				closed = true;
+				dropQueued();
+				draining = false;
+				notifyAll();
+			}
+			onFailure.run();
+		}
+	}
+
+	/**
+	 * Flushes the writer, recording the flush for Flight Recorder.
+	 *
+	 * @param frames the frames written since the last flush
+	 * @throws IOException if the client's connection fails
+	 */
+	private void flush(int frames) throws IOException {
+		Tracing.Flush event = new Tracing.Flush();
+		event.begin();
+		writer.flush();
+		if (event.shouldCommit()) {
+			event.userID = owner;
+			event.frames = frames;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Closes the outgoing side, giving pending frames (e.g. a kick notice) a short time to be written.
+	 * The caller closes the socket afterwards, which also unblocks a drain task stuck on an unresponsive client.
+	 *
+	 * @return the tags of the data frames that were never written
+	 */
+	public List<Object> close() {
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+		synchronized (this) {
+			while (draining && !closed) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					break;
+				}
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			closed = true;
+			dropQueued();
+			notifyAll();
+			List<Object> tags = new ArrayList<>(unsent);
+			unsent.clear();
+			return tags;
+		}
+	}
+
+	/**
+	 * Drops the queued frames, keeping the tags of the data frames that were never written.
+	 */
+	private void dropQueued() {
+		for (Frame frame : data) {
+			if (frame.tag != null && frame.text != null) {
+				unsent.add(frame.tag);
+			}
+		}
+		control.clear();
+		data.clear();
+		pendingByKey.clear();
+	}
+
+	/**
+	 * Returns the number of data frames waiting to be written, a measure of how far behind the client is.
+	 *
+	 * @return the data lane's depth
+	 */
+	public synchronized int depth() { return data.size(); }
+
+	/**
+	 * A queued frame and the time it was queued, to measure how long frames wait in each lane.
+	 */
+	private static class Frame {
+		private String text;                         // Guarded by the Outbound, null once superseded
+		private final String key;
+		private final Object tag;
+		private final long queuedAt = System.nanoTime();
+
+		private Frame(String text) { this(text, null, null); }
+
+		private Frame(String text, String key, Object tag) {
+			this.text = text;
+			this.key = key;
+			this.tag = tag;
+		}
+	}
+}
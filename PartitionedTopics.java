@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The PartitionedTopics class splits topics into partitions, so that a topic's traffic is not serialized
+ * on a single queue and a single lock.
+ * Partition p of topic "orders" is stored as an ordinary topic named "orders#p", with its own lock and indexes.
+ * A message published with a key goes to the partition the key hashes to, so messages with the same key keep their
+ * order; keyless messages are spread round-robin. Clients registered on "orders" publish to and receive from every
+ * partition, while clients registered on "orders#p" only see that partition, so consumers can split a topic's
+ * partitions between them.
+ *
+ * Message IDs are counted per partition, so reads across partitions merge the partitions by publish time.
+ */
+public class PartitionedTopics {
+	public static final int MAX_PARTITIONS = 64;
+	private static final ConcurrentHashMap<String, Integer> partitions = new ConcurrentHashMap<>();       // topic : number of partitions
+	private static final ConcurrentHashMap<String, AtomicInteger> roundRobin = new ConcurrentHashMap<>(); // topic : next partition for keyless messages
+
+	private PartitionedTopics() {}
+
+	/**
+	 * Creates a partitioned topic.
+	 *
+	 * @param topic the topic
+	 * @param count the number of partitions
+	 * @throws IllegalStateException    if the topic is already partitioned or already holds messages
+	 * @throws IllegalArgumentException if the number of partitions is out of range
+	 */
+	public static void create(String topic, int count) {
+		if (count < 2 || count > MAX_PARTITIONS) {
+			throw new IllegalArgumentException("A partitioned topic has 2 to " + MAX_PARTITIONS + " partitions.");
+		}
+		if (topic.contains("#")) {
+			throw new IllegalArgumentException("Partitioned topic names cannot contain '#'.");
+		}
+		if (partitions.containsKey(topic)) {
+			throw new IllegalStateException("Topic '" + topic + "' already has " + partitions.get(topic) + " partitions.");
+		}
+		ConcurrentLinkedQueue<Message> existing = ClientHandler.topics.get(topic);
+		if (existing != null && !existing.isEmpty()) {
+			throw new IllegalStateException("Topic '" + topic + "' already holds messages in a single order and cannot be partitioned.");
+		}
+
+		for (int p = 0; p < count; p++) {
+			ClientHandler.topics.computeIfAbsent(partition(topic, p), t -> new ConcurrentLinkedQueue<>());
+		}
+		partitions.put(topic, count);
+		if (existing != null) {
+			ClientHandler.topics.remove(topic, existing); // Clients already on the topic now publish to and receive from the partitions
+		}
+	}
+
+	public static boolean isPartitioned(String topic) { return partitions.containsKey(topic); }
+
+	/**
+	 * Returns the number of partitions of a topic.
+	 *
+	 * @param topic the topic
+	 * @return the number of partitions, 1 for a regular topic
+	 */
+	public static int count(String topic) { return partitions.getOrDefault(topic, 1); }
+
+	public static String partition(String topic, int partition) { return topic + "#" + partition; }
+
+	/**
+	 * Chooses where a message published on a topic is stored.
+	 *
+	 * @param topic the topic the publisher is registered on
+	 * @param key   the message key, or null
+	 * @return the partition the key hashes to (round-robin without a key), or the topic itself if it is not partitioned
+	 */
+	public static String route(String topic, String key) {
+		Integer count = partitions.get(topic);
+		if (count == null) {
+			return topic;
+		}
+		int partition = key != null ? Math.floorMod(key.hashCode(), count)
+		                            : Math.floorMod(roundRobin.computeIfAbsent(topic, t -> new AtomicInteger()).getAndIncrement(), count);
+		return partition(topic, partition);
+	}
+
+	/**
+	 * Returns the names under which a topic's messages are stored: its partitions, or the topic itself.
+	 *
+	 * @param topic the topic
+	 * @return the storage topics, in partition order
+	 */
+	public static List<String> storageTopics(String topic) {
+		Integer count = partitions.get(topic);
+		if (count == null) {
+			return List.of(topic);
+		}
+		ArrayList<String> names = new ArrayList<>(count);
+		for (int p = 0; p < count; p++) {
+			names.add(partition(topic, p));
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the partitioned topic a storage topic is a partition of.
+	 *
+	 * @param storageTopic a topic name, e.g. "orders#2"
+	 * @return the partitioned topic, e.g. "orders", or null if the name is not a partition
+	 */
+	public static String baseOf(String storageTopic) {
+		int hash = storageTopic.lastIndexOf('#');
+		if (hash <= 0 || !storageTopic.substring(hash + 1).matches("\\d{1,2}")) {
+			return null;
+		}
+		String base = storageTopic.substring(0, hash);
+		Integer count = partitions.get(base);
+		return count != null && Integer.parseInt(storageTopic.substring(hash + 1)) < count ? base : null;
+	}
+
+	/**
+	 * Copies the retained messages of a topic, across all of its partitions if it is partitioned.
+	 *
+	 * @param topic the topic
+	 * @return the messages in publish order
+	 */
+	public static ArrayList<Message> snapshot(String topic) {
+		ArrayList<Message> messages = new ArrayList<>();
+		List<String> names = storageTopics(topic);
+		for (String name : names) {
+			SpillStore.pageIn(name);
+			ConcurrentLinkedQueue<Message> partition = ClientHandler.topics.get(name);
+			if (partition != null) {
+				synchronized (partition) { messages.addAll(partition); }
+			}
+		}
+		return names.size() > 1 ? inPublishOrder(messages) : messages;
+	}
+
+	/**
+	 * Finds the messages of a topic published within a time window, across all of its partitions if it is partitioned.
+	 *
+	 * @param topic  the topic
+	 * @param window the time window
+	 * @return the messages in publish order
+	 */
+	public static ArrayList<Message> snapshot(String topic, TimeIndex.Window window) {
+		ArrayList<Message> messages = new ArrayList<>();
+		List<String> names = storageTopics(topic);
+		for (String name : names) {
+			SpillStore.pageIn(name);
+			messages.addAll(window.messagesIn(name));
+		}
+		return names.size() > 1 ? inPublishOrder(messages) : messages;
+	}
+
+	/**
+	 * Sorts messages gathered from several partitions by publish time. Message IDs are counted per partition, so they
+	 * only order messages within a partition; messages published in the same millisecond keep their partition order.
+	 * Each partition is already in time order, and the sort (a stable TimSort) merges such runs rather than sorting from scratch.
+	 *
+	 * @param messages the partitions' messages, one partition after the other
+	 * @return the same list, in publish order
+	 */
+	public static ArrayList<Message> inPublishOrder(ArrayList<Message> messages) {
+		messages.sort(Comparator.comparingLong(Message::getTimestamp));
+		return messages;
+	}
+
+	public static Map<String, Integer> all() { return new TreeMap<>(partitions); }
+}
@@ -0,0 +1,1200 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PubSubClient class is the programmatic client API, independent of any console I/O.
+ * It can be embedded in other JVM applications: commands are queued and written by a dedicated writer thread,
+ * so publishing never blocks the caller and many requests can be in flight (pipelined) at once.
+ * A dedicated reader thread parses server output, answers heartbeats, completes pending futures
+ * and hands delivered messages to listeners and to a {@link Flow.Publisher}.
+ *
+ * The writer thread coalesces lines into batches written with a single flush. A line sent after a pause goes out
+ * immediately; during a burst the writer lingers for the next lines, for a few of the recently observed gaps between
+ * lines and never more than pubsub.lingerMicros in all, or until pubsub.batchBytes are pending.
+ *
+ * The server answers a connection's commands in order, so replies are matched to requests first-in first-out.
+ *
+ * When the connection drops, the client reconnects with exponential backoff and re-registers with a resume point
+ * (the last message ID seen on its topic), so the server sends only the messages missed in between.
+ *
+ * A durable subscription keeps its resume point server-side instead: deliveries are acknowledged once the listeners
+ * have returned, in batches, and a consumer attaching to the subscription again (even from another process) receives
+ * everything after the last acknowledged message.
+ */
+public class PubSubClient implements AutoCloseable {
+	private static final String SEPARATOR = "--------------------------------------------------------------------------------";
+	private static final long INITIAL_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 30_000;
+	private static final int ACK_BATCH = 64;                                                                    // Deliveries acknowledged at once, at most
+	private static final long MAX_LINGER_NANOS = Long.getLong("pubsub.lingerMicros", 1000) * 1000;             // Longest wait for more lines, 0 disables
+	private static final int BATCH_BYTES = Integer.getInteger("pubsub.batchBytes", 16 * 1024);                 // Pending characters that trigger a write
+	private static final long MIN_WAIT_NANOS = 10_000;                                                          // Shortest wait for the next line of a burst
+	private final SocketAddress address;
+	private final LinkedBlockingDeque<String> outbound = new LinkedBlockingDeque<>();                          // Lines waiting for the writer thread
+	private final ConcurrentLinkedQueue<CompletableFuture<Delivery>> pendingPublishes = new ConcurrentLinkedQueue<>(); // Awaiting "> MESSAGE SENT:"
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> pendingRegistrations = new ConcurrentLinkedQueue<>(); // Awaiting registration reply
+	private final ConcurrentHashMap<String, CompletableFuture<Reply>> pendingRequests = new ConcurrentHashMap<>(); // correlation ID : awaiting reply
+	private final AtomicLong requestCounter = new AtomicLong(0);                                                // Source of correlation IDs
+	private final ConcurrentHashMap<String, Long> lastSeenIds = new ConcurrentHashMap<>();                      // topic or partition : last message ID seen
+	private final Set<String> conflatedTopics = ConcurrentHashMap.newKeySet();                                   // Topics or partitions whose IDs may skip
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+	private final SubmissionPublisher<Delivery> deliveries = new SubmissionPublisher<>();
+	private final CompletableFuture<Void> closed = new CompletableFuture<>();
+	private volatile Connection connection;                                                                     // Null while reconnecting
+	private volatile long backoffMillis = INITIAL_BACKOFF_MILLIS;                                               // Reset once a connection proves healthy
+	private volatile int reconnectAttempts = 0;
+	private volatile boolean reconnect = true;
+	private volatile boolean running = true;
+	private volatile boolean closing = false;                                                                   // close() requested, EOF is expected
+	private volatile boolean kicked = false;                                                                    // Kicked by the server, do not reconnect
+	private volatile Boolean isPublisher = null;
+	private volatile String topic = null;
+	private volatile String filter = null;                                                                      // Server-side filter spec, restored on reconnect
+	private volatile String durableName = null;                                                                 // Durable subscription consumed, restored on reconnect
+	private volatile String groupName = null;                                                                   // Shared group joined, restored on reconnect
+	private volatile long replayedUpTo = -1;                                                                    // Deliveries up to this ID were seen before a reconnection
+	private int unacked = 0;                                                                                    // Reader thread only: deliveries not yet acknowledged
+	private long lastLineNanos = System.nanoTime();                                                             // Writer thread only: when the last line was taken
+	private long gapNanos = Long.MAX_VALUE / 2;                                                                 // Writer thread only: moving average of the gaps between lines
+	private volatile long linesWritten = 0;                                                                     // Written by the writer thread only
+	private volatile long charsWritten = 0;
+	private volatile long writes = 0;                                                                           // Flushes, i.e. batches
+	private volatile long lingeredWrites = 0;                                                                   // Batches the writer waited for
+	private volatile long lingerNanos = 0;                                                                      // Total time spent waiting for more lines
+	private long lastDelivered = -1;                                                                            // Reader thread only: last delivery to acknowledge
+	private volatile boolean isServerInspecting = false;
+	private volatile boolean tracing = false;                                                                   // Stamp published messages with their send time
+
+	/**
+	 * Callbacks for events received from the server. All methods run on the reader thread and must not block for long.
+	 */
+	public interface Listener {
+		/** Any line of regular server output, including message frames and command replies. */
+		default void onLine(String line) {}
+
+		/** A message published on the current topic, including this client's own messages. */
+		default void onDelivery(Delivery delivery) {}
+
+		/**
+		 * Messages were published on a topic but not delivered to this subscriber, e.g. deleted or expired before a resume.
+		 * Detected from the per-topic message IDs, which have no gaps on the server.
+		 * Not reported while a filter is set, in a shared group or on a conflated topic, where skipped messages are expected.
+		 */
+		default void onGap(String topic, long firstMissed, long lastMissed) {}
+
+		/**
+		 * A request routed to this subscriber by another client's {@link #request}. Answer it with {@link Request#reply},
+		 * from any thread, before the requester's timeout.
+		 */
+		default void onRequest(Request request) {}
+
+		/** The server started or stopped inspecting the current topic. */
+		default void onInspectChange(boolean isInspecting) {}
+
+		/** The server is delaying this client's messages because a rate limit was reached. */
+		default void onThrottle(long millis, String scope) {}
+
+		/** The connection was lost and a reconnection attempt will be made after the given delay. */
+		default void onReconnecting(int attempt, long delayMillis, Exception cause) {}
+
+		/** The connection was re-established and the registration resumed. */
+		default void onReconnected() {}
+
+		/** The client was closed, or the connection was lost with reconnection disabled. The cause is null for a normal close. */
+		default void onDisconnect(Exception cause) {}
+
+		/** A line from the server could not be handled, because it was malformed or a listener failed on it. The line is skipped. */
+		default void onError(String line, RuntimeException e) {}
+	}
+
+	/**
+	 * Constructs a PubSubClient on an already connected socket and starts its I/O threads.
+	 * Reconnections dial the same remote address.
+	 *
+	 * @param socket the socket connection to the server
+	 * @throws IOException if the socket streams cannot be opened
+	 */
+	public PubSubClient(Socket socket) throws IOException {
+		this.address = socket.getRemoteSocketAddress();
+		this.connection = new Connection(socket, socket.getInputStream(), socket.getOutputStream(), List.of());
+		connection.start();
+	}
+
+	/**
+	 * Constructs a PubSubClient on a connected Unix domain socket. Reconnections use the same socket file.
+	 *
+	 * @param socket the connection to the server
+	 * @param path   the server's socket file
+	 */
+	private PubSubClient(UnixSocket socket, Path path) {
+		this.address = UnixDomainSocketAddress.of(path);
+		this.connection = new Connection(socket, socket.getInputStream(), socket.getOutputStream(), List.of());
+		connection.start();
+	}
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param host the server host name
+	 * @param port the server port
+	 * @return the connected client
+	 * @throws IOException if the connection cannot be established
+	 */
+	public static PubSubClient connect(String host, int port) throws IOException { return new PubSubClient(new Socket(host, port)); }
+
+	/**
+	 * Connects to a server on the same host through its Unix domain socket (see the server's pubsub.unixSocket).
+	 *
+	 * @param path the server's socket file
+	 * @return the connected client
+	 * @throws IOException if nothing listens on the file
+	 */
+	public static PubSubClient connect(Path path) throws IOException { return new PubSubClient(UnixSocket.connect(path), path); }
+
+	public void addListener(Listener listener) { listeners.add(listener); }
+
+	/**
+	 * Enables or disables automatic reconnection (enabled by default).
+	 *
+	 * @param reconnect whether to reconnect when the connection drops
+	 */
+	public void setReconnect(boolean reconnect) { this.reconnect = reconnect; }
+
+	/**
+	 * Returns a publisher of the messages delivered on the current topic.
+	 * Slow subscribers slow down the reader thread, which in turn applies TCP backpressure to the server.
+	 *
+	 * @return the delivery publisher
+	 */
+	public Flow.Publisher<Delivery> deliveries() { return deliveries; }
+
+	/**
+	 * Registers as a publisher on a topic.
+	 *
+	 * @param topic the topic, spaces are replaced by underscores server-side
+	 * @return a future completed when the server confirms the registration
+	 */
+	public CompletableFuture<Void> registerPublisher(String topic) { return register(true, topic); }
+
+	/**
+	 * Registers as a subscriber on a topic.
+	 *
+	 * @param topic the topic, spaces are replaced by underscores server-side
+	 * @return a future completed when the server confirms the registration
+	 */
+	public CompletableFuture<Void> registerSubscriber(String topic) { return register(false, topic); }
+
+	/**
+	 * Consumes a durable subscription, creating it if needed. A new subscription starts after the last message
+	 * published so far; an existing one first replays every message after its last acknowledged one.
+	 * Deliveries are acknowledged automatically once the listeners have returned, so a message whose processing
+	 * is interrupted by a crash is delivered again (at least once).
+	 *
+	 * @param name  the subscription name: letters, digits, '_', '-' and '.'
+	 * @param topic the topic, spaces are replaced by underscores server-side
+	 * @return a future completed when the server confirms the registration
+	 */
+	public CompletableFuture<Void> subscribeDurable(String name, String topic) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		synchronized (pendingRegistrations) {
+			isPublisher = false;
+			this.topic = topic.trim().replaceAll("\\s+", "_");
+			durableName = name;
+			groupName = null;
+			replayedUpTo = -1;
+			pendingRegistrations.offer(future);
+			enqueue("durable " + name + " " + topic);
+		}
+		return future;
+	}
+
+	/**
+	 * Subscribes as a member of a shared subscription group: each message on the topic is delivered to only one
+	 * member of the group, so several instances can share a topic's load. The membership is restored on reconnect;
+	 * messages that were given to this client but not yet written when it disconnected go to the other members.
+	 *
+	 * @param name  the group name: letters, digits, '_', '-' and '.'
+	 * @param topic the topic, spaces are replaced by underscores server-side
+	 * @return a future completed when the server confirms the registration
+	 */
+	public CompletableFuture<Void> joinGroup(String name, String topic) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		synchronized (pendingRegistrations) {
+			isPublisher = false;
+			this.topic = topic.trim().replaceAll("\\s+", "_");
+			durableName = null;
+			groupName = name;
+			pendingRegistrations.offer(future);
+			enqueue("group " + name + " " + topic);
+		}
+		return future;
+	}
+
+	private CompletableFuture<Void> register(boolean asPublisher, String topic) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		synchronized (pendingRegistrations) { // Queue order must match send order
+			isPublisher = asPublisher;
+			this.topic = topic.trim().replaceAll("\\s+", "_");
+			durableName = null;
+			groupName = null;
+			pendingRegistrations.offer(future);
+			enqueue((asPublisher ? "publish " : "subscribe ") + topic);
+		}
+		return future;
+	}
+
+	/**
+	 * Publishes a message on the current topic without waiting for the server.
+	 * Messages published while reconnecting are sent once the connection is back.
+	 *
+	 * @param body the message body, must be a single line
+	 * @return a future completed with the stored message once the server has broadcast it,
+	 *         or failed if the connection drops before the server confirms it
+	 */
+	public CompletableFuture<Delivery> publish(String body) { return publish(body, 0); }
+
+	/**
+	 * Publishes a message that the server discards once its time to live has passed.
+	 *
+	 * @param body      the message body, must be a single line
+	 * @param ttlMillis the time to live in milliseconds, 0 to keep the message until it is deleted
+	 * @return a future completed with the stored message once the server has broadcast it,
+	 *         or failed if the connection drops before the server confirms it
+	 */
+	public CompletableFuture<Delivery> publish(String body, long ttlMillis) { return publish(body, ttlMillis, null); }
+
+	/**
+	 * Publishes a message updating the value of a key. On a conflated topic it replaces the key's previous value,
+	 * and subscribers that have not received the previous value yet only receive this one.
+	 *
+	 * @param key  the key, a single word of at most 64 characters
+	 * @param body the message body, must be a single line
+	 * @return a future completed with the stored message once the server has broadcast it,
+	 *         or failed if the connection drops before the server confirms it
+	 */
+	public CompletableFuture<Delivery> publishKeyed(String key, String body) {
+		if (key.isEmpty() || key.length() > 64 || key.matches(".*\\s.*")) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("Key must be a single word of at most 64 characters"));
+		}
+		return publish(body, 0, key);
+	}
+
+	private CompletableFuture<Delivery> publish(String body, long ttlMillis, String key) {
+		if (isPublisher == null || !isPublisher) {
+			return CompletableFuture.failedFuture(new IllegalStateException("Not registered as a publisher"));
+		}
+		if (!isSingleLine(body)) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("Message body must be a single non-empty line"));
+		}
+
+		CompletableFuture<Delivery> future = new CompletableFuture<>();
+		synchronized (pendingPublishes) {
+			pendingPublishes.offer(future);
+			// Explicit "send" so bodies that look like commands are still published
+			String command = key != null ? "sendkey " + key + " " + body : ttlMillis > 0 ? "sendttl " + ttlMillis + "ms " + body : "send " + body;
+			try {
+				enqueue(tracing ? "trace " + epochMicros() + " " + command : command);
+			} catch (IllegalStateException e) {
+				pendingPublishes.remove(future);
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Sends a request to one subscriber of a topic, the least busy one, and waits for its reply. The request and the
+	 * reply are routed point to point by the server: they are not stored on the topic nor delivered to anyone else.
+	 * Works whatever this client is registered as, and needs no registration at all.
+	 *
+	 * @param topic         the topic whose subscribers serve the request
+	 * @param body          the request, a single line
+	 * @param timeoutMillis the time to wait for the reply, at most 5 minutes
+	 * @return a future completed with the reply, or failed if nobody replies in time, no subscriber is on the topic,
+	 * the responder disconnects or the connection is lost
+	 */
+	public CompletableFuture<Reply> request(String topic, String body, long timeoutMillis) {
+		if (!isSingleLine(body)) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("Request body must be a single non-empty line"));
+		}
+		if (timeoutMillis < 1 || timeoutMillis > 5 * 60_000) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("Timeout must be between 1ms and 5 minutes"));
+		}
+
+		String correlationId = Long.toString(requestCounter.incrementAndGet());
+		CompletableFuture<Reply> future = new CompletableFuture<>();
+		pendingRequests.put(correlationId, future);
+		future.whenComplete((reply, failure) -> pendingRequests.remove(correlationId));
+		// The server times the request out too; the local timeout also covers a server that never answers
+		future.orTimeout(timeoutMillis + 1000, TimeUnit.MILLISECONDS);
+		try {
+			enqueue("request " + correlationId + " " + timeoutMillis + " " + topic.trim().replaceAll("\\s+", "_") + " " + body);
+		} catch (IllegalStateException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Stamps the messages published from now on with their send time, so subscribers can measure end-to-end latency
+	 * (see Delivery.getLatencyMicros()). Meaningful across hosts only when their clocks are synchronized.
+	 *
+	 * @param enabled whether to stamp published messages
+	 */
+	public void setTracing(boolean enabled) { tracing = enabled; }
+
+	/** The current time in microseconds since the epoch, as carried by traced messages. */
+	public static long epochMicros() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+	}
+
+	/**
+	 * Sets a server-side content filter, so that only matching messages are delivered to this client.
+	 * The filter is restored automatically after a reconnection.
+	 *
+	 * @param spec "keyword|prefix|users <values...>" (space or comma separated), "regex <expression>", or null to remove it
+	 */
+	public void setFilter(String spec) {
+		filter = spec;
+		enqueue(spec == null ? "filter off" : "filter " + spec);
+	}
+
+	/**
+	 * Sends a raw command (e.g. "show", "list", "listall"). The reply is delivered line by line to {@link Listener#onLine}.
+	 *
+	 * @param command the command line
+	 */
+	public void sendCommand(String command) { enqueue(command); }
+
+	/**
+	 * Describes how well outgoing lines are coalesced: the fewer writes per line, the fewer system calls and TCP segments.
+	 *
+	 * @return the lines, writes, lines and characters per write, and the time spent lingering
+	 */
+	public String describeBatching() {
+		long batches = writes;
+		long lingered = lingeredWrites;
+		return linesWritten + " lines in " + batches + " writes"
+		       + (batches == 0 ? "" : String.format(" (%.1f lines, %d characters per write)", (double) linesWritten / batches, charsWritten / batches))
+		       + ", " + lingered + " lingered" + (lingered == 0 ? "" : String.format(" (avg %.0fus)", lingerNanos / 1000.0 / lingered))
+		       + ", current linger " + (currentLingerNanos() / 1000) + "us (max " + MAX_LINGER_NANOS / 1000 + "us)";
+	}
+
+	/**
+	 * The time the writer currently waits for the next line of a batch: a few average gaps between lines when they come
+	 * faster than the maximum linger, nothing when they come slower (an interactive sender).
+	 *
+	 * @return the wait in nanoseconds, 0 for none
+	 */
+	private long currentLingerNanos() {
+		long gap = gapNanos; // A racy read from another thread is fine for reporting
+		return gap >= MAX_LINGER_NANOS ? 0 : Math.min(MAX_LINGER_NANOS, Math.max(MIN_WAIT_NANOS, 2 * gap));
+	}
+
+	/**
+	 * Updates the moving average of the gaps between lines. Writer thread only.
+	 * Gaps are capped so that one pause is enough to stop lingering, and a burst restarts it after a few lines.
+	 *
+	 * @param now the time the line was taken
+	 */
+	private void observeLine(long now) {
+		long gap = Math.min(now - lastLineNanos, 8 * MAX_LINGER_NANOS);
+		gapNanos = Math.min(gapNanos, 8 * MAX_LINGER_NANOS);
+		gapNanos += (gap - gapNanos) / 8;
+		lastLineNanos = now;
+	}
+
+	/**
+	 * Tells whether a body can be sent as one protocol line. The server ends lines at '\r' as well as '\n', so a body
+	 * holding either would arrive as several commands and shift the replies matched to later futures.
+	 *
+	 * @param body the body
+	 * @return true if the body is non-blank and has no line terminator
+	 */
+	private static boolean isSingleLine(String body) { return !body.isBlank() && body.indexOf('\n') < 0 && body.indexOf('\r') < 0; }
+
+	private void enqueue(String line) {
+		if (!running) {
+			throw new IllegalStateException("Client is closed");
+		}
+		outbound.offer(line);
+	}
+
+	/**
+	 * Handles protocol control lines, which are never shown to the user.
+	 *
+	 * @param connection the connection the line was read from
+	 * @param line       the line received from the server
+	 * @return true if the line was a control line
+	 */
+	private boolean handleControlLine(Connection connection, String line) {
+		String[] tokens = line.split("\\s+");
+		switch (tokens[0]) {
+		case "PING" -> {
+			if (tokens.length != 1) {
+				return false;
+			}
+			outbound.offerFirst("PONG");
+		}
+		case "HEARTBEAT" -> {
+			// No line within the server's idle timeout means it is gone
+			if (tokens.length != 3 || !isNumber(tokens[2], 9)) {
+				return false;
+			}
+			try {
+				connection.setSoTimeout(Integer.parseInt(tokens[2]));
+			} catch (SocketException e) {
+				return false;
+			}
+		}
+		case "KICKED" -> {
+			if (tokens.length != 1) {
+				return false;
+			}
+			kicked = true;
+		}
+		case "LAST_MESSAGE_ID" -> {
+			// Sent on registration: the resume point if nothing is delivered before the connection drops
+			if (tokens.length != 3 || !(isNumber(tokens[2], 18) || tokens[2].equals("-1"))) {
+				return false;
+			}
+			lastSeenIds.merge(tokens[1], Long.parseLong(tokens[2]), Math::max);
+		}
+		case "REQUEST" -> {
+			String[] fields = line.split(" ", 5); // REQUEST <replyTo> <topic> <requesterID> <body>
+			if (fields.length != 5 || !fields[1].matches("\\d{1,9}\\.[\\w.:-]{1,64}") || !isNumber(fields[3], 9)) {
+				return false;
+			}
+			Request request = new Request(this, fields[1], fields[2], Integer.parseInt(fields[3]), fields[4]);
+			for (Listener listener : listeners) {
+				listener.onRequest(request);
+			}
+		}
+		case "REPLY" -> {
+			String[] fields = line.split(" ", 4); // REPLY <correlationId> <responderID> <body>
+			if (fields.length != 4 || !isNumber(fields[1], 18) || !isNumber(fields[2], 9)) {
+				return false;
+			}
+			CompletableFuture<Reply> future = pendingRequests.get(fields[1]);
+			if (future != null) {
+				future.complete(new Reply(fields[1], Integer.parseInt(fields[2]), fields[3]));
+			}
+		}
+		case "REPLY_FAILED" -> {
+			String[] fields = line.split(" ", 3); // REPLY_FAILED <correlationId> <reason>
+			if (fields.length != 3 || !isNumber(fields[1], 18)) {
+				return false;
+			}
+			CompletableFuture<Reply> future = pendingRequests.get(fields[1]);
+			if (future != null) {
+				future.completeExceptionally(new IllegalStateException(fields[2]));
+			}
+		}
+		case "THROTTLE" -> {
+			if (tokens.length != 3 || !isNumber(tokens[1], 18)) {
+				return false;
+			}
+			for (Listener listener : listeners) {
+				listener.onThrottle(Long.parseLong(tokens[1]), tokens[2]);
+			}
+		}
+		case "CONFLATED" -> {
+			// Sent on registration and when the server changes it: superseded values are skipped, which is no gap
+			if (tokens.length != 3 || !(tokens[2].equals("true") || tokens[2].equals("false"))) {
+				return false;
+			}
+			if (Boolean.parseBoolean(tokens[2])) {
+				conflatedTopics.add(tokens[1]);
+			} else {
+				conflatedTopics.remove(tokens[1]);
+			}
+		}
+		case "IS_SERVER_INSPECTING" -> {
+			if (tokens.length != 2 || !(tokens[1].equals("true") || tokens[1].equals("false"))) {
+				return false;
+			}
+			isServerInspecting = Boolean.parseBoolean(tokens[1]);
+			for (Listener listener : listeners) {
+				listener.onInspectChange(isServerInspecting);
+			}
+		}
+		case "---" -> {
+			if (line.startsWith("--- REGISTRATION SUCCESSFUL ---")) {
+				conflatedTopics.clear(); // Repeated by the server for the new registration
+				CompletableFuture<Void> future = pendingRegistrations.poll();
+				if (future != null) {
+					future.complete(null);
+				}
+			}
+			return false; // Still shown to the user
+		}
+		default -> {
+			return false;
+		}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that a control line field is a non-negative number that fits in a long.
+	 *
+	 * @param field     the field
+	 * @param maxDigits the most digits accepted
+	 * @return true if the field can be parsed
+	 */
+	private static boolean isNumber(String field, int maxDigits) { return field.matches("\\d{1," + maxDigits + "}"); }
+
+	private void dispatch(Delivery delivery) {
+		Long previous = lastSeenIds.get(delivery.getTopic()); // Only this thread updates the last seen IDs
+		if (previous == null || delivery.getId() > previous) {
+			lastSeenIds.put(delivery.getTopic(), delivery.getId());
+		}
+		if (previous != null && delivery.getId() > previous + 1 && !delivery.isOwn() && isPublisher == Boolean.FALSE && filter == null && groupName == null
+		    && !conflatedTopics.contains(delivery.getTopic())) {
+			for (Listener listener : listeners) {
+				listener.onGap(delivery.getTopic(), previous + 1, delivery.getId() - 1);
+			}
+		}
+		if (delivery.isOwn()) {
+			CompletableFuture<Delivery> future = pendingPublishes.poll();
+			if (future != null) {
+				future.complete(delivery);
+			}
+		}
+		boolean isDurable = durableName != null && !delivery.isOwn();
+		if (!isDurable || delivery.getId() > replayedUpTo) { // Replayed after a reconnection but already handed over: only acknowledged
+			for (Listener listener : listeners) {
+				listener.onDelivery(delivery);
+			}
+			if (deliveries.hasSubscribers()) {
+				deliveries.submit(delivery);
+			}
+		}
+		if (isDurable) {
+			lastDelivered = delivery.getId();
+			if (++unacked >= ACK_BATCH) {
+				acknowledge();
+			}
+		}
+	}
+
+	/**
+	 * Acknowledges every delivery so far on the durable subscription, with one cumulative "ack".
+	 */
+	private void acknowledge() {
+		if (unacked > 0 && durableName != null) {
+			outbound.offer("ack " + lastDelivered);
+		}
+		unacked = 0;
+	}
+
+	/**
+	 * Called by a connection's I/O threads when it fails.
+	 * Requests in flight on the lost connection are failed, since the server may or may not have processed them,
+	 * then a reconnection loop is started unless the client is closing or reconnection is disabled.
+	 *
+	 * @param lost  the connection that failed
+	 * @param cause the failure, null for an expected close
+	 */
+	private void connectionLost(Connection lost, Exception cause) {
+		synchronized (this) {
+			if (connection != lost || closed.isDone()) {
+				return; // Already handled by the other I/O thread
+			}
+			connection = null;
+		}
+		lost.close();
+		if (closing || kicked || cause == null || !reconnect) {
+			shutdown(cause);
+			return;
+		}
+
+		synchronized (pendingPublishes) { // Drop unsent lines together with their futures, so later replies still match FIFO
+			synchronized (pendingRegistrations) {
+				outbound.clear();
+				failPending(new IOException("Connection lost", cause));
+			}
+		}
+		if (isServerInspecting) { // The server repeats the inspect state on re-registration if it still applies
+			isServerInspecting = false;
+			for (Listener listener : listeners) {
+				listener.onInspectChange(false);
+			}
+		}
+		Thread reconnector = new Thread(() -> reconnectLoop(cause), "pubsub-client-reconnect");
+		reconnector.setDaemon(true);
+		reconnector.start();
+	}
+
+	/**
+	 * Reconnects with exponential backoff (with jitter) until it succeeds or the client is closed.
+	 * The first line on the new connection re-registers with the last message ID seen, so the server replays
+	 * only the missed messages before live delivery resumes.
+	 *
+	 * @param cause the failure that caused the disconnection
+	 */
+	private void reconnectLoop(Exception cause) {
+		while (running && !closing) {
+			long backoff = backoffMillis;
+			long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+			backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoff * 2); // Also doubled when connecting succeeds, until the server answers
+			int attempt = ++reconnectAttempts;
+			for (Listener listener : listeners) {
+				listener.onReconnecting(attempt, delay, cause);
+			}
+			try {
+				Thread.sleep(delay);
+				// Without a known resume point (registration never confirmed) a plain registration avoids replaying the whole topic
+				String topic = this.topic;
+				Long lastSeenId = topic == null ? null : lastSeenIds.get(topic);
+				String role = isPublisher == null ? null : isPublisher ? "publish " : "subscribe ";
+				String durableName = this.durableName;
+				String groupName = this.groupName;
+				ArrayList<String> restore = new ArrayList<>();
+				if (filter != null) {
+					restore.add("filter " + filter); // Before registering, so that replayed messages are filtered too
+				}
+				if (durableName != null) {
+					// The server replays from the last acknowledged message, which may be before the last one handed over
+					replayedUpTo = lastSeenId == null ? -1 : lastSeenId;
+					restore.add("durable " + durableName + " " + topic);
+				} else if (groupName != null) {
+					restore.add("group " + groupName + " " + topic); // Messages missed meanwhile went to the other members
+				} else if (role != null) {
+					String resumePoint = resumePoint(topic, lastSeenId);
+					restore.add(resumePoint == null ? role + topic : "resume " + role + resumePoint + " " + topic);
+				}
+				Connection resumed = open(restore);
+				synchronized (this) {
+					if (!running || closing) {
+						resumed.close();
+						return;
+					}
+					connection = resumed;
+				}
+				resumed.start();
+				for (Listener listener : listeners) {
+					listener.onReconnected();
+				}
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (IOException e) {
+				// Try again after a longer delay
+			}
+		}
+	}
+
+	/**
+	 * Builds the resume point of a topic. Deliveries from a partitioned topic name their partition ("orders#2"), and
+	 * partitions are only ordered individually, so the resume point is then the last ID seen in each partition.
+	 *
+	 * @param topic      the topic
+	 * @param lastSeenId the last message ID seen on the topic itself, or null
+	 * @return "lastMessageID", "partition:lastMessageID,...", or null if nothing is known
+	 */
+	private String resumePoint(String topic, Long lastSeenId) {
+		StringBuilder points = new StringBuilder();
+		for (var seen : lastSeenIds.entrySet()) {
+			String name = seen.getKey();
+			if (name.length() > topic.length() + 1 && name.startsWith(topic + "#") && name.substring(topic.length() + 1).matches("\\d{1,2}")) {
+				points.append(points.length() == 0 ? "" : ",").append(name.substring(topic.length() + 1)).append(':').append(seen.getValue());
+			}
+		}
+		return points.length() > 0 ? points.toString() : lastSeenId == null ? null : lastSeenId.toString();
+	}
+
+	/**
+	 * Closes the connection, sending "quit" first so the server can clean up immediately.
+	 */
+	@Override
+	public void close() {
+		if (running) {
+			closing = true;
+			if (connection != null) {
+				outbound.offer("quit");
+				try {
+					closed.get(5, TimeUnit.SECONDS); // Wait for the server to close the socket
+				} catch (Exception e) {
+					// Closing anyway
+				}
+			}
+		}
+		Connection current = connection;
+		if (current != null) {
+			current.close();
+		}
+		shutdown(null);
+	}
+
+	private void shutdown(Exception cause) {
+		synchronized (this) {
+			if (closed.isDone()) {
+				return;
+			}
+			running = false;
+			closed.complete(null);
+		}
+		failPending(new IOException("Connection closed", cause));
+		if (cause == null) {
+			deliveries.close();
+		} else {
+			deliveries.closeExceptionally(cause);
+		}
+		for (Listener listener : listeners) {
+			listener.onDisconnect(cause);
+		}
+	}
+
+	private void failPending(IOException failure) {
+		CompletableFuture<?> future;
+		while ((future = pendingPublishes.poll()) != null) {
+			future.completeExceptionally(failure);
+		}
+		while ((future = pendingRegistrations.poll()) != null) {
+			future.completeExceptionally(failure);
+		}
+		for (CompletableFuture<Reply> request : pendingRequests.values()) { // Replies are routed to the lost connection
+			request.completeExceptionally(failure);
+		}
+	}
+
+	public boolean isConnected() { return running && connection != null; }
+
+	public Boolean isPublisher() { return isPublisher; }
+
+	public String getTopic() { return topic; }
+
+	public String getDurableName() { return durableName; }
+
+	public String getGroupName() { return groupName; }
+
+	public boolean isServerInspecting() { return isServerInspecting; }
+
+	public int getPort() { return address instanceof InetSocketAddress inet ? inet.getPort() : -1; }
+
+	public SocketAddress getAddress() { return address; }
+
+	/**
+	 * Opens a new connection to the server's address, over TCP or a Unix domain socket.
+	 *
+	 * @param firstLines lines to send before anything queued
+	 * @return the connection, not yet started
+	 * @throws IOException if the server cannot be reached
+	 */
+	private Connection open(List<String> firstLines) throws IOException {
+		if (address instanceof UnixDomainSocketAddress unix) {
+			UnixSocket socket = UnixSocket.connect(unix.getPath());
+			return new Connection(socket, socket.getInputStream(), socket.getOutputStream(), firstLines);
+		}
+		Socket socket = new Socket();
+		socket.connect(address, (int) MAX_BACKOFF_MILLIS);
+		return new Connection(socket, socket.getInputStream(), socket.getOutputStream(), firstLines);
+	}
+
+	/**
+	 * A single connection to the server with its reader and writer threads.
+	 * A new Connection is created on every reconnection; the outbound queue and listeners outlive it.
+	 */
+	private class Connection {
+		private final Closeable socket;                                  // A Socket or a UnixSocket
+		private final BufferedReader in;
+		private final PrintWriter out;
+		private final Thread reader = new Thread(this::readLoop, "pubsub-client-reader");
+		private final Thread writer = new Thread(this::writeLoop, "pubsub-client-writer");
+		private Delivery.Parser parser = null;                           // Reader thread only: the message frame being read
+		private boolean inFrame = false;                                 // Reader thread only: between a frame's separators
+
+		/**
+		 * Wraps the streams of a connected socket.
+		 *
+		 * @param socket     the connected socket
+		 * @param input      the socket's input stream
+		 * @param output     the socket's output stream
+		 * @param firstLines lines to send before anything queued (filter and resume commands after a reconnection)
+		 */
+		private Connection(Closeable socket, InputStream input, OutputStream output, List<String> firstLines) {
+			this.socket = socket;
+			this.in = new BufferedReader(new InputStreamReader(input));
+			this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)), false); // Flushed per batch
+			for (String line : firstLines) {
+				out.println(line);
+			}
+			out.flush();
+		}
+
+		/**
+		 * Starts the I/O threads. Must be called once this is the client's current connection.
+		 */
+		private void start() {
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		/**
+		 * Writer thread: writes every queued line, flushing once per batch rather than once per line.
+		 * While lines keep coming faster than the maximum linger, the batch is held open for the next ones until they
+		 * stop, the batch is full or the maximum linger has passed.
+		 */
+		private void writeLoop() {
+			ArrayList<String> batch = new ArrayList<>();
+			try {
+				while (connection == this) {
+					String line = outbound.take();
+					long start = System.nanoTime();
+					long lingered = 0;
+					int chars = 0;
+					while (line != null) {
+						observeLine(System.nanoTime());
+						batch.add(line);
+						chars += line.length() + 1;
+						if (chars >= BATCH_BYTES) {
+							break;
+						}
+						line = outbound.poll();
+						if (line == null) { // Nothing queued: wait for the rest of the burst, if any
+							long waitStart = System.nanoTime();
+							long wait = Math.min(currentLingerNanos(), start + MAX_LINGER_NANOS - waitStart);
+							if (wait > 0) {
+								line = outbound.poll(wait, TimeUnit.NANOSECONDS);
+								lingered += System.nanoTime() - waitStart;
+							}
+						}
+					}
+					if (connection != this) { // Lost while waiting: these requests have already been failed
+						return;
+					}
+					for (String queued : batch) {
+						out.println(queued);
+					}
+					out.flush();
+					linesWritten += batch.size();
+					charsWritten += chars;
+					writes++;
+					if (lingered > 0) {
+						lingeredWrites++;
+						lingerNanos += lingered;
+					}
+					batch.clear();
+					if (out.checkError()) {
+						connectionLost(this, new IOException("Error writing to server"));
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Reader thread: handles control lines and message frames, and forwards everything else to the listeners.
+		 */
+		private void readLoop() {
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (reconnectAttempts > 0) { // The server is answering: the next drop starts the backoff over
+						reconnectAttempts = 0;
+						backoffMillis = INITIAL_BACKOFF_MILLIS;
+					}
+					try {
+						handleLine(line);
+					} catch (RuntimeException e) { // A malformed line or a failing listener must not stop the reader
+						parser = null;
+						for (Listener listener : listeners) {
+							try {
+								listener.onError(line, e);
+							} catch (RuntimeException ignored) {
+								// Nothing more can be done about it
+							}
+						}
+					}
+					acknowledgeIfIdle();
+				}
+				connectionLost(this, closing ? null : new IOException("Connection closed by server"));
+			} catch (SocketTimeoutException e) {
+				connectionLost(this, new IOException("No heartbeat from server, connection presumed lost"));
+			} catch (IOException e) {
+				connectionLost(this, closing ? null : e);
+			}
+		}
+
+		/**
+		 * Handles one line from the server: a control line, a line of a message frame or regular output.
+		 * Lines between a frame's separators are message content (bodies are wrapped every 80 characters), so they are
+		 * never taken for control lines, whatever a publisher put in the body.
+		 *
+		 * @param line the line received
+		 */
+		private void handleLine(String line) {
+			boolean isSeparator = line.equals(SEPARATOR);
+			if (!inFrame && parser == null && !isSeparator && handleControlLine(this, line)) {
+				return;
+			}
+			if (isSeparator) {
+				inFrame = !inFrame;
+			}
+
+			// "> MESSAGE SENT:" / "> MESSAGE RECEIVED:" are followed by a message frame
+			if (!inFrame && (line.equals("> MESSAGE SENT:") || line.equals("> MESSAGE RECEIVED:"))) {
+				parser = new Delivery.Parser(line.equals("> MESSAGE SENT:"));
+			} else if (parser != null && parser.accept(line)) {
+				Delivery delivery = parser.result();
+				parser = null;
+				dispatch(delivery);
+			}
+			for (Listener listener : listeners) {
+				listener.onLine(line);
+			}
+		}
+
+		/**
+		 * Acknowledges durable deliveries early when nothing more has arrived, i.e. at the end of a burst,
+		 * so a quiet subscription does not keep a partial batch unacknowledged.
+		 *
+		 * @throws IOException if the input stream fails
+		 */
+		private void acknowledgeIfIdle() throws IOException {
+			if (unacked > 0 && !in.ready()) {
+				acknowledge();
+			}
+		}
+
+		/**
+		 * Sets the read timeout, after which a silent server is presumed lost.
+		 *
+		 * @param millis the timeout in milliseconds
+		 * @throws SocketException if the socket is closed
+		 */
+		private void setSoTimeout(int millis) throws SocketException {
+			if (socket instanceof UnixSocket unix) {
+				unix.setSoTimeout(millis);
+			} else {
+				((Socket) socket).setSoTimeout(millis);
+			}
+		}
+
+		private void close() {
+			writer.interrupt();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+	/**
+	 * A message delivered by the server, parsed from its text frame.
+	 */
+	public static class Delivery {
+		private final long id;
+		private final int userID;
+		private final String topic;
+		private final String key;
+		private final String timestamp;
+		private final String origin;
+		private final String body;
+		private final boolean isOwn;
+		private final long traceMicros;                                // Publisher's send time, -1 if not traced
+		private final long receivedMicros;                             // Time the frame was fully read
+
+		private Delivery(long id, int userID, String topic, String key, String timestamp, String origin, String body, boolean isOwn, long traceMicros) {
+			this.id = id;
+			this.userID = userID;
+			this.topic = topic;
+			this.key = key;
+			this.timestamp = timestamp;
+			this.origin = origin;
+			this.body = body;
+			this.isOwn = isOwn;
+			this.traceMicros = traceMicros;
+			this.receivedMicros = epochMicros();
+		}
+
+		/** The message ID, counted per topic (per partition on a partitioned topic). */
+		public long getId() { return id; }
+
+		/** The ID in its global form, "<topic>@<ID>", unique across topics. */
+		public String getGlobalId() { return topic + "@" + id; }
+
+		public int getUserID() { return userID; }
+
+		public String getTopic() { return topic; }
+
+		/** The key of the value the message updates, or null for a message published without one. */
+		public String getKey() { return key; }
+
+		public String getTimestamp() { return timestamp; }
+
+		/** The federated node the message was published on, or null if it was published on the node this client is connected to. */
+		public String getOrigin() { return origin; }
+
+		public String getBody() { return body; }
+
+		/** Whether this client published the message. */
+		public boolean isOwn() { return isOwn; }
+
+		/** The publisher's send time in microseconds since the epoch, or -1 if the message was not traced. */
+		public long getTraceMicros() { return traceMicros; }
+
+		/** The time from the publisher sending the message to this client reading it, in microseconds, or -1 if not traced. */
+		public long getLatencyMicros() { return traceMicros == -1 ? -1 : receivedMicros - traceMicros; }
+
+		@Override
+		public String toString() { return "[ID " + id + " | USER-" + userID + " | TOPIC '" + topic + "'] " + body; }
+
+		/**
+		 * Parses a frame as produced by Message.toString(), one line at a time:
+		 * separator, "USER-u @ time" optionally followed by " | NODE 'node'" and " | TRACE micros", "[ID n | TOPIC 't']" or "[ID n | TOPIC 't' | KEY 'k']", "BODY: ..." plus wrapped
+		 * continuation lines, separator.
+		 */
+		private static class Parser {
+			private final boolean isOwn;
+			private final StringBuilder body = new StringBuilder();
+			private int separators = 0;
+			private int userID;
+			private long id;
+			private String topic;
+			private String key;
+			private String timestamp;
+			private String origin;
+			private long traceMicros = -1;
+
+			private Parser(boolean isOwn) { this.isOwn = isOwn; }
+
+			/**
+			 * @return true once the closing separator has been read
+			 */
+			private boolean accept(String line) {
+				if (line.equals(SEPARATOR)) {
+					return ++separators == 2;
+				}
+				if (line.startsWith("USER-") && topic == null) {
+					int at = line.indexOf(" @ ");
+					int suffixAt = line.indexOf(" | ", at);
+					int nodeAt = line.indexOf(" | NODE '");
+					int traceAt = line.indexOf(" | TRACE ");
+					userID = Integer.parseInt(line.substring(5, at));
+					timestamp = line.substring(at + 3, suffixAt == -1 ? line.length() : suffixAt);
+					origin = nodeAt == -1 ? null : line.substring(nodeAt + 9, line.indexOf('\'', nodeAt + 9));
+					traceMicros = traceAt == -1 ? -1 : Long.parseLong(line.substring(traceAt + 9));
+				} else if (line.startsWith("[ID ") && topic == null) {
+					id = Long.parseLong(line.substring(4, line.indexOf(" | ")));
+					int keyAt = line.indexOf("' | KEY '");
+					if (keyAt == -1) {
+						topic = line.substring(line.indexOf("TOPIC '") + 7, line.lastIndexOf('\''));
+					} else {
+						topic = line.substring(line.indexOf("TOPIC '") + 7, keyAt);
+						key = line.substring(keyAt + 9, line.lastIndexOf('\''));
+					}
+				} else if (line.startsWith("BODY: ") && body.length() == 0) {
+					body.append(line.substring(6));
+				} else {
+					body.append(line); // Message wraps long bodies every 80 characters
+				}
+				return false;
+			}
+
+			private Delivery result() { return new Delivery(id, userID, topic, key, timestamp, origin, body.toString(), isOwn, traceMicros); }
+		}
+	}
+
+	/**
+	 * A request routed to this client, to be answered with {@link #reply}.
+	 */
+	public static class Request {
+		private final PubSubClient client;
+		private final String replyTo;
+		private final String topic;
+		private final int requesterID;
+		private final String body;
+
+		private Request(PubSubClient client, String replyTo, String topic, int requesterID, String body) {
+			this.client = client;
+			this.replyTo = replyTo;
+			this.topic = topic;
+			this.requesterID = requesterID;
+			this.body = body;
+		}
+
+		/**
+		 * Sends the reply to the requester only. Only the first reply to a request is delivered.
+		 *
+		 * @param body the reply, a single line
+		 */
+		public void reply(String body) {
+			if (!isSingleLine(body)) {
+				throw new IllegalArgumentException("Reply body must be a single non-empty line");
+			}
+			client.enqueue("reply " + replyTo + " " + body);
+		}
+
+		/** The ephemeral destination replies go to, as used by the "reply" command. */
+		public String getReplyTo() { return replyTo; }
+
+		public String getTopic() { return topic; }
+
+		public int getRequesterID() { return requesterID; }
+
+		public String getBody() { return body; }
+
+		@Override
+		public String toString() { return "[REQUEST " + replyTo + " | USER-" + requesterID + " | TOPIC '" + topic + "'] " + body; }
+	}
+
+	/**
+	 * The reply to a request.
+	 */
+	public static class Reply {
+		private final String correlationId;
+		private final int responderID;
+		private final String body;
+
+		private Reply(String correlationId, int responderID, String body) {
+			this.correlationId = correlationId;
+			this.responderID = responderID;
+			this.body = body;
+		}
+
+		public String getCorrelationId() { return correlationId; }
+
+		public int getResponderID() { return responderID; }
+
+		public String getBody() { return body; }
+
+		@Override
+		public String toString() { return "[REPLY " + correlationId + " | USER-" + responderID + "] " + body; }
+	}
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The RateLimiter class holds the publish rate limits applied per connection, per topic and server-wide.
+ * All limits default to unlimited and are changed at runtime with the server's "ratelimit" command.
+ */
+public class RateLimiter {
+	public static final TokenBucket global = new TokenBucket(0, 1);                                      // Shared by every publisher
+	public static final ConcurrentHashMap<String, TokenBucket> topicLimits = new ConcurrentHashMap<>(); // topic : limit
+	private static volatile double connectionRate = 0;
+	private static volatile double connectionBurst = 1;
+
+	private RateLimiter() {}
+
+	/**
+	 * Creates the bucket for a new connection using the current per-connection limit.
+	 *
+	 * @return a new per-connection token bucket
+	 */
+	public static TokenBucket newConnectionBucket() { return new TokenBucket(connectionRate, connectionBurst); }
+
+	/**
+	 * Sets the per-connection limit for new connections and for every connected client.
+	 *
+	 * @param rate  the number of messages per second, 0 for unlimited
+	 * @param burst the maximum burst size
+	 */
+	public static void setConnectionLimit(double rate, double burst) {
+		connectionRate = rate;
+		connectionBurst = burst;
+		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
+			clientHandler.getRateLimit().configure(rate, burst);
+		}
+	}
+
+	/**
+	 * Sets or removes the limit of a single topic.
+	 *
+	 * @param topic the topic to limit
+	 * @param rate  the number of messages per second, 0 to remove the limit
+	 * @param burst the maximum burst size
+	 */
+	public static void setTopicLimit(String topic, double rate, double burst) {
+		if (rate == 0) {
+			topicLimits.remove(topic);
+		} else {
+			topicLimits.computeIfAbsent(topic, t -> new TokenBucket(rate, burst)).configure(rate, burst);
+		}
+	}
+
+	/**
+	 * Builds a human-readable description of the configured limits.
+	 * Used by the server's "ratelimit" command.
+	 *
+	 * @return the formatted list of limits
+	 */
+	public static String describe() {
+		StringBuilder limits = new StringBuilder();
+		limits.append("--- RATE LIMITS ---\n");
+		limits.append("> GLOBAL:     ").append(global).append("\n");
+		limits.append("> CONNECTION: ").append(new TokenBucket(connectionRate, connectionBurst)).append("\n");
+		for (String topic : topicLimits.keySet()) {
+			limits.append("> TOPIC '").append(topic).append("': ").append(topicLimits.get(topic)).append("\n");
+		}
+		limits.append("--- END OF RATE LIMITS ---\n");
+		return limits.toString();
+	}
+}
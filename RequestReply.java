@@ -0,0 +1,155 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The RequestReply class routes requests and their replies point to point.
+ * A request names a topic, a correlation ID chosen by the requester and a timeout. It is handed to a single subscriber
+ * of the topic, the one with the fewest frames waiting in its outbound queue (ties broken at random), together with
+ * an ephemeral reply destination. The responder's reply to that destination goes back to the requester only.
+ * Neither the request nor the reply is stored, indexed or fanned out, so a call costs two routed frames on one
+ * connection per side instead of two broadcasts.
+ *
+ * A request that gets no reply within its timeout, or whose responder disconnects before replying, is failed with a
+ * REPLY_FAILED frame, as is a request on a topic without subscribers. Requests are not forwarded across a federation.
+ */
+public class RequestReply {
+	public static final long MAX_TIMEOUT_MILLIS = 5 * 60_000;
+	private static final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>(); // reply destination : request awaiting its reply
+	private static final LongAdder requests = new LongAdder();
+	private static final LongAdder replies = new LongAdder();
+	private static final LongAdder failures = new LongAdder();
+
+	private RequestReply() {}
+
+	/**
+	 * Routes a request to one subscriber of a topic. The requester is sent a REPLY_FAILED frame if nobody can answer.
+	 *
+	 * @param server        the server whose timer wheel times requests out
+	 * @param requester     the client making the request
+	 * @param correlationId the requester's ID for the request, echoed in the reply
+	 * @param timeoutMillis the time the responder has to reply
+	 * @param topic         the topic whose subscribers serve the request
+	 * @param body          the request body
+	 */
+	public static void request(Server server, ClientHandler requester, String correlationId, long timeoutMillis, String topic, String body) {
+		requests.increment();
+		ClientHandler responder = pick(ClientHandler.respondersOf(topic), requester);
+		if (responder == null) {
+			failures.increment();
+			requester.sendFrame("REPLY_FAILED " + correlationId + " no subscriber on '" + topic + "' to reply");
+			return;
+		}
+
+		String replyTo = requester.getUserID() + "." + correlationId; // Correlation IDs are unique per requester
+		Pending request = new Pending(requester, responder, correlationId);
+		if (pending.putIfAbsent(replyTo, request) != null) {
+			failures.increment();
+			requester.sendFrame("REPLY_FAILED " + correlationId + " correlation ID already in use");
+			return;
+		}
+		request.timeout = server.getTimerWheel().schedule(() -> fail(replyTo, request, "no reply within " + timeoutMillis + "ms"), timeoutMillis);
+		responder.sendFrame("REQUEST " + replyTo + " " + topic + " " + requester.getUserID() + " " + body);
+	}
+
+	/**
+	 * Routes a reply back to the requester.
+	 *
+	 * @param responder the client replying
+	 * @param replyTo   the reply destination the request came with
+	 * @param body      the reply body
+	 * @return false if no request to this responder is waiting on the destination (e.g. it timed out)
+	 */
+	public static boolean reply(ClientHandler responder, String replyTo, String body) {
+		Pending request = pending.get(replyTo);
+		if (request == null || request.responder != responder || !pending.remove(replyTo, request)) {
+			return false;
+		}
+		request.cancelTimeout();
+		replies.increment();
+		request.requester.sendFrame("REPLY " + request.correlationId + " " + responder.getUserID() + " " + body);
+		return true;
+	}
+
+	/**
+	 * Drops the requests of a client that disconnected, and fails the requests it was expected to reply to.
+	 *
+	 * @param client the client that disconnected
+	 */
+	public static void disconnected(ClientHandler client) {
+		for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+			Pending request = entry.getValue();
+			if (request.requester == client && pending.remove(entry.getKey(), request)) {
+				request.cancelTimeout();
+			} else if (request.responder == client) {
+				fail(entry.getKey(), request, "responder disconnected");
+			}
+		}
+	}
+
+	/**
+	 * Describes the request/reply counters for the metrics report.
+	 *
+	 * @return the requests, replies, failures and requests awaiting a reply
+	 */
+	public static String describe() {
+		return requests.sum() + " requests, " + replies.sum() + " replies, " + failures.sum() + " failed, " + pending.size() + " awaiting a reply";
+	}
+
+	private static void fail(String replyTo, Pending request, String reason) {
+		if (pending.remove(replyTo, request)) {
+			request.cancelTimeout();
+			failures.increment();
+			request.requester.sendFrame("REPLY_FAILED " + request.correlationId + " " + reason);
+		}
+	}
+
+	/**
+	 * Picks the least loaded candidate, starting the scan at a random position so ties are spread.
+	 *
+	 * @param candidates the subscribers of the topic
+	 * @param requester  the requester, never picked
+	 * @return the responder, or null if there is none
+	 */
+	private static ClientHandler pick(ClientHandler[] candidates, ClientHandler requester) {
+		ClientHandler best = null;
+		int bestDepth = Integer.MAX_VALUE;
+		int start = candidates.length == 0 ? 0 : ThreadLocalRandom.current().nextInt(candidates.length);
+		for (int i = 0; i < candidates.length; i++) {
+			ClientHandler candidate = candidates[(start + i) % candidates.length];
+			if (candidate == requester) {
+				continue;
+			}
+			int depth = candidate.getOutboundDepth();
+			if (depth < bestDepth) {
+				best = candidate;
+				bestDepth = depth;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A request awaiting its reply.
+	 */
+	private static class Pending {
+		private final ClientHandler requester;
+		private final ClientHandler responder;
+		private final String correlationId;
+		private volatile TimerWheel.Timeout timeout;  // Set right after the request is registered, null until then
+
+		private Pending(ClientHandler requester, ClientHandler responder, String correlationId) {
+			this.requester = requester;
+			this.responder = responder;
+			this.correlationId = correlationId;
+		}
+
+		private void cancelTimeout() {
+			TimerWheel.Timeout scheduled = timeout;
+			if (scheduled != null) {
+				scheduled.cancel();
+			}
+		}
+	}
+}
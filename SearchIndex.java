@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The SearchIndex class is an in-memory inverted index over the messages of one topic.
+ * It maps every term to the sorted list of IDs of the messages containing it (its postings), and is updated
+ * incrementally on publish, delete and clear, so a search costs a few postings intersections instead of a scan
+ * of the whole topic.
+ *
+ * Message IDs within a topic grow with publish order, so postings stay sorted by appending.
+ * The index only holds primitive IDs: matches are resolved to messages through the topic's {@link TimeIndex}, which
+ * also tells which IDs were deleted. Deleted IDs are dropped from the postings lazily: the postings are compacted
+ * once deleted entries outnumber live ones.
+ */
+public class SearchIndex {
+	public static final int PAGE_SIZE = 20;
+	private static final ConcurrentHashMap<String, SearchIndex> indexes = new ConcurrentHashMap<>(); // topic : index
+	private final HashMap<String, Postings> postings = new HashMap<>();                             // term : message IDs
+	private final TimeIndex messages;                                                               // Resolves IDs to the topic's live messages
+	private int live = 0;                                                                           // Messages indexed and not deleted
+	private int deletedSinceCompaction = 0;
+
+	private SearchIndex(String topic) { this.messages = TimeIndex.forTopic(topic); }
+
+	/**
+	 * Returns the index of a topic, creating it if needed.
+	 *
+	 * @param topic the topic
+	 * @return the topic's index
+	 */
+	public static SearchIndex forTopic(String topic) { return indexes.computeIfAbsent(topic, SearchIndex::new); }
+
+	/**
+	 * Drops the index of a topic, used when all of its messages are cleared.
+	 *
+	 * @param topic the topic
+	 */
+	public static void clear(String topic) { indexes.remove(topic); }
+
+	/**
+	 * Splits a text into lower-case terms made of letters and digits.
+	 *
+	 * @param text the text to split
+	 * @return the distinct terms, in order of first appearance
+	 */
+	public static LinkedHashSet<String> terms(String text) {
+		LinkedHashSet<String> terms = new LinkedHashSet<>();
+		for (String term : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (!term.isEmpty()) {
+				terms.add(term);
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Indexes a newly published message. Must be called in publish order.
+	 *
+	 * @param message the message to index
+	 */
+	public synchronized void add(Message message) {
+		live++;
+		for (String term : terms(message.getBody())) {
+			postings.computeIfAbsent(term, t -> new Postings()).add(message.getId());
+		}
+	}
+
+	/**
+	 * Accounts for deleted messages, once they have been removed from the topic's {@link TimeIndex}.
+	 *
+	 * @param deleted the deleted messages
+	 */
+	public synchronized void remove(List<Message> deleted) {
+		live -= deleted.size();
+		deletedSinceCompaction += deleted.size();
+		if (deletedSinceCompaction > live) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rebuilds the postings from the live messages, dropping the IDs of deleted messages.
+	 */
+	private void compact() {
+		postings.clear();
+		ArrayList<Message> remaining = messages.live();
+		for (Message message : remaining) {
+			for (String term : terms(message.getBody())) {
+				postings.computeIfAbsent(term, t -> new Postings()).add(message.getId());
+			}
+		}
+		live = remaining.size();
+		deletedSinceCompaction = 0;
+	}
+
+	/**
+	 * Finds the messages containing every term of the query, most recent first.
+	 *
+	 * @param query the search terms
+	 * @param page  the page to return, starting at 1
+	 * @return the page of results and the total number of matches
+	 */
+	public Result search(String query, int page) { return search(query, page, (page - 1) * PAGE_SIZE, PAGE_SIZE); }
+
+	/**
+	 * Finds the most recent messages containing every term of the query, skipping the given number of matches.
+	 *
+	 * @param query the search terms
+	 * @param page  the page reported in the result
+	 * @param skip  the number of most recent matches to skip
+	 * @param limit the maximum number of matches to return
+	 * @return the matches and the total number of matches
+	 */
+	private synchronized Result search(String query, int page, int skip, int limit) {
+		ArrayList<Postings> lists = new ArrayList<>();
+		for (String term : terms(query)) {
+			Postings list = postings.get(term);
+			if (list == null) {
+				return new Result(List.of(), 0, page);
+			}
+			lists.add(list);
+		}
+		if (lists.isEmpty()) {
+			return new Result(List.of(), 0, page);
+		}
+		lists.sort((a, b) -> Integer.compare(a.size, b.size)); // Intersect from the rarest term
+
+		// Walk the rarest term's postings backwards (most recent first), probing the others by binary search
+		Postings rarest = lists.get(0);
+		ArrayList<Message> matches = new ArrayList<>();
+		int total = 0;
+		for (int i = rarest.size - 1; i >= 0; i--) {
+			long id = rarest.ids[i];
+			if (!containsAll(lists, id)) {
+				continue;
+			}
+			Message message = messages.get(id);
+			if (message == null) { // Deleted
+				continue;
+			}
+			if (total >= skip && matches.size() < limit) {
+				matches.add(message);
+			}
+			total++;
+		}
+		return new Result(matches, total, page);
+	}
+
+	private static boolean containsAll(List<Postings> lists, long id) {
+		for (int i = 1; i < lists.size(); i++) {
+			if (Arrays.binarySearch(lists.get(i).ids, 0, lists.get(i).size, id) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A growable, sorted array of message IDs.
+	 */
+	private static class Postings {
+		private long[] ids = new long[4];
+		private int size = 0;
+
+		private void add(long id) {
+			if (size > 0 && ids[size - 1] == id) {
+				return;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+
+	/**
+	 * One page of search results.
+	 */
+	public static class Result {
+		private final List<Message> messages;
+		private final int total;
+		private final int page;
+
+		private Result(List<Message> messages, int total, int page) {
+			this.messages = messages;
+			this.total = total;
+			this.page = page;
+		}
+
+		public List<Message> getMessages() { return messages; }
+
+		public int getTotal() { return total; }
+
+		public int getPage() { return page; }
+
+		public int getPages() { return Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE); }
+
+		/**
+		 * Formats the results the way "listall" formats messages.
+		 *
+		 * @param query the search terms
+		 * @param topic the topic searched
+		 * @return the formatted results
+		 */
+		public String format(String query, String topic) {
+			if (total == 0) {
+				return "> No messages in '" + topic + "' match '" + query + "'.\n";
+			}
+			if (messages.isEmpty()) {
+				return "> Page " + page + " is past the last page (" + getPages() + ") of results for '" + query + "'.\n";
+			}
+			StringBuilder output = new StringBuilder();
+			output.append("--- SEARCH: ").append(total).append(" MATCHES FOR '").append(query).append("' IN '").append(topic)
+			    .append("' (PAGE ").append(page).append("/").append(getPages()).append(", MOST RECENT FIRST) ---\n\n");
+			for (Message message : messages) {
+				output.append(message).append("\n");
+			}
+			output.append("--- SEARCH: END OF PAGE ").append(page).append(" ---\n");
+			return output.toString();
+		}
+	}
+
+	/**
+	 * A parsed "search" command: search <terms...> [page <n>]
+	 */
+	public static class Query {
+		private final String terms;
+		private final int page;
+
+		private Query(String terms, int page) {
+			this.terms = terms;
+			this.page = page;
+		}
+
+		/**
+		 * Parses a query from the "search" command tokens.
+		 *
+		 * @param tokens the command tokens
+		 * @return the parsed query
+		 * @throws IllegalArgumentException if no search terms are given
+		 */
+		public static Query parse(String[] tokens) {
+			int end = tokens.length;
+			int page = 1;
+			if (end >= 4 && tokens[end - 2].equalsIgnoreCase("page") && tokens[end - 1].matches("\\d{1,6}")) {
+				page = Math.max(1, Integer.parseInt(tokens[end - 1]));
+				end -= 2;
+			}
+			String terms = String.join(" ", Arrays.copyOfRange(tokens, 1, Math.max(1, end)));
+			if (terms(terms).isEmpty()) {
+				throw new IllegalArgumentException("Usage: search <terms...> [page <n>]");
+			}
+			return new Query(terms, page);
+		}
+
+		/**
+		 * Runs the query against a topic's index, or against the index of each partition of a partitioned topic.
+		 * A page across partitions is made of the most recent matches of every partition, merged by ID.
+		 *
+		 * @param topic the topic to search
+		 * @return the formatted page of results
+		 */
+		public String run(String topic) {
+			List<String> partitions = PartitionedTopics.storageTopics(topic);
+			if (partitions.size() == 1) {
+				return forTopic(topic).search(terms, page).format(terms, topic);
+			}
+
+			ArrayList<Message> matches = new ArrayList<>();
+			int total = 0;
+			for (String partition : partitions) {
+				Result result = forTopic(partition).search(terms, page, 0, page * PAGE_SIZE);
+				matches.addAll(result.messages);
+				total += result.total;
+			}
+			matches.sort(Comparator.comparingLong(Message::getTimestamp).reversed()); // IDs are per partition
+			int from = Math.min(matches.size(), (page - 1) * PAGE_SIZE);
+			List<Message> pageMatches = matches.subList(from, Math.min(matches.size(), from + PAGE_SIZE));
+			return new Result(new ArrayList<>(pageMatches), total, page).format(terms, topic);
+		}
+	}
+}
@@ -4,17 +4,27 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * The Server class manages client connections, handles server commands,
@@ -23,12 +33,27 @@ import java.util.concurrent.Executors;
  */
 public class Server {
 	private final ServerSocket serverSocket;
+	private final ServerSocketChannel unixListener;                                                // Same-host clients, null if not enabled
 	private final ExecutorService pool = Executors.newCachedThreadPool();
-	private static boolean serverRunning = true;
-	private static boolean isInspecting = false;
+	private static volatile boolean serverRunning = true;                                         // Read by the accept loops and client handlers
+	private static volatile boolean isInspecting = false;
 	private String currentInspectTopic = null;
+	private final TimerWheel timerWheel = new TimerWheel(100, 512);                                // Idle checks for all clients, 100ms resolution
+	private static volatile long heartbeatMillis = Long.getLong("pubsub.heartbeatMillis", 10_000);     // Silence before the server sends a PING
+	private static volatile long idleTimeoutMillis = Long.getLong("pubsub.idleTimeoutMillis", 30_000); // Silence before the client is reaped
 
-	public Server(ServerSocket serverSocket) { this.serverSocket = serverSocket; }
+	public Server(ServerSocket serverSocket) { this(serverSocket, null); }
+
+	/**
+	 * Constructs a Server that also accepts clients on a Unix domain socket.
+	 *
+	 * @param serverSocket the TCP listener
+	 * @param unixListener the Unix domain socket listener, or null
+	 */
+	public Server(ServerSocket serverSocket, ServerSocketChannel unixListener) {
+		this.serverSocket = serverSocket;
+		this.unixListener = unixListener;
+	}
 
 	/**
 	 * Starts the server to accept client connections and handle them using ClientHandler.
@@ -42,6 +67,7 @@ public class Server {
 					Socket socket = serverSocket.accept();
 					System.out.println("--- NEW CLIENT CONNECTED ---");
 					ClientHandler clientHandler = new ClientHandler(socket, this);
+					traceAccept(clientHandler, "tcp");
 					pool.execute(clientHandler);
 				} catch (SocketTimeoutException | SocketException e) {
 					if (!serverRunning) {
@@ -56,6 +82,30 @@ public class Server {
 		}
 	}
 
+	/**
+	 * Accepts clients on the Unix domain socket, alongside the TCP listener. Clients are handled exactly like TCP clients.
+	 */
+	private void acceptUnixClients() {
+		try {
+			System.out.println("--- SERVER LISTENING ON UNIX SOCKET " + unixListener.getLocalAddress() + " ---");
+			while (serverRunning) {
+				try {
+					UnixSocket socket = new UnixSocket(unixListener.accept());
+					System.out.println("--- NEW CLIENT CONNECTED (UNIX SOCKET) ---");
+					ClientHandler clientHandler = new ClientHandler(socket, this);
+					traceAccept(clientHandler, "unix");
+					pool.execute(clientHandler);
+				} catch (ClosedChannelException | RejectedExecutionException e) {
+					break; // Listener closed or pool shut down, server is quitting
+				} catch (IOException e) {
+					System.out.println("> Error accepting a Unix socket client: " + e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("> Error on the Unix socket listener: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Listens for server commands from the console input.
 	 * Allows the server operator to execute commands like inspect, listall, delete, etc.
@@ -77,7 +127,8 @@ public class Server {
 				case "quit" -> shutdownServer();
 				case "inspect" -> startInspectMode(tokens);
 				case "end" -> endInspectMode();
-				case "listall" -> listAllMessagesInTopic();
+				case "listall" -> listAllMessagesInTopic(tokens);
+				case "search" -> searchMessagesInTopic(tokens);
 				case "delete" -> deleteMessage(tokens);
 				case "help" -> showHelp();
 				case "kick" -> kickClient(tokens);
@@ -85,6 +136,16 @@ public class Server {
 				case "export" -> export(tokens);
 				case "users" -> showAllUsersInformation();
 				case "user" -> showUserInformation(tokens);
+				case "heartbeat" -> configureHeartbeat(tokens);
+				case "metrics" -> System.out.println(Metrics.report());
+				case "ratelimit" -> configureRateLimit(tokens);
+				case "subscriptions" -> showDurableSubscriptions();
+				case "conflate" -> configureConflation(tokens);
+				case "partition" -> createPartitionedTopic(tokens);
+				case "groups" -> showSubscriptionGroups();
+				case "stats" -> dumpStats(tokens);
+				case "links" -> System.out.println(Federation.describe());
+				case "link" -> linkPeer(tokens);
 				default -> System.out.println("> Unknown command. Enter 'help' to see the list of available commands.\n");
 				}
 			}
@@ -95,6 +156,7 @@ public class Server {
 
 	/**
 	 * "show": Displays the list of existing topics.
+	 * Counts come from the live topic statistics, so the cost does not depend on the number of connected clients.
 	 * Not available during inspect mode.
 	 */
 	private static void showTopics() {
@@ -110,27 +172,24 @@ public class Server {
 
 		StringBuilder showTopicsOutput = new StringBuilder();
 		showTopicsOutput.append("--- SHOW: EXISTING TOPICS ---\n");
-		ArrayList<String> existingTopics = new ArrayList<>();
 		for (String topic : ClientHandler.topics.keySet()) {
-			if (existingTopics.contains(topic)) {
-				continue;
+			TopicStats.Stats stats = TopicStats.of(topic);
+			String partitionOf = PartitionedTopics.baseOf(topic);
+			TopicStats.Stats wholeTopic = TopicStats.of(partitionOf); // Clients on the partitioned topic are on every partition
+			showTopicsOutput.append("\n--- TOPIC: ").append(topic).append("\n");
+			showTopicsOutput.append("> PUB: ").append(stats.getPublishers() + wholeTopic.getPublishers()).append("\n");
+			showTopicsOutput.append("> SUB: ").append(stats.getSubscribers() + wholeTopic.getSubscribers()).append("\n");
+			showTopicsOutput.append("> MSG: ").append(stats.getMessages()).append(" (").append(stats.getBytes()).append(" BYTES)\n");
+			showTopicsOutput.append("> LAST PUBLISH: ").append(TopicStats.formatTime(stats.getLastPublish())).append("\n");
+			showTopicsOutput.append("> FAN-OUT: ").append(stats.getFanOut()).append("\n");
+			LongAdder expired = Metrics.expiredMessages.get(topic);
+			showTopicsOutput.append("> EXPIRED: ").append(expired == null ? 0 : expired.sum()).append("\n");
+			if (partitionOf != null) {
+				showTopicsOutput.append("> PARTITION OF: ").append(partitionOf).append(" (").append(PartitionedTopics.count(partitionOf)).append(" PARTITIONS)\n");
 			}
-			existingTopics.add(topic);
-			int publishers = 0, subscribers = 0;
-			for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
-				if (topic.equals(clientHandler.getTopic())) {
-					boolean isPublisher = clientHandler.getRole().equals("Publisher");
-					if (isPublisher) {
-						publishers++;
-					} else {
-						subscribers++;
-					}
-				}
+			if (ConflatedTopics.isConflated(topic)) {
+				showTopicsOutput.append("> CONFLATED: ").append(ConflatedTopics.keys(topic)).append(" KEYS\n");
 			}
-			showTopicsOutput.append("\n--- TOPIC: ").append(topic).append("\n");
-			showTopicsOutput.append("> PUB: ").append(publishers).append("\n");
-			showTopicsOutput.append("> SUB: ").append(subscribers).append("\n");
-			showTopicsOutput.append("> MSG: ").append(ClientHandler.topics.get(topic).size()).append("\n");
 		}
 		showTopicsOutput.append("\n--- END OF TOPIC LIST ---\n");
 		System.out.println(showTopicsOutput);
@@ -155,7 +214,16 @@ public class Server {
 			if (!serverSocket.isClosed()) {
 				serverSocket.close();
 			}
+			if (unixListener != null) {
+				Path socketFile = ((UnixDomainSocketAddress) unixListener.getLocalAddress()).getPath();
+				unixListener.close();
+				Files.deleteIfExists(socketFile);
+			}
+			timerWheel.stop();
+			Federation.stop();
+			SpillStore.discardAll();
 			pool.shutdownNow();
+			DurableSubscriptions.save();
 			System.out.println("> (POST-QUIT) Connected clients: " + ClientHandler.clientHandlers.size());
 		} catch (IOException e) {
 			System.out.println("> Error shutting down server: " + e.getMessage());
@@ -165,6 +233,53 @@ public class Server {
 		System.exit(0);
 	}
 
+	/**
+	 * Records a client connecting for Flight Recorder.
+	 *
+	 * @param clientHandler the new client's handler
+	 * @param transport     "tcp" or "unix"
+	 */
+	private static void traceAccept(ClientHandler clientHandler, String transport) {
+		Tracing.Accept event = new Tracing.Accept();
+		if (event.isEnabled()) {
+			event.userID = clientHandler.getUserID();
+			event.transport = transport;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records the operator starting or ending inspect mode for Flight Recorder.
+	 *
+	 * @param topic   the inspected topic
+	 * @param started whether inspect mode started or ended
+	 */
+	private static void traceInspect(String topic, boolean started) {
+		Tracing.Inspect event = new Tracing.Inspect();
+		if (event.isEnabled()) {
+			event.topic = topic;
+			event.started = started;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Commits an export event, if a recording wants it.
+	 *
+	 * @param event    the event, begun when the export started
+	 * @param kind     "topic" or "user"
+	 * @param target   the exported topic or user ID
+	 * @param messages the number of messages exported
+	 */
+	private static void commitExport(Tracing.Export event, String kind, String target, int messages) {
+		if (event.shouldCommit()) {
+			event.kind = kind;
+			event.target = target;
+			event.messages = messages;
+			event.commit();
+		}
+	}
+
 	/**
 	 * "inspect": Starts inspect mode for the specified topic.
 	 * In inspect mode, the server operator can list and delete messages in a topic.
@@ -183,19 +298,26 @@ public class Server {
 		}
 
 		String topic = String.join("_", Arrays.copyOfRange(tokens, 1, tokens.length)); // "example topic" -> "example_topic"
+		if (PartitionedTopics.isPartitioned(topic)) {
+			System.out.println("> Topic '" + topic + "' has " + PartitionedTopics.count(topic) + " partitions: inspect one of them, e.g. '"
+			                   + PartitionedTopics.partition(topic, 0) + "'.\n");
+			return;
+		}
 		if (!ClientHandler.topics.containsKey(topic)) {
 			System.out.println("> Topic '" + topic + "' does not exist.\n");
 			return;
 		}
 
+		SpillStore.pageIn(topic); // Kept in memory while inspected
 		isInspecting = true;
 		currentInspectTopic = topic;
+		traceInspect(topic, true);
 		System.out.println("--- INSPECT MODE STARTED ---");
 		System.out.println("> Begun inspecting topic '" + topic + "'. Enter 'help' for a list of available commands.\n");
 
 		// Notify clients that the server is inspecting the topic
 		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
-			if (topic.equals(clientHandler.getTopic())) {
+			if (clientHandler.receives(topic)) {
 				clientHandler.setIsServerInspecting(isInspecting);
 			}
 		}
@@ -212,11 +334,12 @@ public class Server {
 		}
 
 		isInspecting = false;
+		traceInspect(currentInspectTopic, false);
 		System.out.println("> Exited inspect mode for topic '" + currentInspectTopic + "'.");
 		System.out.println("--- INSPECT MODE ENDED ---\n");
 		// Notify clients that the server has stopped inspecting the topic
 		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
-			if (currentInspectTopic.equals(clientHandler.getTopic())) {
+			if (clientHandler.receives(currentInspectTopic)) {
 				clientHandler.setIsServerInspecting(isInspecting);
 			}
 		}
@@ -224,32 +347,84 @@ public class Server {
 	}
 
 	/**
-	 * "listall": Lists all messages in the current inspect topic.
+	 * "listall": Lists all messages in the current inspect topic, or those published within a time window.
 	 * Only available when in inspect mode.
+	 * Usage: listall [since <time> [until <time>]]
+	 *
+	 * @param tokens the command tokens containing the optional time window
 	 */
-	private void listAllMessagesInTopic() {
+	private void listAllMessagesInTopic(String[] tokens) {
 		if (!isInspecting) {
 			System.out.println("> Command 'listall' is only available in inspect mode.\n");
 			return;
 		}
 
+		Tracing.ListAll event = new Tracing.ListAll();
+		event.begin();
+		if (tokens.length > 1) {
+			TimeIndex.Window window;
+			try {
+				window = TimeIndex.Window.parse(tokens, 1);
+			} catch (IllegalArgumentException e) {
+				System.out.println("> " + e.getMessage() + "\n");
+				return;
+			}
+			ArrayList<Message> messages = window.messagesIn(currentInspectTopic);
+			if (messages.isEmpty()) {
+				System.out.println("> No messages in topic '" + currentInspectTopic + "' " + window + ".\n");
+				return;
+			}
+			System.out.println("--- LISTALL: " + messages.size() + " MESSAGES IN '" + currentInspectTopic + "' " + window + " ---\n");
+			for (Message m : messages) {
+				System.out.println(m);
+			}
+			System.out.println("--- LISTALL: END OF MESSAGES IN '" + currentInspectTopic + "' ---\n");
+			ClientHandler.commitListAll(event, -1, currentInspectTopic, messages.size());
+			return;
+		}
+
 		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(currentInspectTopic);
 		if (messages == null || messages.isEmpty()) {
 			System.out.println("> No messages available for topic '" + currentInspectTopic + "'.\n");
 			return;
 		}
 		System.out.println("--- LISTALL: " + messages.size() + " MESSAGES IN '" + currentInspectTopic + "' ---\n");
+		int listed = 0;
 		for (Message m : messages) {
 			System.out.println(m);
+			listed++;
 		}
 		System.out.println("--- LISTALL: END OF MESSAGES IN '" + currentInspectTopic + "' ---\n");
+		ClientHandler.commitListAll(event, -1, currentInspectTopic, listed);
 	}
 
 	/**
-	 * "delete": Deletes a message with the specified message ID from the current inspect topic.
-	 * Notifies clients in the topic about the deletion.
+	 * "search": Lists the messages in the current inspect topic containing all the given terms, most recent first.
+	 * Only available when in inspect mode.
+	 *
+	 * @param tokens the command tokens containing the search terms and optional page
+	 */
+	private void searchMessagesInTopic(String[] tokens) {
+		if (!isInspecting) {
+			System.out.println("> Command 'search' is only available in inspect mode.\n");
+			return;
+		}
+
+		try {
+			System.out.println(SearchIndex.Query.parse(tokens).run(currentInspectTopic));
+		} catch (IllegalArgumentException e) {
+			System.out.println("> " + e.getMessage() + "\n");
+		}
+	}
+
+	/**
+	 * "delete": Deletes messages from the current inspect topic: one by ID, or in bulk by ID range, by publisher, by
+	 * time window or by body pattern. A bulk delete is applied in one pass over the topic, and clients on the topic
+	 * get one notice listing the deleted IDs.
+	 * Usage: delete <messageID> | delete <topic>@<messageID> | delete <fromID>-<toID> | delete user <userID>
+	 *        | delete since <time> [until <time>] | delete matching <regex>
 	 *
-	 * @param tokens the command tokens containing the message ID to delete
+	 * @param tokens the command tokens containing what to delete
 	 */
 	private void deleteMessage(String[] tokens) {
 		if (!isInspecting) {
@@ -257,48 +432,91 @@ public class Server {
 			return;
 		}
 
-		if (tokens.length < 2 || !tokens[1].matches("\\d+")) {
-			System.out.println("> Usage: delete <messageID> (see 'listall' for valid id's)\n");
+		Predicate<Message> condition;
+		String description;
+		Message.GlobalId globalId = tokens.length == 2 ? Message.parseGlobalId(tokens[1]) : null;
+		if (globalId != null && !globalId.getTopic().equals(currentInspectTopic)) {
+			System.out.println("> Message " + globalId + " is not in the inspected topic '" + currentInspectTopic + "'.\n");
+			return;
+		}
+		try {
+			if (globalId != null || (tokens.length == 2 && tokens[1].matches("\\d{1,18}"))) {
+				long messageID = globalId != null ? globalId.getId() : Long.parseLong(tokens[1]);
+				condition = msg -> msg.getId() == messageID;
+				description = "with ID " + messageID;
+			} else if (tokens.length == 2 && tokens[1].matches("\\d{1,18}-\\d{1,18}")) {
+				long from = Long.parseLong(tokens[1].substring(0, tokens[1].indexOf('-')));
+				long to = Long.parseLong(tokens[1].substring(tokens[1].indexOf('-') + 1));
+				condition = msg -> msg.getId() >= from && msg.getId() <= to;
+				description = "with IDs " + from + " to " + to;
+			} else if (tokens.length == 3 && tokens[1].equalsIgnoreCase("user") && tokens[2].matches("\\d{1,9}")) {
+				int userID = Integer.parseInt(tokens[2]);
+				condition = msg -> msg.getUserID() == userID && msg.getOrigin() == null; // Relayed messages' IDs are other nodes' users
+				description = "published by user ID " + userID;
+			} else if (tokens.length > 2 && tokens[1].equalsIgnoreCase("since")) {
+				TimeIndex.Window window = TimeIndex.Window.parse(tokens, 1);
+				condition = window::contains;
+				description = "published " + window;
+			} else if (tokens.length > 2 && tokens[1].equalsIgnoreCase("matching")) {
+				String regex = String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length));
+				Pattern pattern = Pattern.compile(regex);
+				condition = msg -> pattern.matcher(msg.getBody()).find();
+				description = "matching '" + regex + "'";
+			} else {
+				System.out.println("> Usage: delete <messageID> | <topic>@<messageID> | <fromID>-<toID> | user <userID> | since <time> [until <time>] | matching <regex>"
+				                   + " (see 'listall' for valid id's)\n");
+				return;
+			}
+		} catch (PatternSyntaxException e) {
+			System.out.println("> Invalid pattern: " + e.getDescription() + "\n");
+			return;
+		} catch (IllegalArgumentException e) {
+			System.out.println("> " + e.getMessage() + "\n");
 			return;
 		}
 
-		int messageID = Integer.parseInt(tokens[1]);
-		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(currentInspectTopic);
-		if (messages == null) {
+		if (!ClientHandler.topics.containsKey(currentInspectTopic)) {
 			System.out.println("> No messages found for topic '" + currentInspectTopic + "'.\n");
 			return;
 		}
 
-		boolean removedFromTopic = messages.removeIf(msg -> msg.getId() == messageID);
-		boolean removedFromClient = deleteFromClient(messageID);
-
-		if (removedFromTopic && removedFromClient) {
-			System.out.println("> (SUCCESS) Message with ID " + messageID + " deleted.\n");
-			for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
-				if (currentInspectTopic.equals(clientHandler.getTopic())) {
-					clientHandler.broadcastMessageFromServer("> MESSAGE (ID " + messageID + ") DELETED BY SERVER");
-				}
+		ArrayList<Message> removed = ClientHandler.removeMessages(currentInspectTopic, condition);
+		if (removed.isEmpty()) {
+			System.out.println("> (ERROR) No message " + description + " found.\n");
+			return;
+		}
+		System.out.println(removed.size() == 1 ? "> (SUCCESS) Message with ID " + removed.get(0).getId() + " deleted.\n"
+		                                       : "> (SUCCESS) " + removed.size() + " messages " + description + " deleted.\n");
+		String notice = removed.size() == 1 ? "> MESSAGE (ID " + removed.get(0).getId() + ") DELETED BY SERVER"
+		                                    : "> " + removed.size() + " MESSAGES (IDS " + idRanges(removed) + ") DELETED BY SERVER";
+		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
+			if (clientHandler.receives(currentInspectTopic)) {
+				clientHandler.broadcastMessageFromServer(notice);
 			}
-		} else {
-			System.out.println("> (ERROR) Message with ID " + messageID + " not found.\n");
 		}
 	}
 
 	/**
-	 * Deletes a message with the specified message ID from a client's message list.
-	 * Helper method for the "delete" command.
+	 * Lists the IDs of removed messages as ranges, e.g. "3, 5-9, 12", shortened after a few dozen ranges.
 	 *
-	 * @param msgID the message ID to delete
-	 * @return true if the message was deleted, false otherwise
+	 * @param removed the removed messages, in topic order (ascending IDs)
+	 * @return the ID ranges
 	 */
-	public boolean deleteFromClient(int msgID) {
-		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
-			ArrayList<Message> messages = clientHandler.publisherMessages.get(currentInspectTopic);
-			if (messages.removeIf(msg -> msg.getId() == msgID)) {
-				return true;
+	private static String idRanges(List<Message> removed) {
+		StringBuilder ranges = new StringBuilder();
+		int shown = 0;
+		for (int i = 0; i < removed.size(); i++) {
+			long first = removed.get(i).getId();
+			while (i + 1 < removed.size() && removed.get(i + 1).getId() == removed.get(i).getId() + 1) {
+				i++;
+			}
+			if (shown++ == 32) {
+				return ranges.append(", ...").toString();
 			}
+			long last = removed.get(i).getId();
+			ranges.append(ranges.isEmpty() ? "" : ", ").append(first).append(first == last ? "" : "-" + last);
 		}
-		return false;
+		return ranges.toString();
 	}
 
 	/**
@@ -309,13 +527,25 @@ public class Server {
 		StringBuilder help = new StringBuilder();
 		help.append("--- HELP: AVAILABLE COMMANDS ---\n");
 		help.append("> kick <userID>: Kick a client by ID\n");
-		help.append("> export user <userID>: Export all messages of a user to logs/user_exports\n");
-		help.append("> export topic <topic>: Export all messages of a topic to logs/topic_exports\n");
+		help.append("> export user <userID> [since <time> [until <time>]]: Export all messages of a user to logs/user_exports\n");
+		help.append("> export topic <topic>[@<fromID>] [since <time> [until <time>]]: Export all messages of a topic (from an ID on) to logs/topic_exports\n");
 		help.append("> users: Show all connected users and their details\n");
 		help.append("> user <userID>: Show details of a specific user\n");
+		help.append("> heartbeat [<intervalSeconds> <timeoutSeconds>]: Show or set the heartbeat interval and idle timeout\n");
+		help.append("> metrics: Show server metrics\n");
+		help.append("> stats [export]: Print per-topic statistics as JSON lines, or save them to logs/stats\n");
+		help.append("> ratelimit [connection | global | topic <topic>] <msgPerSecond | off> [burst]: Show or set publish rate limits\n");
+		help.append("> subscriptions: Show durable subscriptions, their committed offsets and backlogs\n");
+		help.append("> conflate <topic> [off]: Keep only the latest message per key on a topic (last-value topic), or stop doing so\n");
+		help.append("> groups: Show shared subscription groups, their members and delivery counts\n");
+		help.append("> links: Show this node's federation links, the topics its peers subscribe to and forwarding counts\n");
+		help.append("> link <host> <port>: Link this node to another node's federation port\n");
+		help.append("> partition <topic> <n>: Create a topic split into <n> partitions ('<topic>#0' to '<topic>#<n-1>'), ordered per key\n");
 		if (isInspecting) {
-			help.append("> listall: List all messages in the topic\n");
-			help.append("> delete <messageId>: Delete a message by ID\n");
+			help.append("> listall [since <time> [until <time>]]: List all messages in the topic, or those in a time window\n");
+			help.append("> search <terms...> [page <n>]: List the messages containing all the terms, most recent first\n");
+			help.append("> delete <messageId | topic@messageId>: Delete a message by ID\n");
+			help.append("> delete <fromID>-<toID> | user <userID> | since <time> [until <time>] | matching <regex>: Delete messages in bulk\n");
 			help.append("> clear: Clear all messages in the topic being inspected\n");
 			help.append("> end: Exit interactive mode\n\n");
 			help.append("! N.B. Commands 'quit' & 'inspect' are disabled in interactive mode,\n");
@@ -382,10 +612,9 @@ public class Server {
 		} catch (IllegalStateException e) {
 			System.out.println("> Error processing command: " + e.getMessage());
 		}
-		messages.clear();
+		ClientHandler.clearMessages(topic);
 		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
 			if (clientHandler.publisherMessages.containsKey(topic)) {
-				clientHandler.publisherMessages.get(topic).clear();
 				clientHandler.broadcastMessageFromServer("> ALL MESSAGES IN '" + topic + "' CLEARED BY SERVER\n");
 			}
 		}
@@ -401,14 +630,34 @@ public class Server {
 	 */
 	private void export(String[] tokens) {
 		if (tokens.length < 3) {
-			System.out.println("> Usage: export [user <userID> | topic <topic>]\n");
+			System.out.println("> Usage: export [user <userID> | topic <topic> | topic <topic>@<fromMessageID>] [since <time> [until <time>]]\n");
 			return;
 		}
 
+		// The optional time window follows the user ID or topic name
+		int windowStart = tokens.length;
+		for (int i = 3; i < tokens.length; i++) {
+			if (tokens[i].equalsIgnoreCase("since")) {
+				windowStart = i;
+				break;
+			}
+		}
+		TimeIndex.Window window = null;
+		if (windowStart < tokens.length) {
+			try {
+				window = TimeIndex.Window.parse(tokens, windowStart);
+			} catch (IllegalArgumentException e) {
+				System.out.println("> " + e.getMessage() + "\n");
+				return;
+			}
+		}
+
 		String exportType = tokens[1];
+		String name = String.join("_", Arrays.copyOfRange(tokens, 2, windowStart));
+		Message.GlobalId from = Message.parseGlobalId(name);
 		switch (exportType) {
-		case "user" -> exportUser(tokens[2]);                                                        // export user <userID>
-		case "topic" -> exportTopic(String.join("_", Arrays.copyOfRange(tokens, 2, tokens.length))); // export topic <topic>
+		case "user" -> exportUser(tokens[2], window);                                                                          // export user <userID>
+		case "topic" -> exportTopic(from == null ? name : from.getTopic(), window, from == null ? Long.MIN_VALUE : from.getId()); // export topic <topic>[@<ID>]
 		default -> System.out.println("> Invalid export type. Use 'user' or 'topic'.\n");
 		}
 	}
@@ -416,17 +665,26 @@ public class Server {
 	/**
 	 * Exports all messages for a specific topic to a text file in the logs/topic_exports directory.
 	 *
-	 * @param topic the topic to export messages for
+	 * @param topic  the topic to export messages for
+	 * @param window the time window to export, or null for all messages
+	 * @param fromID the first message ID to export, Long.MIN_VALUE for all
 	 */
-	private void exportTopic(String topic) {
-		if (!ClientHandler.topics.containsKey(topic)) {
+	private void exportTopic(String topic, TimeIndex.Window window, long fromID) {
+		if (!ClientHandler.topics.containsKey(topic) && !PartitionedTopics.isPartitioned(topic)) {
 			System.out.println("> Topic '" + topic + "' does not exist.\n");
 			return;
 		}
 
-		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(topic);
+		// Across all partitions on a partitioned topic
+		Tracing.Export event = new Tracing.Export();
+		event.begin();
+		Collection<Message> messages = window == null ? PartitionedTopics.snapshot(topic) : PartitionedTopics.snapshot(topic, window);
+		if (fromID != Long.MIN_VALUE) { // Only names one topic or partition: IDs are counted per partition
+			messages.removeIf(msg -> msg.getId() < fromID);
+		}
+		String range = (fromID == Long.MIN_VALUE ? "" : " from ID " + fromID) + (window == null ? "" : " " + window);
 		if (messages.isEmpty()) {
-			System.out.println("> No messages available for topic '" + topic + "'.\n");
+			System.out.println("> No messages available for topic '" + topic + "'" + range + ".\n");
 			return;
 		}
 
@@ -441,7 +699,7 @@ public class Server {
 			Path path = Paths.get(dir);
 			Files.createDirectories(path);
 			try (PrintWriter writer = new PrintWriter(dir + "/" + filename)) {
-				writer.println("--- EXPORTED MESSAGES FOR TOPIC '" + topic + "' ---\n");
+				writer.println("--- EXPORTED MESSAGES FOR TOPIC '" + topic + "'" + range + " ---\n");
 				int user = -1;
 				for (Message msg : messages) {
 					if (!(msg.getUserID() == user)) {
@@ -451,6 +709,7 @@ public class Server {
 					writer.println(msg);
 				}
 				System.out.println("> Messages in topic '" + topic + "' exported to '" + dir + "/" + filename + "'.\n");
+				commitExport(event, "topic", topic, messages.size());
 			}
 		} catch (IOException e) {
 			System.out.println("> Error exporting messages: " + e.getMessage());
@@ -461,8 +720,9 @@ public class Server {
 	 * Exports all messages for a specific user to a text file in the logs/user_exports directory.
 	 *
 	 * @param userID the user ID to export messages for
+	 * @param window the time window to export, or null for all messages
 	 */
-	private void exportUser(String userID) {
+	private void exportUser(String userID, TimeIndex.Window window) {
 		if (!userID.matches("\\d+")) {
 			System.out.println("> Invalid user ID. Enter 'users' to see the list of connected users.\n");
 			return;
@@ -475,13 +735,22 @@ public class Server {
 			return;
 		}
 
+		Tracing.Export event = new Tracing.Export();
+		event.begin();
 		ArrayList<Message> messages = new ArrayList<>();
-		for (ArrayList<Message> msgs : clientHandler.publisherMessages.values()) {
-			messages.addAll(msgs);
+		for (var entry : clientHandler.publisherMessages.entrySet()) {
+			SpillStore.pageIn(entry.getKey());
+			Object topicLock = ClientHandler.topics.get(entry.getKey()); // The publisher's list grows under its topic's lock
+			synchronized (topicLock == null ? entry.getValue() : topicLock) {  // No topic (since partitioned): the list no longer grows
+				messages.addAll(entry.getValue());
+			}
+		}
+		if (window != null) { // A user's messages are few compared to a topic's, a filter is enough
+			messages.removeIf(msg -> !window.contains(msg));
 		}
 
 		if (messages.isEmpty()) {
-			System.out.println("> No messages available for user ID " + id + ".\n");
+			System.out.println("> No messages available for user ID " + id + (window == null ? "" : " " + window) + ".\n");
 			return;
 		}
 
@@ -496,7 +765,7 @@ public class Server {
 			Path path = Paths.get(dir);
 			Files.createDirectories(path);
 			try (PrintWriter writer = new PrintWriter(dir + "/" + filename)) {
-				writer.println("--- EXPORTED MESSAGES FOR USER ID " + id + " ---\n");
+				writer.println("--- EXPORTED MESSAGES FOR USER ID " + id + (window == null ? "" : " " + window) + " ---\n");
 				String topic = null;
 				for (Message msg : messages) {
 					if (!msg.getTopic().equals(topic)) {
@@ -506,6 +775,7 @@ public class Server {
 					writer.println(msg);
 				}
 				System.out.println("> Messages for user ID " + id + " exported to '" + dir + "/" + filename + "'.\n");
+				commitExport(event, "user", userID, messages.size());
 			}
 		} catch (IOException e) {
 			System.out.println("> Error exporting messages: " + e.getMessage());
@@ -521,8 +791,11 @@ public class Server {
 			return;
 		}
 
+		long connected = ClientHandler.clientHandlers.size(), publishers = TopicStats.publishers(), subscribers = TopicStats.subscribers();
 		StringBuilder usersInformation = new StringBuilder();
-		usersInformation.append("--- SHOW: ALL USERS ---\n\n");
+		usersInformation.append("--- SHOW: ALL USERS ---\n")
+		    .append("> ").append(connected).append(" CONNECTED: ").append(publishers).append(" PUBLISHERS, ").append(subscribers)
+		    .append(" SUBSCRIBERS, ").append(Math.max(0, connected - publishers - subscribers)).append(" UNREGISTERED\n\n");
 		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
 			usersInformation.append(showUserInformation(clientHandler)).append("\n");
 		}
@@ -557,11 +830,171 @@ public class Server {
 		userInformation.append("--- SHOW: USER ID " + clientHandler.getUserID() + " ---\n")
 		    .append("> CURRENT TOPIC: " + clientHandler.getTopic() + "\n")
 		    .append("> CURRENT ROLE:  " + clientHandler.getRole() + "\n")
+		    .append("> TRANSPORT:     " + clientHandler.getTransport() + "\n")
 		    .append("> MESSAGES SENT: " + clientHandler.getNumMessagesSent() + "\n")
 		    .append("--- END OF USER DETAILS ---");
 		System.out.println(userInformation);
 	}
 
+	/**
+	 * "conflate": Makes a topic a last-value topic, where a message published with "sendkey" replaces the key's
+	 * previous value, or makes it a regular topic again.
+	 *
+	 * @param tokens the command tokens containing the topic and optionally "off"
+	 */
+	private void configureConflation(String[] tokens) {
+		if (tokens.length < 2) {
+			System.out.println("> Usage: conflate <topic> [off]\n");
+			return;
+		}
+
+		boolean off = tokens.length > 2 && tokens[tokens.length - 1].equalsIgnoreCase("off");
+		String topic = String.join("_", Arrays.copyOfRange(tokens, 1, off ? tokens.length - 1 : tokens.length));
+		if (PartitionedTopics.isPartitioned(topic)) {
+			System.out.println("> Topic '" + topic + "' is partitioned: conflate its partitions instead, e.g. '" + PartitionedTopics.partition(topic, 0) + "'.\n");
+			return;
+		}
+		if (off) {
+			ConflatedTopics.disable(topic);
+			System.out.println("> Topic '" + topic + "' is no longer conflated.\n");
+		} else if (ConflatedTopics.isConflated(topic)) {
+			System.out.println("> Topic '" + topic + "' is already conflated (" + ConflatedTopics.keys(topic) + " keys).\n");
+		} else {
+			int removed = ConflatedTopics.enable(topic);
+			System.out.println("> Topic '" + topic + "' is now conflated: " + ConflatedTopics.keys(topic) + " keys, "
+			                   + removed + " superseded messages removed.\n");
+		}
+	}
+
+	/**
+	 * "partition": Creates a partitioned topic. Messages published on it go to the partition their key hashes to,
+	 * so they are appended in parallel and stay ordered per key.
+	 *
+	 * @param tokens the command tokens containing the topic and the number of partitions
+	 */
+	private void createPartitionedTopic(String[] tokens) {
+		if (tokens.length < 3 || !tokens[tokens.length - 1].matches("\\d{1,2}")) {
+			System.out.println("> Usage: partition <topic> <n>\n");
+			return;
+		}
+
+		String topic = String.join("_", Arrays.copyOfRange(tokens, 1, tokens.length - 1));
+		int count = Integer.parseInt(tokens[tokens.length - 1]);
+		try {
+			PartitionedTopics.create(topic, count);
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			System.out.println("> " + e.getMessage() + "\n");
+			return;
+		}
+		System.out.println("> Topic '" + topic + "' created with " + count + " partitions, '" + PartitionedTopics.partition(topic, 0)
+		                   + "' to '" + PartitionedTopics.partition(topic, count - 1) + "'.\n");
+	}
+
+	/**
+	 * "link": Links this node to another node of the federation, dialing its federation port now and whenever the
+	 * link is lost.
+	 *
+	 * @param tokens the command tokens containing the peer's host and federation port
+	 */
+	private void linkPeer(String[] tokens) {
+		if (tokens.length != 3 || !tokens[2].matches("\\d{1,5}")) {
+			System.out.println("> Usage: link <host> <port>\n");
+			return;
+		}
+		if (!Federation.isEnabled()) {
+			System.out.println("> Federation is off: start the server with -Dpubsub.federationPort=<port> or -Dpubsub.peers=<host:port,...>.\n");
+			return;
+		}
+		Federation.addPeer(tokens[1], Integer.parseInt(tokens[2]));
+		System.out.println("> Dialing node at " + tokens[1] + ":" + tokens[2] + ". Enter 'links' to see the link.\n");
+	}
+
+	/**
+	 * "stats": Prints the live topic statistics as JSON lines, one object per topic, for scripts and monitoring.
+	 * "stats export" saves them to a file in the logs/stats directory instead.
+	 *
+	 * @param tokens the command tokens
+	 */
+	private void dumpStats(String[] tokens) {
+		String dump = TopicStats.dump();
+		if (tokens.length < 2) {
+			System.out.print(dump);
+			return;
+		}
+		if (!tokens[1].equals("export")) {
+			System.out.println("> Usage: stats [export]\n");
+			return;
+		}
+
+		String dir = "logs/stats";
+		String filename = "stats_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".jsonl";
+		try {
+			Files.createDirectories(Paths.get(dir));
+			try (PrintWriter writer = new PrintWriter(dir + "/" + filename)) {
+				writer.print(dump);
+			}
+			System.out.println("> Topic statistics saved to '" + dir + "/" + filename + "'.\n");
+		} catch (IOException e) {
+			System.out.println("> Error saving topic statistics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * "groups": Shows every shared subscription group with its members, how many messages each was given
+	 * and how many frames each still has to write.
+	 */
+	private void showSubscriptionGroups() {
+		List<SubscriptionGroups.Group> groups = SubscriptionGroups.all();
+		if (groups.isEmpty()) {
+			System.out.println("> No subscription groups.\n");
+			return;
+		}
+
+		StringBuilder list = new StringBuilder("--- SUBSCRIPTION GROUPS ---\n");
+		for (SubscriptionGroups.Group group : groups) {
+			list.append("> ").append(group.getName()).append(" on '").append(group.getTopic()).append("': ")
+			    .append(group.getDelivered()).append(" delivered, ").append(group.getRedelivered()).append(" redelivered\n");
+			for (ClientHandler member : group.getMembers()) {
+				list.append("\t> client ").append(member.getUserID()).append(": ").append(group.getDeliveredTo(member)).append(" given, ")
+				    .append(member.getOutboundDepth()).append(" queued\n");
+			}
+		}
+		list.append("--- END OF SUBSCRIPTION GROUPS ---\n");
+		System.out.println(list);
+	}
+
+	/**
+	 * "subscriptions": Shows every durable subscription with its committed offset, its consumer and its backlog,
+	 * the number of retained messages on its topic after the committed offset.
+	 */
+	private void showDurableSubscriptions() {
+		List<DurableSubscriptions.Subscription> subscriptions = DurableSubscriptions.all();
+		if (subscriptions.isEmpty()) {
+			System.out.println("> No durable subscriptions.\n");
+			return;
+		}
+
+		StringBuilder list = new StringBuilder("--- DURABLE SUBSCRIPTIONS ---\n");
+		for (DurableSubscriptions.Subscription subscription : subscriptions) {
+			int backlog = 0;
+			ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(subscription.getTopic());
+			if (messages != null) {
+				for (Message msg : messages) {
+					if (msg.getId() > subscription.getCommitted()) {
+						backlog++;
+					}
+				}
+			}
+			ClientHandler consumer = subscription.getConsumer();
+			list.append("> ").append(subscription.getName()).append(" on '").append(subscription.getTopic()).append("'")
+			    .append(": committed ").append(subscription.getCommitted())
+			    .append(", backlog ").append(backlog)
+			    .append(", ").append(consumer == null ? "detached" : "consumed by client " + consumer.getUserID()).append("\n");
+		}
+		list.append("--- END OF DURABLE SUBSCRIPTIONS ---\n");
+		System.out.println(list);
+	}
+
 	/**
 	 * Overloaded method to show user information for a specific client handler.
 	 * Helper method for the "users" command.
@@ -572,9 +1005,99 @@ public class Server {
 		return "--- USER ID " + clientHandler.getUserID() + " ---\n"
 		    + "> CURRENT TOPIC: " + clientHandler.getTopic() + "\n"
 		    + "> CURRENT ROLE:  " + clientHandler.getRole() + "\n"
+		    + "> TRANSPORT:     " + clientHandler.getTransport() + "\n"
 		    + "> MESSAGES SENT: " + clientHandler.getNumMessagesSent() + "\n";
 	}
 
+	/**
+	 * "heartbeat": Shows or sets the heartbeat interval and the idle timeout after which silent clients are reaped.
+	 * Connected clients are told the new values so they can adjust their own dead-server detection.
+	 *
+	 * @param tokens the command tokens, optionally containing the interval and timeout in seconds
+	 */
+	private void configureHeartbeat(String[] tokens) {
+		if (tokens.length == 1) {
+			System.out.println("> Heartbeat every " + heartbeatMillis / 1000 + "s, idle timeout " + idleTimeoutMillis / 1000 + "s.\n");
+			return;
+		}
+
+		if (tokens.length < 3 || !tokens[1].matches("\\d+") || !tokens[2].matches("\\d+")) {
+			System.out.println("> Usage: heartbeat <intervalSeconds> <timeoutSeconds>\n");
+			return;
+		}
+
+		long interval = Long.parseLong(tokens[1]) * 1000;
+		long timeout = Long.parseLong(tokens[2]) * 1000;
+		if (interval == 0 || timeout <= interval) {
+			System.out.println("> The interval must be positive and the timeout must be greater than the interval.\n");
+			return;
+		}
+
+		heartbeatMillis = interval;
+		idleTimeoutMillis = timeout;
+		for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
+			clientHandler.broadcastMessageFromServer("HEARTBEAT " + interval + " " + timeout);
+		}
+		System.out.println("> Heartbeat set to every " + tokens[1] + "s, idle timeout " + tokens[2] + "s.\n");
+	}
+
+	/**
+	 * "ratelimit": Shows or sets the publish rate limits.
+	 * Limits apply per connection, per topic or server-wide; publishers exceeding a limit are slowed down, not dropped.
+	 *
+	 * @param tokens the command tokens containing the scope, the rate (or "off") and an optional burst size
+	 */
+	private void configureRateLimit(String[] tokens) {
+		if (tokens.length == 1) {
+			System.out.println(RateLimiter.describe());
+			return;
+		}
+
+		String scope = tokens[1].toLowerCase();
+		int rateIndex = scope.equals("topic") ? 3 : 2;
+		if (tokens.length <= rateIndex || !List.of("connection", "topic", "global").contains(scope)) {
+			System.out.println("> Usage: ratelimit [connection | global | topic <topic>] <msgPerSecond | off> [burst]\n");
+			return;
+		}
+
+		String rateToken = tokens[rateIndex].toLowerCase();
+		String burstToken = tokens.length > rateIndex + 1 ? tokens[rateIndex + 1] : null;
+		if (!(rateToken.equals("off") || rateToken.matches("\\d+(\\.\\d+)?")) || (burstToken != null && !burstToken.matches("\\d+"))) {
+			System.out.println("> Invalid rate or burst. The rate is in messages per second, the burst a whole number of messages.\n");
+			return;
+		}
+
+		double rate = rateToken.equals("off") ? 0 : Double.parseDouble(rateToken);
+		double burst = burstToken != null ? Integer.parseInt(burstToken) : Math.max(1, rate); // Default: one second's worth
+		switch (scope) {
+		case "connection" -> RateLimiter.setConnectionLimit(rate, burst);
+		case "topic" -> RateLimiter.setTopicLimit(tokens[2], rate, burst);
+		default -> RateLimiter.global.configure(rate, burst);
+		}
+		System.out.println("> Rate limit (" + scope + (scope.equals("topic") ? " '" + tokens[2] + "'" : "") + ") "
+		                   + (rate == 0 ? "removed" : "set to " + rate + " msg/s, burst " + (long) burst) + ".\n");
+	}
+
+	/**
+	 * Runs a task on the server's thread pool.
+	 * Used for work that must not run on the caller's thread, e.g. socket writes triggered by the timer wheel.
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Pool already shut down, server is quitting
+		}
+	}
+
+	public TimerWheel getTimerWheel() { return timerWheel; }
+
+	public long getHeartbeatMillis() { return heartbeatMillis; }
+
+	public long getIdleTimeoutMillis() { return idleTimeoutMillis; }
+
 	public boolean isRunning() { return serverRunning; }
 
 	/**
@@ -583,11 +1106,14 @@ public class Server {
 	 * @param topic the topic to check
 	 * @return true if the server is inspecting the topic, false otherwise
 	 */
-	public boolean isInspectingTopic(String topic) { return isInspecting && topic.equals(currentInspectTopic); }
+	public boolean isInspectingTopic(String topic) {
+		return isInspecting && (topic.equals(currentInspectTopic) || topic.equals(PartitionedTopics.baseOf(currentInspectTopic)));
+	}
 
 	/**
 	 * The main method to start the server.
-	 * Expects a port number as an argument.
+	 * Expects a port number as an argument. With -Dpubsub.unixSocket=<path>, same-host clients can also connect
+	 * through a Unix domain socket at that path.
 	 *
 	 * @param args command-line arguments, expects one argument: the port number
 	 */
@@ -597,11 +1123,20 @@ public class Server {
 			System.exit(1);
 		}
 
-		try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
-			Server server = new Server(serverSocket);
+		String unixSocketPath = System.getProperty("pubsub.unixSocket");
+		try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]));
+		     ServerSocketChannel unixListener = unixSocketPath == null ? null : UnixSocket.listen(Path.of(unixSocketPath))) {
+			Server server = new Server(serverSocket, unixListener);
+			DurableSubscriptions.load();
+			DurableSubscriptions.startFlushing(server);
+			SpillStore.start(server);
+			Federation.start(server, serverSocket.getLocalPort());
 			// When start() is called on the thread, server.startServer() is called within the thread
 			Thread serverThread = new Thread(server::startServer);
 			serverThread.start();
+			if (unixListener != null) {
+				new Thread(server::acceptUnixClients).start();
+			}
 			server.processCommand();
 		} catch (IOException e) {
 			System.out.println("> Error starting server: " + e.getMessage());
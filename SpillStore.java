@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The SpillStore class bounds the memory taken by retained message bodies. When the bodies of all topics exceed the
+ * budget, the bodies of the least recently used idle topics (no publisher or subscriber registered, not inspected) are
+ * written to one file per topic and dropped from memory, until usage is back under SPILL_TARGET of the budget.
+ *
+ * Spilled bodies stay readable: a single message reads its record back from the file. Whole-topic reads (listall,
+ * inspect, export, replay) page the topic in first, restoring every body in one pass and deleting the file.
+ * Message metadata and the search and time indexes stay in memory; only bodies are spilled.
+ * Spill files are a cache of the in-memory topics, which are not persisted: they are discarded on startup.
+ */
+public class SpillStore {
+	private static final long BUDGET = Long.getLong("pubsub.memoryBudgetMiB", 0) * 1024 * 1024;              // 0: never spill
+	private static final Path DIR = Paths.get(System.getProperty("pubsub.spillDir", "logs/spill"));
+	private static final long CHECK_MILLIS = 1000;                                                          // Interval between budget checks
+	private static final double SPILL_TARGET = 0.9;                                                          // Usage to spill down to
+	private static final ConcurrentHashMap<String, SpillFile> files = new ConcurrentHashMap<>();              // topic : spill file
+	private static final ConcurrentHashMap<String, Long> lastRead = new ConcurrentHashMap<>();               // topic : last page-in time
+	private static final LongAdder spilledTopics = new LongAdder();                                          // Topics spilled, ever
+	private static final LongAdder pagedInTopics = new LongAdder();                                          // Topics paged in, ever
+
+	private SpillStore() {}
+
+	public static boolean isEnabled() { return BUDGET > 0; }
+
+	/**
+	 * Discards spill files left by a previous run and schedules the periodic budget check on the server's timer wheel.
+	 *
+	 * @param server the server whose timer wheel and pool to use
+	 */
+	public static void start(Server server) {
+		if (!isEnabled()) {
+			return;
+		}
+		try {
+			Files.createDirectories(DIR);
+			try (var stale = Files.newDirectoryStream(DIR, "*.spill")) {
+				for (Path file : stale) {
+					Files.deleteIfExists(file);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("> Error preparing spill directory '" + DIR + "': " + e.getMessage());
+		}
+		scheduleCheck(server);
+	}
+
+	private static void scheduleCheck(Server server) {
+		server.getTimerWheel().schedule(() -> {
+			server.execute(() -> enforce(server));
+			scheduleCheck(server);
+		}, CHECK_MILLIS);
+	}
+
+	/**
+	 * Spills idle topics, least recently used first, while the resident bodies exceed the budget.
+	 *
+	 * @param server the server, to skip the topic being inspected
+	 */
+	private static synchronized void enforce(Server server) {
+		long resident = residentBytes();
+		if (resident <= BUDGET) {
+			return;
+		}
+
+		List<String> candidates = new ArrayList<>();
+		for (String topic : ClientHandler.topics.keySet()) {
+			if (isIdle(topic, server) && TopicStats.of(topic).getBytes() > spilledBytes(topic)) {
+				candidates.add(topic);
+			}
+		}
+		candidates.sort(Comparator.comparingLong(SpillStore::lastAccess));
+
+		long target = (long) (BUDGET * SPILL_TARGET);
+		for (String topic : candidates) {
+			if (resident <= target) {
+				break;
+			}
+			resident -= spill(topic);
+		}
+	}
+
+	/**
+	 * Checks that nobody is using a topic: no client registered on it (or on the partitioned topic it belongs to)
+	 * and the server is not inspecting it.
+	 */
+	private static boolean isIdle(String topic, Server server) {
+		String base = PartitionedTopics.baseOf(topic);
+		TopicStats.Stats stats = TopicStats.of(topic), wholeTopic = TopicStats.of(base);
+		return stats.getPublishers() + stats.getSubscribers() + wholeTopic.getPublishers() + wholeTopic.getSubscribers() == 0
+		    && !server.isInspectingTopic(topic) && (base == null || !server.isInspectingTopic(base));
+	}
+
+	private static long lastAccess(String topic) { return Math.max(TopicStats.of(topic).getLastPublish(), lastRead.getOrDefault(topic, 0L)); }
+
+	/**
+	 * Writes the bodies of a topic's resident messages to its spill file and drops them from memory.
+	 *
+	 * @param topic the topic, or a partition
+	 * @return the bytes spilled
+	 */
+	private static long spill(String topic) {
+		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(topic);
+		if (messages == null) {
+			return 0;
+		}
+
+		synchronized (messages) {
+			SpillFile file = files.get(topic);
+			ArrayList<Message> written;
+			long spilled = 0;
+			try {
+				if (file == null) {
+					file = new SpillFile(DIR.resolve(fileName(topic)));
+					files.put(topic, file);
+				}
+				written = new ArrayList<>();
+				ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+				ArrayList<Long> offsets = new ArrayList<>();
+				long offset = file.channel.size();
+				for (Message msg : messages) {
+					if (msg.isSpilled()) {
+						continue;
+					}
+					byte[] body = msg.getBody().getBytes(StandardCharsets.UTF_8);
+					if (batch.remaining() < 4 + body.length) {
+						offset += file.write(batch);
+						if (batch.capacity() < 4 + body.length) {
+							batch = ByteBuffer.allocate(4 + body.length);
+						}
+					}
+					offsets.add(offset + batch.position());
+					batch.putInt(body.length).put(body);
+					written.add(msg);
+				}
+				file.write(batch);
+				for (int i = 0; i < written.size(); i++) { // Only once every record is in the file
+					Message msg = written.get(i);
+					msg.spilled(offsets.get(i));
+					spilled += msg.getSize();
+				}
+			} catch (IOException e) {
+				System.out.println("> Error spilling topic '" + topic + "': " + e.getMessage());
+				if (file != null && file.records.get() == 0) {
+					discard(topic);
+				}
+				return 0;
+			}
+			file.bytes.addAndGet(spilled);
+			file.records.addAndGet(written.size());
+			spilledTopics.increment();
+			return spilled;
+		}
+	}
+
+	/**
+	 * Restores the spilled bodies of a topic to memory before a whole-topic read, and marks the topic as used.
+	 *
+	 * @param topic the topic, or a partition
+	 */
+	public static void pageIn(String topic) {
+		if (!isEnabled()) {
+			return;
+		}
+		lastRead.put(topic, System.currentTimeMillis());
+		if (!files.containsKey(topic)) {
+			return;
+		}
+		ConcurrentLinkedQueue<Message> messages = ClientHandler.topics.get(topic);
+		if (messages == null) {
+			return;
+		}
+
+		synchronized (messages) {
+			SpillFile file = files.get(topic);
+			if (file == null) {
+				return; // Paged in meanwhile
+			}
+			try {
+				ByteBuffer contents = ByteBuffer.allocate((int) file.channel.size());
+				while (contents.hasRemaining() && file.channel.read(contents, contents.position()) > 0) {}
+				for (Message msg : messages) {
+					long offset = msg.spillOffset();
+					if (offset != -1) {
+						int length = contents.getInt((int) offset);
+						msg.pagedIn(new String(contents.array(), (int) offset + 4, length, StandardCharsets.UTF_8));
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("> Error paging in topic '" + topic + "': " + e.getMessage());
+				return; // Bodies remain readable one at a time
+			}
+			discard(topic);
+			pagedInTopics.increment();
+		}
+	}
+
+	/**
+	 * Reads a single spilled body back.
+	 *
+	 * @param topic  the message's topic
+	 * @param offset the message's record in the topic's spill file
+	 * @return the body, or null if the topic has been paged in or cleared meanwhile
+	 */
+	public static String read(String topic, long offset) {
+		SpillFile file = files.get(topic);
+		if (file == null) {
+			return null;
+		}
+		try {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			while (length.hasRemaining() && file.channel.read(length, offset + length.position()) > 0) {}
+			ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+			while (body.hasRemaining() && file.channel.read(body, offset + 4 + body.position()) > 0) {}
+			return new String(body.array(), StandardCharsets.UTF_8);
+		} catch (ClosedChannelException e) {
+			return null;
+		} catch (IOException e) {
+			System.out.println("> Error reading spilled message from topic '" + topic + "': " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Discounts removed messages that were spilled. Their records stay in the file until the topic is paged in or
+	 * cleared. Called under the topic's lock.
+	 *
+	 * @param topic   the topic
+	 * @param removed the removed messages
+	 */
+	public static void removed(String topic, List<Message> removed) {
+		SpillFile file = files.get(topic);
+		if (file == null) {
+			return;
+		}
+		long bytes = 0, records = 0;
+		for (Message msg : removed) {
+			if (msg.isSpilled()) {
+				bytes += msg.getSize();
+				records++;
+			}
+		}
+		file.bytes.addAndGet(-bytes);
+		if (file.records.addAndGet(-records) == 0) { // Only dead records left
+			discard(topic);
+		}
+	}
+
+	/**
+	 * Deletes the spill file of a cleared topic. Called under the topic's lock.
+	 *
+	 * @param topic the topic
+	 */
+	public static void cleared(String topic) {
+		if (files.containsKey(topic)) {
+			discard(topic);
+		}
+	}
+
+	/**
+	 * Deletes every spill file when the server shuts down, since the topics they belong to are not persisted.
+	 */
+	public static void discardAll() {
+		for (String topic : files.keySet()) {
+			discard(topic);
+		}
+	}
+
+	private static void discard(String topic) {
+		SpillFile file = files.remove(topic);
+		if (file == null) {
+			return;
+		}
+		try {
+			file.channel.close(); // Concurrent single reads fail and fall back to the paged-in body
+			Files.deleteIfExists(file.path);
+		} catch (IOException e) {
+			System.out.println("> Error deleting spill file '" + file.path + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the bytes of a topic's bodies currently on disk.
+	 *
+	 * @param topic the topic, or a partition
+	 * @return the spilled bytes, 0 if none
+	 */
+	public static long spilledBytes(String topic) {
+		SpillFile file = files.get(topic);
+		return file == null ? 0 : file.bytes.get();
+	}
+
+	/**
+	 * Sums the bodies of all topics still in memory.
+	 */
+	private static long residentBytes() {
+		long resident = 0;
+		for (String topic : ClientHandler.topics.keySet()) {
+			resident += TopicStats.of(topic).getBytes() - spilledBytes(topic);
+		}
+		return resident;
+	}
+
+	/**
+	 * Builds a file name from a topic name: its safe characters plus a hash, so distinct topics never share a file.
+	 */
+	private static String fileName(String topic) {
+		return topic.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" + Integer.toHexString(topic.hashCode()) + ".spill";
+	}
+
+	/**
+	 * Describes memory usage against the budget for the metrics report.
+	 *
+	 * @return the resident and spilled bytes, or how to enable spilling
+	 */
+	public static String describe() {
+		if (!isEnabled()) {
+			return "off (enable with -Dpubsub.memoryBudgetMiB=<MiB>)";
+		}
+		long spilled = 0;
+		for (SpillFile file : files.values()) {
+			spilled += file.bytes.get();
+		}
+		return (residentBytes() / 1024) + " KiB resident of " + (BUDGET / 1024) + " KiB, " + (spilled / 1024) + " KiB in "
+		    + files.size() + " spilled topics (" + spilledTopics.sum() + " spills, " + pagedInTopics.sum() + " page-ins)";
+	}
+
+	/**
+	 * An open spill file and the live messages whose bodies it holds.
+	 */
+	private static class SpillFile {
+		private final Path path;
+		private final FileChannel channel;
+		private final AtomicLong bytes = new AtomicLong();   // Bodies of live messages, in UTF-8 bytes
+		private final AtomicLong records = new AtomicLong(); // Live messages; the rest of the file is dead records
+
+		private SpillFile(Path path) throws IOException {
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * Appends the filled part of a buffer and empties it.
+		 *
+		 * @return the bytes written
+		 */
+		private int write(ByteBuffer batch) throws IOException {
+			batch.flip();
+			int written = batch.remaining();
+			long at = channel.size();
+			while (batch.hasRemaining()) {
+				at += channel.write(batch, at);
+			}
+			batch.clear();
+			return written;
+		}
+	}
+}
@@ -0,0 +1,629 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The StressTest class is a multi-threaded stress and consistency test of the topic store.
+ * It runs a server in this JVM, with its operator console fed through a pipe, and drives it over real connections:
+ * pipelined publishers, subscribers and clients running listall on several topics, while the operator inspects the
+ * topics, lists them, kicks publishers and, in a second phase, deletes ranges of messages and clears topics.
+ *
+ * While it runs, every subscriber checks that it receives each topic's IDs in increasing order, every publisher's
+ * messages in order and without gaps, and no gap notices; every listing must be in ID order and complete.
+ * Once each phase has quiesced, the store itself is checked: IDs in order and unique, bodies as acknowledged, no
+ * acknowledged message lost (first phase) or out of order (second phase), topic statistics and publishers' own lists
+ * matching the topic, kicked clients gone and every subscriber caught up. Errors printed by the server and uncaught
+ * exceptions count as violations too. Throughput is reported per phase, so a lock-free or sharded replacement of the
+ * store can be validated for correctness and compared for speed in the same run.
+ *
+ * Usage: java StressTest [secondsPerPhase] [topics] [publishersPerTopic] [subscribersPerTopic]
+ * Server settings such as -Dpubsub.offHeap=true apply, since the server runs in the same JVM.
+ * Exits with status 0 if no invariant was violated, 1 otherwise.
+ */
+public class StressTest {
+	private static final PrintStream report = System.out;                                               // Server output is filtered, not shown
+	private static final int WINDOW = 256;                                                               // Publishes in flight per publisher
+	private static final int MAX_SHOWN = 20;                                                             // Violations printed, at most
+	private static final String BARRIER = "stress_barrier_";                                            // Topic names used as console markers
+	private static final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger violationCount = new AtomicInteger(0);
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<Long, String>> acknowledged = new ConcurrentHashMap<>(); // topic : ID : body
+	private static final CopyOnWriteArrayList<Publisher> publishers = new CopyOnWriteArrayList<>();       // Victims included
+	private static final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+	private static final CopyOnWriteArrayList<Lister> listers = new CopyOnWriteArrayList<>();
+	private static final LongAdder listings = new LongAdder();
+	private static final AtomicInteger victimCount = new AtomicInteger(0);
+	private static volatile boolean running = false;                                                    // The current phase's load is running
+	private static ServerOutput serverOutput;
+	private static PrintWriter console;                                                                  // The server operator's console
+	private static int barriers = 0;
+	private static int port;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int topicCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int publishersPerTopic = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int subscribersPerTopic = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		startServer();
+		List<String> topics = new ArrayList<>();
+		for (int t = 0; t < topicCount; t++) {
+			String topic = "stress_" + t;
+			topics.add(topic);
+			acknowledged.put(topic, new ConcurrentHashMap<>());
+			for (int s = 0; s < subscribersPerTopic; s++) {
+				subscribers.add(new Subscriber(topic));
+			}
+			listers.add(new Lister(topic));
+			for (int p = 0; p < publishersPerTopic; p++) {
+				publishers.add(new Publisher(topic, "t" + t + "p" + p, false));
+			}
+		}
+		report.println("--- STRESS TEST: " + topicCount + " TOPICS, " + publishersPerTopic + " PUBLISHERS AND " + subscribersPerTopic
+		               + " SUBSCRIBERS PER TOPIC, " + seconds + "s PER PHASE ---\n");
+		checkControlLinesInBodies();
+
+		runPhase("PUBLISH, LISTALL, INSPECT, KICK", topics, seconds, false);
+		verify(topics, false);
+		runPhase("PUBLISH, LISTALL, INSPECT, KICK, DELETE, CLEAR", topics, seconds, true);
+		verify(topics, true);
+
+		report.println(violationCount.get() == 0 ? "--- STRESS TEST PASSED ---" : "--- STRESS TEST FAILED: " + violationCount.get() + " VIOLATIONS ---");
+		for (String violation : violations) {
+			report.println("> " + violation);
+		}
+		System.exit(violationCount.get() == 0 ? 0 : 1); // Also stops the server
+	}
+
+	/**
+	 * Starts a server on a free port, with its console input fed by {@link #console} and its output filtered for errors.
+	 */
+	private static void startServer() throws Exception {
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		PipedInputStream operatorInput = new PipedInputStream(64 * 1024);
+		console = new PrintWriter(new PipedOutputStream(operatorInput), true); // Written by the main thread only, so the pipe stays open
+		System.setIn(operatorInput);
+		serverOutput = new ServerOutput();
+		System.setOut(new PrintStream(serverOutput, true));
+		System.setErr(System.out);
+		Thread.setDefaultUncaughtExceptionHandler((thread, e) -> violation("Uncaught " + e + " in thread " + thread.getName()));
+
+		Thread server = new Thread(() -> Server.main(new String[] { Integer.toString(port) }), "stress-server");
+		server.setDaemon(true);
+		server.start();
+		// The server prints its banner only once its listening socket is bound, so clients can connect from then on
+		if (!serverOutput.started.await(10, TimeUnit.SECONDS)) {
+			throw new IOException("The server did not start on port " + port);
+		}
+	}
+
+	/**
+	 * Checks that message bodies cannot pass for protocol lines: bodies whose wrapped lines (every 80 characters) start
+	 * with control tokens or are frame separators must reach a subscriber whole, and the clients must keep working.
+	 */
+	private static void checkControlLinesInBodies() throws Exception {
+		String topic = "stress_protocol";
+		String filler = "a".repeat(80);
+		List<String> bodies = List.of(filler + "THROTTLE abc def", filler + "KICKED", filler + "PING", filler + "HEARTBEAT 1 1",
+		                              filler + "LAST_MESSAGE_ID " + topic + " 999", filler + "IS_SERVER_INSPECTING true",
+		                              filler + "REQUEST x", filler + "REPLY 1 2 3", filler + "REPLY_FAILED 1 reason",
+		                              filler + "--- REGISTRATION SUCCESSFUL ---", filler + "-".repeat(80) + "KICKED",
+		                              "-".repeat(200), "after");
+		ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<>();
+		AtomicInteger errors = new AtomicInteger(0);
+		PubSubClient subscriber = PubSubClient.connect("localhost", port);
+		subscriber.addListener(new PubSubClient.Listener() {
+			@Override
+			public void onDelivery(PubSubClient.Delivery delivery) { received.add(delivery.getBody()); }
+
+			@Override
+			public void onError(String line, RuntimeException e) { errors.incrementAndGet(); }
+		});
+		subscriber.registerSubscriber(topic).join();
+		PubSubClient publisher = PubSubClient.connect("localhost", port);
+		publisher.registerPublisher(topic).join();
+		try {
+			for (String body : bodies) {
+				publisher.publish(body).get(10, TimeUnit.SECONDS);
+			}
+			publisher.sendCommand("listall"); // The listing shows the same bodies, outside of any delivery
+			publisher.publish("after listall").get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			violation(topic + ": publishing bodies with protocol lines failed: " + e);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (received.size() < bodies.size() + 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		List<String> expected = new ArrayList<>(bodies);
+		expected.add("after listall");
+		if (!new ArrayList<>(received).equals(expected)) {
+			violation(topic + ": bodies with protocol lines were received as " + received);
+		}
+		if (errors.get() > 0 || subscriber.isServerInspecting() || publisher.isServerInspecting()) {
+			violation(topic + ": bodies with protocol lines were taken for control lines");
+		}
+		subscriber.close();
+		publisher.close();
+		report.println("> CONTROL LINES IN MESSAGE BODIES: " + (violationCount.get() == 0 ? "OK" : "FAILED") + "\n");
+	}
+
+	/**
+	 * Runs the load for one phase, with the operator's commands on this thread, then waits for everything to settle.
+	 *
+	 * @param name        the phase's name in the report
+	 * @param topics      the topics under test
+	 * @param seconds     how long the load runs
+	 * @param destructive whether the operator also deletes and clears messages
+	 */
+	private static void runPhase(String name, List<String> topics, int seconds, boolean destructive) throws Exception {
+		long published = publishedCount();
+		long delivered = deliveredCount();
+		long listed = listings.sum();
+		int inspects = 0, kicks = 0, deletes = 0, clears = 0;
+
+		running = true;
+		List<Thread> load = new ArrayList<>();
+		for (Publisher publisher : publishers) {
+			load.add(publisher.start());
+		}
+		for (Lister lister : listers) {
+			load.add(lister.start());
+		}
+		ArrayList<Publisher> victims = new ArrayList<>();
+		for (String topic : topics) {
+			Publisher victim = new Publisher(topic, "v" + victimCount.getAndIncrement(), true);
+			publishers.add(victim);
+			victims.add(victim);
+			load.add(victim.start());
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (System.nanoTime() < deadline) {
+			String topic = topics.get(random.nextInt(topics.size()));
+			console.println("inspect " + topic);
+			if (random.nextInt(4) == 0) { // Listings of large topics are slow to print
+				console.println("listall");
+			}
+			inspects++;
+			if (destructive) {
+				long last = Message.lastAssignedId(topic);
+				if (last > 0) {
+					long from = Math.max(0, last - random.nextLong(500)), to = Math.min(last, from + random.nextLong(50));
+					console.println("delete " + from + "-" + to);
+					console.println("delete " + random.nextLong(last + 1));
+					deletes += 2;
+				}
+				if (random.nextInt(8) == 0) {
+					console.println("clear");
+					console.println("y");
+					clears++;
+				}
+			}
+			console.println("end");
+
+			// Kick a victim once it has published, and replace it with a new one
+			int index = random.nextInt(victims.size());
+			Publisher victim = victims.get(index);
+			if (victim.userID >= 0 && victim.acked.get() > 100) {
+				console.println("kick " + victim.userID);
+				victim.kicked = true;
+				kicks++;
+				Publisher replacement = new Publisher(victim.topic, "v" + victimCount.getAndIncrement(), true);
+				publishers.add(replacement);
+				victims.set(index, replacement);
+				load.add(replacement.start());
+			}
+			barrier(); // Keeps the operator from running ahead of the server's console
+			Thread.sleep(random.nextInt(20, 60));
+		}
+
+		running = false;
+		for (Thread thread : load) {
+			thread.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		awaitDeliveries();
+		barrier();
+
+		long phasePublished = publishedCount() - published;
+		long phaseDelivered = deliveredCount() - delivered;
+		report.println("--- PHASE: " + name + " ---");
+		report.println(String.format("> PUBLISHED: %d (%.0f/s)", phasePublished, phasePublished / elapsed));
+		report.println(String.format("> DELIVERED: %d (%.0f/s)", phaseDelivered, phaseDelivered / elapsed));
+		report.println("> CLIENT LISTALLS: " + (listings.sum() - listed) + ", INSPECTS: " + inspects + ", KICKS: " + kicks
+		               + (destructive ? ", DELETES: " + deletes + ", CLEARS: " + clears : ""));
+	}
+
+	/**
+	 * Checks the store once the load has stopped and every acknowledged message has been delivered.
+	 *
+	 * @param topics      the topics under test
+	 * @param destructive whether messages may have been deleted or cleared
+	 */
+	private static void verify(List<String> topics, boolean destructive) {
+		int before = violationCount.get();
+		for (String topic : topics) {
+			ArrayList<Message> stored = new ArrayList<>(ClientHandler.topics.get(topic));
+			Map<Long, String> acked = acknowledged.get(topic);
+
+			// IDs in order and unique, bodies as acknowledged, each publisher's messages in order
+			long previousId = -1;
+			Map<String, Long> lastSeqs = new ConcurrentHashMap<>();
+			Map<String, Integer> storedCounts = new ConcurrentHashMap<>();
+			for (Message message : stored) {
+				if (message.getId() <= previousId) {
+					violation(topic + ": stored ID " + message.getId() + " after " + previousId);
+				}
+				previousId = message.getId();
+				String body = message.getBody();
+				String ackedBody = acked.get(message.getId());
+				if (ackedBody != null && !ackedBody.equals(body)) {
+					violation(topic + ": stored ID " + message.getId() + " is '" + body + "', acknowledged as '" + ackedBody + "'");
+				}
+				String[] fields = body.split(" ");
+				long seq = Long.parseLong(fields[1]);
+				long lastSeq = lastSeqs.getOrDefault(fields[0], -1L);
+				if (destructive ? seq <= lastSeq : seq != lastSeq + 1) {
+					violation(topic + ": stored " + fields[0] + " message " + seq + " after " + lastSeq);
+				}
+				lastSeqs.put(fields[0], seq);
+				storedCounts.merge(fields[0], 1, Integer::sum);
+			}
+			if (TopicStats.of(topic).getMessages() != stored.size()) {
+				violation(topic + ": statistics count " + TopicStats.of(topic).getMessages() + " messages, the topic holds " + stored.size());
+			}
+
+			for (Publisher publisher : publishers) {
+				if (!publisher.topic.equals(topic)) {
+					continue;
+				}
+				// No acknowledged message lost, and no more stored than sent
+				long lastAcked = publisher.lastAckedSeq.get();
+				long lastStored = lastSeqs.getOrDefault(publisher.name, -1L);
+				if (!destructive && (lastStored < lastAcked || lastStored >= publisher.nextSeq)) {
+					violation(topic + ": " + publisher.name + " had messages up to " + lastAcked + " acknowledged, the topic holds up to " + lastStored);
+				}
+				// The publisher's own list is exactly its messages in the topic
+				ClientHandler handler = ClientHandler.clientHandlers.get(publisher.userID);
+				if (publisher.userID < 0) { // Started as the phase ended, nothing was published
+					continue;
+				} else if (publisher.kicked) {
+					if (handler != null) {
+						violation(topic + ": kicked " + publisher.name + " (USER-" + publisher.userID + ") is still connected");
+					}
+				} else if (handler == null) {
+					violation(topic + ": " + publisher.name + " (USER-" + publisher.userID + ") was disconnected");
+				} else {
+					ArrayList<Message> own = handler.publisherMessages.get(topic);
+					List<Message> expected = stored.stream().filter(msg -> msg.getUserID() == publisher.userID).toList();
+					if (own == null || !new ArrayList<>(own).equals(expected)) {
+						violation(topic + ": " + publisher.name + "'s own list has " + (own == null ? "no" : own.size()) + " messages, the topic "
+						          + expected.size());
+					}
+				}
+				// Every subscriber caught up with every acknowledged message (and, without deletes, every stored one)
+				long expectedLast = destructive ? lastAcked : lastStored;
+				for (Subscriber subscriber : subscribers) {
+					long received = subscriber.topic.equals(topic) ? subscriber.lastSeqs.getOrDefault(publisher.name, -1L) : expectedLast;
+					if (destructive ? received < expectedLast : received != expectedLast) {
+						violation(topic + ": a subscriber received " + publisher.name + "'s messages up to " + received + ", expected " + expectedLast);
+					}
+				}
+			}
+		}
+		report.println("> SERVER ERRORS: " + serverOutput.errors.get());
+		report.println("> VIOLATIONS: " + (violationCount.get() - before) + "\n");
+	}
+
+	/**
+	 * Waits until every subscriber has received every acknowledged message, or gives up after 30 seconds
+	 * (the final checks then report what is missing).
+	 */
+	private static void awaitDeliveries() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (System.nanoTime() < deadline) {
+			boolean caughtUp = true;
+			for (Publisher publisher : publishers) {
+				for (Subscriber subscriber : subscribers) {
+					if (subscriber.topic.equals(publisher.topic) && subscriber.lastSeqs.getOrDefault(publisher.name, -1L) < publisher.lastAckedSeq.get()) {
+						caughtUp = false;
+					}
+				}
+			}
+			if (caughtUp) {
+				Thread.sleep(200); // Messages stored but not acknowledged before a kick may still be on their way
+				return;
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	/**
+	 * Waits until the server's console has handled every command sent so far. The marker is an inspect of a topic that
+	 * does not exist, whose answer names it; only valid outside inspect mode. Listings of large topics can take longer
+	 * than the deadline on a loaded machine, so it only runs while the console prints nothing.
+	 */
+	private static void barrier() throws InterruptedException {
+		barriers++;
+		console.println("inspect " + BARRIER + barriers);
+		long printed = serverOutput.lines.get();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (serverOutput.barrier.get() < barriers) {
+			if (serverOutput.lines.get() != printed) {
+				printed = serverOutput.lines.get();
+				deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			} else if (System.nanoTime() > deadline) {
+				violation("The server console printed nothing for 30s");
+				return;
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	private static long publishedCount() {
+		long count = 0;
+		for (Publisher publisher : publishers) {
+			count += publisher.acked.get();
+		}
+		return count;
+	}
+
+	private static long deliveredCount() {
+		long count = 0;
+		for (Subscriber subscriber : subscribers) {
+			count += subscriber.delivered.sum();
+		}
+		return count;
+	}
+
+	private static void violation(String description) {
+		if (violationCount.incrementAndGet() <= MAX_SHOWN) {
+			violations.add(description);
+		}
+	}
+
+	/**
+	 * A publisher pipelining messages "<name> <seq>" on a topic, up to {@link #WINDOW} in flight.
+	 * Victims are kicked by the operator; their publishes in flight are expected to fail.
+	 */
+	private static class Publisher {
+		private final String topic;
+		private final String name;
+		private final boolean victim;
+		private final PubSubClient client;
+		private final Semaphore window = new Semaphore(WINDOW);
+		private final AtomicLong acked = new AtomicLong(0);
+		private final AtomicLong lastAckedSeq = new AtomicLong(-1);
+		private volatile int userID = -1;                 // Known from the first acknowledgement
+		private volatile boolean kicked = false;
+		private long nextSeq = 0;                         // Publishing thread only, read once it has been joined
+		private long lastAckedId = -1;                    // Client reader thread only
+
+		private Publisher(String topic, String name, boolean victim) throws IOException {
+			this.topic = topic;
+			this.name = name;
+			this.victim = victim;
+			this.client = PubSubClient.connect("localhost", port);
+			client.registerPublisher(topic).join();
+		}
+
+		private Thread start() {
+			Thread thread = new Thread(this::publish, "stress-" + name);
+			thread.start();
+			return thread;
+		}
+
+		private void publish() {
+			try {
+				while (running && !kicked) {
+					if (!window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+						continue;
+					}
+					long seq = nextSeq++;
+					client.publish(name + " " + seq).whenComplete((delivery, e) -> {
+						window.release();
+						if (e == null) {
+							acknowledged(seq, delivery);
+						} else if (!kicked) {
+							violation(name + ": message " + seq + " failed: " + e);
+						}
+					});
+				}
+				if (!kicked) { // Every publish acknowledged
+					if (window.tryAcquire(WINDOW, 30, TimeUnit.SECONDS)) {
+						window.release(WINDOW);
+					} else {
+						violation(name + ": publishes still unacknowledged after 30s");
+					}
+				}
+			} catch (IllegalStateException e) {
+				if (!kicked) {
+					violation(name + ": " + e.getMessage());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void acknowledged(long seq, PubSubClient.Delivery delivery) {
+			userID = delivery.getUserID();
+			if (!delivery.getBody().equals(name + " " + seq)) {
+				violation(name + ": message " + seq + " acknowledged as '" + delivery.getBody() + "'");
+			}
+			if (delivery.getId() <= lastAckedId) {
+				violation(name + ": message " + seq + " acknowledged with ID " + delivery.getId() + " after ID " + lastAckedId);
+			}
+			lastAckedId = delivery.getId();
+			acknowledged.get(topic).put(delivery.getId(), delivery.getBody());
+			lastAckedSeq.set(seq);
+			acked.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A subscriber checking, as messages arrive, that IDs increase and that each publisher's messages come in order
+	 * without gaps.
+	 */
+	private static class Subscriber implements PubSubClient.Listener {
+		private final String topic;
+		private final ConcurrentHashMap<String, Long> lastSeqs = new ConcurrentHashMap<>(); // publisher : last message received
+		private final LongAdder delivered = new LongAdder();
+		private long lastId = -1;                                                            // Client reader thread only
+
+		private Subscriber(String topic) throws IOException {
+			this.topic = topic;
+			PubSubClient client = PubSubClient.connect("localhost", port);
+			client.addListener(this);
+			client.registerSubscriber(topic).join();
+		}
+
+		@Override
+		public void onDelivery(PubSubClient.Delivery delivery) {
+			if (delivery.getId() <= lastId) {
+				violation(topic + ": subscriber received ID " + delivery.getId() + " after ID " + lastId);
+			}
+			lastId = delivery.getId();
+			String[] fields = delivery.getBody().split(" ");
+			long seq = Long.parseLong(fields[1]);
+			long lastSeq = lastSeqs.getOrDefault(fields[0], -1L);
+			if (seq != lastSeq + 1) {
+				violation(topic + ": subscriber received " + fields[0] + " message " + seq + " after " + lastSeq);
+			}
+			lastSeqs.put(fields[0], seq);
+			delivered.increment();
+		}
+
+		@Override
+		public void onGap(String topic, long firstMissed, long lastMissed) {
+			violation(topic + ": subscriber missed IDs " + firstMissed + " to " + lastMissed);
+		}
+	}
+
+	/**
+	 * A client running listall on a topic over and over, checking that each listing is in ID order and complete.
+	 */
+	private static class Lister implements PubSubClient.Listener {
+		private final String topic;
+		private final PubSubClient client;
+		private final Semaphore done = new Semaphore(0);
+		private int expected = -1;                        // Client reader thread only: messages announced by the listing
+		private int listed = 0;
+		private long lastId = -1;
+
+		private Lister(String topic) throws IOException {
+			this.topic = topic;
+			this.client = PubSubClient.connect("localhost", port);
+			client.addListener(this);
+			client.registerPublisher(topic).join(); // Publishers receive no deliveries, only the listings
+		}
+
+		private Thread start() {
+			Thread thread = new Thread(() -> {
+				try {
+					while (running) {
+						client.sendCommand("listall");
+						if (!done.tryAcquire(30, TimeUnit.SECONDS)) {
+							violation(topic + ": listall did not complete within 30s");
+							return;
+						}
+						listings.increment();
+						Thread.sleep(100);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "stress-lister-" + topic);
+			thread.start();
+			return thread;
+		}
+
+		@Override
+		public void onLine(String line) {
+			if (line.startsWith("--- LISTALL: END OF MESSAGES")) {
+				if (listed != expected) {
+					violation(topic + ": listall announced " + expected + " messages and listed " + listed);
+				}
+				expected = -1;
+				done.release();
+			} else if (line.startsWith("--- LISTALL: ")) {
+				expected = Integer.parseInt(line.split(" ")[2]);
+				listed = 0;
+				lastId = -1;
+			} else if (line.startsWith("> No messages available")) {
+				done.release();
+			} else if (expected >= 0 && line.startsWith("[ID ")) {
+				long id = Long.parseLong(line.substring(4, line.indexOf(' ', 4)));
+				if (id <= lastId) {
+					violation(topic + ": listall listed ID " + id + " after ID " + lastId);
+				}
+				lastId = id;
+				listed++;
+			}
+		}
+	}
+
+	/**
+	 * The server's console output: discarded, except that errors are counted (and reported as violations) and
+	 * the server's start and the markers of {@link #barrier()} are followed.
+	 */
+	private static class ServerOutput extends OutputStream {
+		private final StringBuilder line = new StringBuilder();
+		private final AtomicInteger errors = new AtomicInteger(0);
+		private final AtomicInteger barrier = new AtomicInteger(0);                          // Last marker answered
+		private final CountDownLatch started = new CountDownLatch(1);                        // "--- SERVER STARTED ON PORT <port> ---"
+		private final AtomicLong lines = new AtomicLong(0);                                  // Lines printed, to tell slow from stuck
+
+		@Override
+		public synchronized void write(int b) { accept(b); }
+
+		@Override
+		public synchronized void write(byte[] bytes, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				accept(bytes[i]);
+			}
+		}
+
+		private void accept(int b) {
+			if (b == '\n') {
+				String text = line.toString();
+				line.setLength(0);
+				lines.incrementAndGet();
+				if (text.startsWith("--- SERVER STARTED ON PORT")) {
+					started.countDown();
+				} else if (text.startsWith("> Topic '" + BARRIER)) { // "> Topic 'stress_barrier_<n>' does not exist."
+					barrier.set(Integer.parseInt(text.substring(9 + BARRIER.length(), text.indexOf('\'', 9))));
+				} else if (text.contains("Exception") || text.startsWith("> Error")) {
+					errors.incrementAndGet();
+					violation("Server: " + text);
+				}
+			} else if (line.length() < 200) { // Only the start of a line is looked at
+				line.append((char) b);
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * The SubscriptionGroups class keeps shared subscription groups.
+ * Subscribers that join a topic under the same group name share its messages instead of each receiving all of them:
+ * every message goes to a single member, the one with the fewest frames waiting in its outbound queue, with ties
+ * broken round-robin. A slow member therefore receives less work instead of holding up the group.
+ *
+ * Messages given to a member that leaves (disconnects, is kicked or reaped) before they are written to its connection
+ * are handed to the remaining members. A group is bound to one topic and is removed when its last member leaves.
+ */
+public class SubscriptionGroups {
+	private static final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();                         // name : group
+	private static final ConcurrentHashMap<String, CopyOnWriteArrayList<Group>> byTopic = new ConcurrentHashMap<>();  // topic : groups on it
+	private static final List<Group> NONE = List.of();
+
+	private SubscriptionGroups() {}
+
+	/**
+	 * Adds a subscriber to a group, creating the group if needed.
+	 *
+	 * @param name   the group name
+	 * @param topic  the group's topic
+	 * @param member the subscriber joining
+	 * @return the group
+	 * @throws IllegalStateException if the group exists on another topic
+	 */
+	public static Group join(String name, String topic, ClientHandler member) {
+		synchronized (groups) {
+			Group group = groups.computeIfAbsent(name, n -> {
+				Group created = new Group(n, topic);
+				byTopic.computeIfAbsent(topic, t -> new CopyOnWriteArrayList<>()).add(created);
+				return created;
+			});
+			if (!group.topic.equals(topic)) {
+				throw new IllegalStateException("Group '" + name + "' consumes topic '" + group.topic + "'.");
+			}
+			group.members.addIfAbsent(member);
+			return group;
+		}
+	}
+
+	/**
+	 * Removes a subscriber from its group, removing the group once it has no members left.
+	 *
+	 * @param group  the group
+	 * @param member the subscriber leaving
+	 */
+	public static void leave(Group group, ClientHandler member) {
+		synchronized (groups) {
+			group.members.remove(member);
+			if (group.members.isEmpty() && groups.remove(group.name, group)) {
+				byTopic.get(group.topic).remove(group);
+			}
+		}
+	}
+
+	/**
+	 * Returns the groups consuming a topic.
+	 *
+	 * @param topic the topic, or a partition
+	 * @return the groups, empty if none
+	 */
+	public static List<Group> on(String topic) {
+		List<Group> groups = topic == null ? null : byTopic.get(topic);
+		return groups == null ? NONE : groups;
+	}
+
+	public static List<Group> all() { return List.copyOf(groups.values()); }
+
+	/**
+	 * A shared subscription group and its delivery accounting.
+	 */
+	public static class Group {
+		private final String name;
+		private final String topic;
+		private final CopyOnWriteArrayList<ClientHandler> members = new CopyOnWriteArrayList<>();
+		private final AtomicInteger nextMember = new AtomicInteger();                                              // Round-robin start for ties
+		private final ConcurrentHashMap<Integer, LongAdder> deliveredTo = new ConcurrentHashMap<>();              // userID : messages given
+		private final LongAdder delivered = new LongAdder();
+		private final LongAdder redelivered = new LongAdder();
+
+		private Group(String name, String topic) {
+			this.name = name;
+			this.topic = topic;
+		}
+
+		/**
+		 * Chooses the member to give a message to: the least loaded one, starting from the next member in turn.
+		 *
+		 * @param accepts which members accept the message (e.g. their filter matches)
+		 * @return the member, or null if no member accepts the message
+		 */
+		public ClientHandler pick(Predicate<ClientHandler> accepts) {
+			Object[] current = members.toArray();
+			if (current.length == 0) {
+				return null;
+			}
+			int start = Math.floorMod(nextMember.getAndIncrement(), current.length);
+			ClientHandler best = null;
+			int bestDepth = Integer.MAX_VALUE;
+			for (int i = 0; i < current.length && bestDepth > 0; i++) {
+				ClientHandler member = (ClientHandler) current[(start + i) % current.length];
+				if (!accepts.test(member)) {
+					continue;
+				}
+				int depth = member.getOutboundDepth();
+				if (depth < bestDepth) {
+					best = member;
+					bestDepth = depth;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Counts a message given to a member.
+		 *
+		 * @param member      the member
+		 * @param redelivery  whether the message was taken back from a member that left
+		 */
+		public void delivered(ClientHandler member, boolean redelivery) {
+			deliveredTo.computeIfAbsent(member.getUserID(), u -> new LongAdder()).increment();
+			(redelivery ? redelivered : delivered).increment();
+		}
+
+		/**
+		 * Forgets the accounting of a member that left. Its messages remain counted in the group's totals.
+		 *
+		 * @param member the member
+		 */
+		public void forget(ClientHandler member) { deliveredTo.remove(member.getUserID()); }
+
+		public String getName() { return name; }
+
+		public String getTopic() { return topic; }
+
+		public List<ClientHandler> getMembers() { return List.copyOf(members); }
+
+		public long getDelivered() { return delivered.sum(); }
+
+		public long getRedelivered() { return redelivered.sum(); }
+
+		public long getDeliveredTo(ClientHandler member) {
+			LongAdder count = deliveredTo.get(member.getUserID());
+			return count == null ? 0 : count.sum();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The TimeIndex class answers time-range queries over the messages of one topic.
+ * Messages are appended to a positional log in publish order, and every STRIDE-th position records its timestamp
+ * in a sparse index. A range lookup is a binary search of the sparse index followed by a sequential scan of the log
+ * from the nearest checkpoint, instead of a walk of the whole topic.
+ *
+ * Messages are created under the topic's lock, so log order is ID order and (clock adjustments aside) time order.
+ * Deleted messages leave a hole in the log; the log is compacted once holes outnumber live messages.
+ * Since the log is sorted by ID, it is also the topic's lookup of messages by ID, for the {@link SearchIndex}: no other
+ * index holds references to messages, or boxed IDs, which would add objects per retained message for the collector.
+ */
+public class TimeIndex {
+	private static final int STRIDE = 64;                                                          // Log positions per sparse index entry
+	private static final ConcurrentHashMap<String, TimeIndex> indexes = new ConcurrentHashMap<>(); // topic : index
+	private Message[] log = new Message[STRIDE];                                                   // position : message, null once deleted
+	private long[] ids = new long[STRIDE];                                                         // position : message ID, to locate deletions
+	private long[] checkpoints = new long[1];                                                      // i : timestamp of the message at position i * STRIDE
+	private int size = 0;
+	private int holes = 0;
+
+	/**
+	 * Returns the index of a topic, creating it if needed.
+	 *
+	 * @param topic the topic
+	 * @return the topic's index
+	 */
+	public static TimeIndex forTopic(String topic) { return indexes.computeIfAbsent(topic, t -> new TimeIndex()); }
+
+	/**
+	 * Drops the index of a topic, used when all of its messages are cleared.
+	 *
+	 * @param topic the topic
+	 */
+	public static void clear(String topic) { indexes.remove(topic); }
+
+	/**
+	 * Appends a newly published message. Must be called in publish order.
+	 *
+	 * @param message the message to append
+	 */
+	public synchronized void add(Message message) {
+		if (size == log.length) {
+			log = Arrays.copyOf(log, size * 2);
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		if (size % STRIDE == 0) {
+			if (size / STRIDE == checkpoints.length) {
+				checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+			}
+			checkpoints[size / STRIDE] = message.getTimestamp();
+		}
+		log[size] = message;
+		ids[size++] = message.getId();
+	}
+
+	/**
+	 * Finds a message by ID.
+	 *
+	 * @param id the message ID
+	 * @return the message, or null if it was deleted or never indexed
+	 */
+	public synchronized Message get(long id) {
+		int position = Arrays.binarySearch(ids, 0, size, id);
+		return position >= 0 ? log[position] : null;
+	}
+
+	/**
+	 * Returns the messages that have not been deleted, in ID order.
+	 *
+	 * @return the live messages
+	 */
+	public synchronized ArrayList<Message> live() {
+		ArrayList<Message> live = new ArrayList<>(size - holes);
+		for (int i = 0; i < size; i++) {
+			if (log[i] != null) {
+				live.add(log[i]);
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Removes deleted messages from the index.
+	 *
+	 * @param messages the deleted messages
+	 */
+	public synchronized void remove(List<Message> messages) {
+		for (Message message : messages) {
+			int position = Arrays.binarySearch(ids, 0, size, message.getId());
+			if (position >= 0 && log[position] != null) {
+				log[position] = null;
+				holes++;
+			}
+		}
+		if (holes > size - holes) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rebuilds the log and the sparse index without holes.
+	 */
+	private void compact() {
+		Message[] live = new Message[Math.max(STRIDE, size - holes)];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (log[i] != null) {
+				live[count++] = log[i];
+			}
+		}
+		log = new Message[live.length];
+		ids = new long[live.length];
+		checkpoints = new long[1];
+		size = 0;
+		holes = 0;
+		for (int i = 0; i < count; i++) {
+			add(live[i]);
+		}
+	}
+
+	/**
+	 * Finds the messages published within a time window, oldest first.
+	 *
+	 * @param since the start of the window in epoch milliseconds, inclusive
+	 * @param until the end of the window in epoch milliseconds, inclusive
+	 * @return the messages in the window
+	 */
+	public synchronized ArrayList<Message> range(long since, long until) {
+		// Last checkpoint at or before the start of the window: no earlier position can be inside it
+		int low = 0;
+		int high = (size + STRIDE - 1) / STRIDE - 1;
+		int start = 0;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (checkpoints[mid] < since) {
+				start = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		ArrayList<Message> matches = new ArrayList<>();
+		for (int i = start * STRIDE; i < size; i++) {
+			Message message = log[i];
+			if (message == null || message.getTimestamp() < since) {
+				continue;
+			}
+			if (message.getTimestamp() > until) {
+				break;
+			}
+			matches.add(message);
+		}
+		return matches;
+	}
+
+	/**
+	 * Parses a point in time given on the command line. Accepted forms:
+	 * a duration ago ("90s", "5m", "2h", "1d"), a time today ("14:30", "14:30:15"),
+	 * or a date and time as shown in messages ("19/10/2026-14:30", "19/10/2026-14:30:15").
+	 *
+	 * @param value the value to parse
+	 * @return the point in time in epoch milliseconds
+	 * @throws IllegalArgumentException if the value is in none of the accepted forms
+	 */
+	public static long parseTime(String value) {
+		long now = System.currentTimeMillis();
+		if (value.matches("\\d{1,9}[smhd]")) {
+			return now - parseDuration(value);
+		}
+
+		String pattern = switch (value.length()) {
+		case 5 -> "HH:mm";
+		case 8 -> "HH:mm:ss";
+		case 16 -> "dd/MM/yyyy-HH:mm";
+		case 19 -> "dd/MM/yyyy-HH:mm:ss";
+		default -> null;
+		};
+		if (pattern != null) {
+			try {
+				SimpleDateFormat format = new SimpleDateFormat(pattern);
+				format.setLenient(false);
+				long parsed = format.parse(value).getTime();
+				if (!pattern.startsWith("dd")) { // A bare time means today
+					Calendar time = Calendar.getInstance();
+					time.setTimeInMillis(parsed);
+					Calendar today = Calendar.getInstance();
+					today.setTimeInMillis(now);
+					today.set(Calendar.HOUR_OF_DAY, time.get(Calendar.HOUR_OF_DAY));
+					today.set(Calendar.MINUTE, time.get(Calendar.MINUTE));
+					today.set(Calendar.SECOND, time.get(Calendar.SECOND));
+					today.set(Calendar.MILLISECOND, 0);
+					parsed = today.getTimeInMillis();
+				}
+				return parsed;
+			} catch (ParseException e) {
+				// Fall through to the error below
+			}
+		}
+		throw new IllegalArgumentException("Invalid time '" + value + "'. Use e.g. 5m, 2h, 14:30, 14:30:15 or 19/10/2026-14:30.");
+	}
+
+	/**
+	 * Parses a duration given on the command line: "500ms", "90s", "5m", "2h" or "1d".
+	 *
+	 * @param value the value to parse
+	 * @return the duration in milliseconds
+	 * @throws IllegalArgumentException if the value is not a duration
+	 */
+	public static long parseDuration(String value) {
+		if (!value.matches("\\d{1,9}(ms|[smhd])")) {
+			throw new IllegalArgumentException("Invalid duration '" + value + "'. Use e.g. 500ms, 90s, 5m, 2h or 1d.");
+		}
+		String unit = value.replaceAll("\\d", "");
+		long amount = Long.parseLong(value.substring(0, value.length() - unit.length()));
+		return amount * switch (unit) {
+		case "ms" -> 1L;
+		case "s" -> 1000L;
+		case "m" -> 60_000L;
+		case "h" -> 3_600_000L;
+		default -> 86_400_000L;
+		};
+	}
+
+	/**
+	 * A time window parsed from "since <time> [until <time>]" command tokens.
+	 */
+	public static class Window {
+		private final long since;
+		private final long until;
+		private final String description;
+
+		private Window(long since, long until, String description) {
+			this.since = since;
+			this.until = until;
+			this.description = description;
+		}
+
+		/**
+		 * Parses a window from command tokens.
+		 *
+		 * @param tokens the command tokens
+		 * @param from   the index of the "since" token
+		 * @return the parsed window
+		 * @throws IllegalArgumentException if the window is malformed
+		 */
+		public static Window parse(String[] tokens, int from) {
+			if (tokens.length != from + 2 && !(tokens.length == from + 4 && tokens[from + 2].equalsIgnoreCase("until"))
+			    || !tokens[from].equalsIgnoreCase("since")) {
+				throw new IllegalArgumentException("Usage: since <time> [until <time>]");
+			}
+			long since = parseTime(tokens[from + 1]);
+			long until = tokens.length == from + 4 ? parseTime(tokens[from + 3]) : Long.MAX_VALUE;
+			if (until < since) {
+				throw new IllegalArgumentException("The end of the time window is before its start.");
+			}
+			return new Window(since, until, String.join(" ", Arrays.copyOfRange(tokens, from, tokens.length)));
+		}
+
+		public boolean contains(Message message) { return message.getTimestamp() >= since && message.getTimestamp() <= until; }
+
+		public ArrayList<Message> messagesIn(String topic) { return forTopic(topic).range(since, until); }
+
+		@Override
+		public String toString() { return description; }
+	}
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The TimerWheel class is a hierarchical timing wheel used to schedule a large number of timeouts cheaply.
+ * Scheduling and cancelling are O(1); a single worker thread advances the wheel one bucket per tick
+ * and runs the tasks whose deadline has passed, instead of keeping one timer (or thread) per task.
+ *
+ * The first level has one bucket per tick. Each higher level has OVERFLOW_SIZE buckets, each spanning a full turn of
+ * the level below, and when a lower level completes a turn the next bucket of the level above is cascaded down.
+ * A timeout is therefore touched once per level it passes through rather than once per turn, which keeps long
+ * timeouts (e.g. message TTLs of hours) as cheap as short ones (e.g. heartbeats).
+ */
+public class TimerWheel {
+	private static final int OVERFLOW_BITS = 6;
+	private static final int OVERFLOW_SIZE = 1 << OVERFLOW_BITS; // Buckets per overflow level
+	private static final int OVERFLOW_LEVELS = 3;
+	private final long tickMillis;
+	private final int wheelBits;
+	private final int mask;
+	private final ArrayList<ArrayList<Timeout>> wheel = new ArrayList<>();
+	private final ArrayList<ArrayList<ArrayList<Timeout>>> overflow = new ArrayList<>(); // level - 1 : buckets
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>(); // Scheduled, not yet in a bucket
+	private final long startTime = System.currentTimeMillis();
+	private final Thread worker;
+	private volatile boolean running = true;
+	private long tick = 0; // Only accessed by the worker thread
+
+	/**
+	 * Constructs a TimerWheel and starts its worker thread.
+	 *
+	 * @param tickMillis    the duration of one tick (timer resolution) in milliseconds
+	 * @param ticksPerWheel the number of buckets, rounded up to a power of two
+	 */
+	public TimerWheel(long tickMillis, int ticksPerWheel) {
+		this.tickMillis = tickMillis;
+		int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+		this.wheelBits = Integer.numberOfTrailingZeros(size);
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			wheel.add(new ArrayList<>());
+		}
+		for (int level = 0; level < OVERFLOW_LEVELS; level++) {
+			ArrayList<ArrayList<Timeout>> buckets = new ArrayList<>();
+			for (int i = 0; i < OVERFLOW_SIZE; i++) {
+				buckets.add(new ArrayList<>());
+			}
+			overflow.add(buckets);
+		}
+		this.worker = new Thread(this::runWheel, "timer-wheel");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedules a task to run once after the given delay.
+	 * The task runs on the wheel's worker thread, so it must not block.
+	 *
+	 * @param task        the task to run
+	 * @param delayMillis the delay in milliseconds
+	 * @return a handle that can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+		pending.offer(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the worker thread. Tasks that have not yet expired are discarded.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	/**
+	 * The worker loop: waits for the next tick, moves newly scheduled timeouts into their bucket,
+	 * cascades the overflow levels at the start of each turn, then expires the timeouts in the current bucket.
+	 */
+	private void runWheel() {
+		while (running) {
+			long deadline = startTime + (tick + 1) * tickMillis;
+			long sleep = deadline - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					if (!running) {
+						break;
+					}
+				}
+				continue;
+			}
+			transferPending();
+			if ((tick & mask) == 0 && tick > 0) {
+				cascade();
+			}
+			expire(wheel.get((int) (tick & mask)));
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (!timeout.cancelled) {
+				place(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Puts a timeout in the lowest level whose range covers its deadline.
+	 * Timeouts beyond the top level are parked in its farthest bucket and placed again when it is cascaded.
+	 *
+	 * @param timeout the timeout to place
+	 */
+	private void place(Timeout timeout) {
+		long ticks = Math.max((timeout.deadline - startTime) / tickMillis, tick); // Already expired -> current bucket
+		if (ticks - tick <= mask) {
+			wheel.get((int) (ticks & mask)).add(timeout);
+			return;
+		}
+		for (int level = 1; level <= OVERFLOW_LEVELS; level++) {
+			int shift = wheelBits + OVERFLOW_BITS * (level - 1);
+			if ((ticks - tick) >> shift < OVERFLOW_SIZE || level == OVERFLOW_LEVELS) {
+				long target = Math.min(ticks >> shift, (tick >> shift) + OVERFLOW_SIZE - 1);
+				overflow.get(level - 1).get((int) (target & (OVERFLOW_SIZE - 1))).add(timeout);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called when the first level starts a new turn: empties the current bucket of each overflow level whose
+	 * lower levels have all completed a turn, placing its timeouts again in the levels below.
+	 * Higher levels are cascaded first, so timeouts they hand down land in buckets that are cascaded next.
+	 */
+	private void cascade() {
+		int top = 1;
+		while (top < OVERFLOW_LEVELS && digit(top) == 0) {
+			top++;
+		}
+		for (int level = top; level >= 1; level--) {
+			ArrayList<Timeout> bucket = overflow.get(level - 1).get(digit(level));
+			ArrayList<Timeout> timeouts = new ArrayList<>(bucket);
+			bucket.clear();
+			for (Timeout timeout : timeouts) {
+				if (!timeout.cancelled) {
+					place(timeout);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the current bucket in the given overflow level
+	 */
+	private int digit(int level) { return (int) ((tick >> (wheelBits + OVERFLOW_BITS * (level - 1))) & (OVERFLOW_SIZE - 1)); }
+
+	private void expire(ArrayList<Timeout> bucket) {
+		Iterator<Timeout> iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			Timeout timeout = iterator.next();
+			if (timeout.cancelled) {
+				iterator.remove();
+			} else {
+				iterator.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					System.out.println("> Error in timer task: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * A handle to a scheduled task.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task. The entry is dropped lazily when the wheel next reaches its bucket.
+		 */
+		public void cancel() { cancelled = true; }
+
+		public boolean isCancelled() { return cancelled; }
+	}
+}
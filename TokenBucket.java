@@ -0,0 +1,72 @@
+/**
+ * The TokenBucket class is a token-bucket rate limiter.
+ * Tokens refill continuously at a fixed rate up to a burst capacity; each permit consumes one token.
+ * Permits are reserved rather than dropped: the caller gets its permit together with how long it must wait before
+ * using it, so that waiting (and not dropping) is how the limit is enforced. A reservation whose wait would exceed the
+ * caller's bound is refused instead, so that many callers sharing a bucket cannot pile up unbounded waits; the caller
+ * waits and asks again.
+ */
+public class TokenBucket {
+	private double ratePerSecond;
+	private double burst;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Constructs a TokenBucket. A rate of 0 means unlimited.
+	 *
+	 * @param ratePerSecond the number of permits added per second
+	 * @param burst         the maximum number of permits that can be taken at once
+	 */
+	public TokenBucket(double ratePerSecond, double burst) { configure(ratePerSecond, burst); }
+
+	/**
+	 * Changes the rate and burst capacity at runtime. The bucket starts full after reconfiguration.
+	 *
+	 * @param ratePerSecond the number of permits added per second, 0 for unlimited
+	 * @param burst         the maximum number of permits that can be taken at once
+	 */
+	public synchronized void configure(double ratePerSecond, double burst) {
+		this.ratePerSecond = Math.max(0, ratePerSecond);
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Reserves one permit, unless it could only be used after more than the given wait.
+	 *
+	 * @param maxWaitNanos the longest wait the caller accepts
+	 * @return 0 if the permit can be used immediately, otherwise the nanoseconds to wait before using it;
+	 * if the permit was refused, minus the nanoseconds after which asking again can succeed
+	 */
+	public synchronized long reserve(long maxWaitNanos) {
+		if (ratePerSecond == 0) {
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / 1_000_000_000.0);
+		lastRefill = now;
+		long wait = tokens >= 1 ? 0 : (long) ((1 - tokens) / ratePerSecond * 1_000_000_000.0);
+		if (wait > maxWaitNanos) {
+			return -Math.max(1, wait - maxWaitNanos);
+		}
+		tokens -= 1;
+		return wait;
+	}
+
+	/**
+	 * Gives back a permit reserved but not used, e.g. because another limit refused the same publish.
+	 */
+	public synchronized void release() {
+		if (ratePerSecond != 0) {
+			tokens = Math.min(burst, tokens + 1);
+		}
+	}
+
+	public synchronized boolean isUnlimited() { return ratePerSecond == 0; }
+
+	@Override
+	public synchronized String toString() { return ratePerSecond == 0 ? "unlimited" : ratePerSecond + " msg/s (burst " + (long) burst + ")"; }
+}
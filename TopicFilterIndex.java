@@ -0,0 +1,321 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The TopicFilterIndex class holds the compiled server-side filters of every client registered on a topic.
+ * A message is matched against all filters once, in broadcastMessage(), instead of once per subscriber:
+ * keyword filters share one Aho-Corasick automaton, prefix filters share one trie, identical regular expressions
+ * are evaluated once, and publisher ID filters are a hash lookup.
+ * Indexes are immutable and rebuilt when a filter or a filtered client's registration changes, which is rare
+ * compared to publishing.
+ * Regular expressions come from clients and run under the topic lock, so they are bounded twice: parse() rejects long
+ * expressions and the constructs that backtrack catastrophically, and match() gives each one a budget of character
+ * reads per message, beyond which the message is treated as not matching.
+ */
+public class TopicFilterIndex {
+	private static final int MAX_REGEX_LENGTH = 256;                                                   // Characters in a regex filter
+	private static final int REGEX_STEP_BUDGET = Integer.getInteger("pubsub.regexStepBudget", 1_000_000); // Character reads per regex and message
+	private static final ConcurrentHashMap<String, TopicFilterIndex> indexes = new ConcurrentHashMap<>(); // topic : index
+	private static final TopicFilterIndex EMPTY = new TopicFilterIndex(List.of());
+	private final AhoCorasick keywords;
+	private final ArrayList<List<ClientHandler>> keywordClients = new ArrayList<>();        // keyword ID : clients
+	private final AhoCorasick prefixes;
+	private final ArrayList<List<ClientHandler>> prefixClients = new ArrayList<>();         // prefix ID : clients
+	private final HashMap<Pattern, List<ClientHandler>> regexClients = new HashMap<>();     // pattern : clients
+	private final HashMap<Integer, List<ClientHandler>> publisherClients = new HashMap<>(); // publisher ID : clients
+
+	/**
+	 * Builds the index for the given filtered clients.
+	 *
+	 * @param clients the clients on the topic that have a filter
+	 */
+	private TopicFilterIndex(List<ClientHandler> clients) {
+		LinkedHashMap<String, List<ClientHandler>> keywordMap = new LinkedHashMap<>();
+		LinkedHashMap<String, List<ClientHandler>> prefixMap = new LinkedHashMap<>();
+		HashMap<String, Pattern> compiled = new HashMap<>(); // Identical expressions share one Pattern
+		for (ClientHandler client : clients) {
+			Filter filter = client.getFilter();
+			for (String value : filter.values) {
+				switch (filter.type) {
+				case KEYWORD -> keywordMap.computeIfAbsent(value.toLowerCase(), k -> new ArrayList<>()).add(client);
+				case PREFIX -> prefixMap.computeIfAbsent(value.toLowerCase(), k -> new ArrayList<>()).add(client);
+				case REGEX -> regexClients.computeIfAbsent(compiled.computeIfAbsent(value, Pattern::compile), p -> new ArrayList<>()).add(client);
+				case USERS -> publisherClients.computeIfAbsent(Integer.parseInt(value), k -> new ArrayList<>()).add(client);
+				}
+			}
+		}
+		keywords = new AhoCorasick(new ArrayList<>(keywordMap.keySet()));
+		keywordClients.addAll(keywordMap.values());
+		prefixes = new AhoCorasick(new ArrayList<>(prefixMap.keySet()));
+		prefixClients.addAll(prefixMap.values());
+	}
+
+	/**
+	 * Returns the current index of a topic.
+	 *
+	 * @param topic the topic
+	 * @return the topic's index, empty if no client on the topic has a filter
+	 */
+	public static TopicFilterIndex forTopic(String topic) { return indexes.getOrDefault(topic, EMPTY); }
+
+	/**
+	 * Rebuilds the index of a topic from the filters of the clients currently registered on it.
+	 *
+	 * @param topic the topic to rebuild, ignored if null
+	 */
+	public static void rebuild(String topic) {
+		if (topic == null) {
+			return;
+		}
+		indexes.compute(topic, (t, old) -> {
+			ArrayList<ClientHandler> filtered = new ArrayList<>();
+			for (ClientHandler clientHandler : ClientHandler.clientHandlers.values()) {
+				if (t.equals(clientHandler.getTopic()) && clientHandler.getFilter() != null) {
+					filtered.add(clientHandler);
+				}
+			}
+			return filtered.isEmpty() ? null : new TopicFilterIndex(filtered);
+		});
+	}
+
+	/**
+	 * Matches a message against every filter on the topic.
+	 *
+	 * @param publisherID the ID of the publishing client
+	 * @param body        the message body
+	 * @return the filtered clients that accept the message (clients without a filter accept everything)
+	 */
+	public Set<ClientHandler> match(int publisherID, String body) {
+		if (this == EMPTY) {
+			return Collections.emptySet();
+		}
+
+		Set<ClientHandler> accepted = Collections.newSetFromMap(new IdentityHashMap<>());
+		addAll(accepted, keywords.search(body), keywordClients);
+		addAll(accepted, prefixes.searchPrefixes(body), prefixClients);
+		for (var regex : regexClients.entrySet()) {
+			if (find(regex.getKey(), body)) {
+				accepted.addAll(regex.getValue());
+			}
+		}
+		accepted.addAll(publisherClients.getOrDefault(publisherID, List.of()));
+		return accepted;
+	}
+
+	/**
+	 * Searches a body for a client's regex within the step budget.
+	 *
+	 * @param pattern the regex
+	 * @param body    the message body
+	 * @return true if the regex is found, false if it is not or the budget runs out
+	 */
+	private static boolean find(Pattern pattern, String body) {
+		try {
+			return pattern.matcher(new BudgetedChars(body, REGEX_STEP_BUDGET)).find();
+		} catch (BudgetExceededException e) {
+			return false;
+		}
+	}
+
+	private static void addAll(Set<ClientHandler> accepted, BitSet matches, List<List<ClientHandler>> clientsById) {
+		for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+			accepted.addAll(clientsById.get(id));
+		}
+	}
+
+	/**
+	 * A client's filter: the message is delivered if any of the values matches.
+	 */
+	public static class Filter {
+		public enum Type { KEYWORD, PREFIX, REGEX, USERS }
+
+		private final Type type;
+		private final List<String> values;
+
+		private Filter(Type type, List<String> values) {
+			this.type = type;
+			this.values = values;
+		}
+
+		/**
+		 * Parses a filter from the "filter" command tokens: filter <keyword | prefix | regex | users> <value>...
+		 * Keywords, prefixes and user IDs may be separated by spaces or commas; a regex is the rest of the line.
+		 *
+		 * @param tokens the command tokens
+		 * @return the parsed filter
+		 * @throws IllegalArgumentException if the filter is malformed
+		 */
+		public static Filter parse(String[] tokens) {
+			if (tokens.length < 3) {
+				throw new IllegalArgumentException("Usage: filter <keyword | prefix | regex | users> <value>... | filter off");
+			}
+
+			Type type;
+			try {
+				type = Type.valueOf(tokens[1].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown filter type '" + tokens[1] + "'. Use keyword, prefix, regex or users.");
+			}
+
+			String rest = String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length));
+			List<String> values;
+			if (type == Type.REGEX) {
+				if (rest.length() > MAX_REGEX_LENGTH) {
+					throw new IllegalArgumentException("Regex too long (" + rest.length() + " characters, at most " + MAX_REGEX_LENGTH + ").");
+				}
+				try {
+					Pattern.compile(rest);
+				} catch (PatternSyntaxException e) {
+					throw new IllegalArgumentException("Invalid regex: " + e.getDescription());
+				}
+				checkBacktracking(rest);
+				values = List.of(rest);
+			} else {
+				values = Arrays.stream(rest.split("[\\s,]+")).filter(v -> !v.isEmpty()).distinct().toList();
+				if (values.isEmpty()) {
+					throw new IllegalArgumentException("No filter values given.");
+				}
+				if (type == Type.USERS && !values.stream().allMatch(v -> v.matches("\\d{1,9}"))) {
+					throw new IllegalArgumentException("User IDs must be numbers.");
+				}
+			}
+			return new Filter(type, values);
+		}
+
+		/**
+		 * Rejects the regex constructs that can backtrack exponentially: back-references and a repeated group that itself
+		 * contains a repetition or an alternative, such as (a+)+ or (a|aa)*. The expression is known to compile.
+		 *
+		 * @param regex the regex
+		 * @throws IllegalArgumentException if the regex contains such a construct
+		 */
+		private static void checkBacktracking(String regex) {
+			ArrayList<boolean[]> groups = new ArrayList<>(); // Open groups: { contains a repetition or an alternative }
+			boolean lastRisky = false;                       // Whether the atom before a quantifier contains one
+			boolean inClass = false;
+			for (int i = 0; i < regex.length(); i++) {
+				char c = regex.charAt(i);
+				if (c == '\\') {
+					if (i + 1 < regex.length() && "123456789k".indexOf(regex.charAt(i + 1)) >= 0 && !inClass) {
+						throw new IllegalArgumentException("Back-references are not allowed in regex filters.");
+					}
+					if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') { // Quoted literal up to \E
+						int end = regex.indexOf("\\E", i + 2);
+						i = end < 0 ? regex.length() : end + 1;
+					} else {
+						i++;
+					}
+					lastRisky = false;
+					continue;
+				}
+				if (inClass) {
+					inClass = c != ']';
+					continue;
+				}
+				boolean quantifier = c == '*' || c == '+' || c == '?' || c == '{';
+				if (quantifier) {
+					if (c == '{') {
+						int end = regex.indexOf('}', i);
+						i = end < 0 ? i : end;
+					}
+					if (i + 1 < regex.length() && (regex.charAt(i + 1) == '?' || regex.charAt(i + 1) == '+')) {
+						i++; // Lazy or possessive
+					}
+					if (lastRisky && c != '?') { // An optional group runs at most once
+						throw new IllegalArgumentException("Nested repetitions such as (a+)+ or (a|b)* are not allowed in regex filters.");
+					}
+					if (!groups.isEmpty()) {
+						groups.get(groups.size() - 1)[0] = true;
+					}
+					lastRisky = false;
+					continue;
+				}
+				switch (c) {
+				case '[' -> {
+					inClass = true;
+					if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+						i++;
+					}
+					if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+						i++; // A leading ] is a literal
+					}
+					lastRisky = false;
+				}
+				case '(' -> {
+					groups.add(new boolean[] { false });
+					if (i + 1 < regex.length() && regex.charAt(i + 1) == '?') {
+						i++; // Non-capturing group, lookaround or flags, not a quantifier
+					}
+					lastRisky = false;
+				}
+				case ')' -> {
+					boolean risky = !groups.isEmpty() && groups.remove(groups.size() - 1)[0];
+					if (risky && !groups.isEmpty()) {
+						groups.get(groups.size() - 1)[0] = true;
+					}
+					lastRisky = risky;
+				}
+				case '|' -> {
+					if (!groups.isEmpty()) {
+						groups.get(groups.size() - 1)[0] = true;
+					}
+					lastRisky = false;
+				}
+				default -> lastRisky = false;
+				}
+			}
+		}
+
+		@Override
+		public String toString() { return type.name().toLowerCase() + " " + String.join(type == Type.REGEX ? "" : ", ", values); }
+	}
+
+	/**
+	 * A message body that counts the characters the regex engine reads and stops it once the budget is spent.
+	 */
+	private static class BudgetedChars implements CharSequence {
+		private final String chars;
+		private long budget;
+
+		private BudgetedChars(String chars, long budget) {
+			this.chars = chars;
+			this.budget = budget;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (--budget < 0) {
+				throw new BudgetExceededException();
+			}
+			return chars.charAt(index);
+		}
+
+		@Override
+		public int length() { return chars.length(); }
+
+		@Override
+		public CharSequence subSequence(int start, int end) { return chars.subSequence(start, end); }
+
+		@Override
+		public String toString() { return chars; }
+	}
+
+	/**
+	 * Thrown by BudgetedChars to abandon a match; carries no stack trace since it is expected.
+	 */
+	private static class BudgetExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private BudgetExceededException() { super(null, null, false, false); }
+	}
+}
@@ -0,0 +1,211 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TopicStats class keeps live counters for each topic: registered publishers and subscribers, retained messages
+ * and their size, the last publish time and how long handing a message to all recipients (fan-out) takes.
+ * Counters are updated where things happen (registration, disconnect, publish, delete, clear, expiry) instead of being
+ * recounted, so "show", "users" and "stats" cost O(topics) or O(1) no matter how many clients are connected.
+ *
+ * Publishers and subscribers are counted on the topic they registered on: clients on a partitioned topic are counted
+ * on the topic, clients on a partition on that partition. Messages are counted where they are stored.
+ */
+public class TopicStats {
+	private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>(); // topic : counters
+	private static final LongAdder publishers = new LongAdder();                             // Registered publishers, all topics
+	private static final LongAdder subscribers = new LongAdder();                            // Registered subscribers, all topics
+	private static final Stats NONE = new Stats();
+	private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd/MM/yyyy - HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	private TopicStats() {}
+
+	/**
+	 * Returns the counters of a topic.
+	 *
+	 * @param topic the topic, or a partition
+	 * @return the counters, all zero if nothing happened on the topic yet
+	 */
+	public static Stats of(String topic) {
+		Stats topicStats = topic == null ? null : stats.get(topic);
+		return topicStats == null ? NONE : topicStats;
+	}
+
+	private static Stats forTopic(String topic) { return stats.computeIfAbsent(topic, t -> new Stats()); }
+
+	/**
+	 * Counts a client registering on a topic, or leaving it (on another registration or on disconnect).
+	 *
+	 * @param topic       the topic
+	 * @param asPublisher whether the client is a publisher
+	 * @param delta       1 when registering, -1 when leaving
+	 */
+	public static void registered(String topic, boolean asPublisher, int delta) {
+		Stats topicStats = forTopic(topic);
+		(asPublisher ? topicStats.publishers : topicStats.subscribers).add(delta);
+		(asPublisher ? publishers : subscribers).add(delta);
+		if (!asPublisher) {
+			Federation.interestChanged(topic);
+		}
+	}
+
+	/**
+	 * Counts a message stored on its topic. Called under the topic's lock.
+	 *
+	 * @param message the new message
+	 */
+	public static void stored(Message message) {
+		Stats topicStats = forTopic(message.getTopic());
+		topicStats.messages.incrementAndGet();
+		topicStats.bytes.addAndGet(message.getSize());
+		topicStats.published.increment();
+		topicStats.lastPublish = message.getTimestamp();
+	}
+
+	/**
+	 * Counts messages removed from a topic (deleted, expired, superseded). Called under the topic's lock.
+	 *
+	 * @param topic   the topic
+	 * @param removed the removed messages
+	 */
+	public static void removed(String topic, List<Message> removed) {
+		long bytes = 0;
+		for (Message msg : removed) {
+			bytes += msg.getSize();
+		}
+		Stats topicStats = forTopic(topic);
+		topicStats.messages.addAndGet(-removed.size());
+		topicStats.bytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Records how long it took to hand a message to all of a topic's recipients.
+	 *
+	 * @param topic the topic, or partition, the message was stored under
+	 * @param nanos the fan-out time
+	 */
+	public static void fannedOut(String topic, long nanos) {
+		forTopic(topic).fanOut.record(nanos);
+		Metrics.fanOutLatency.record(nanos);
+	}
+
+	/**
+	 * Resets the retained message counters of a cleared topic. Called under the topic's lock.
+	 *
+	 * @param topic the topic
+	 */
+	public static void cleared(String topic) {
+		Stats topicStats = forTopic(topic);
+		topicStats.messages.set(0);
+		topicStats.bytes.set(0);
+	}
+
+	public static long publishers() { return publishers.sum(); }
+
+	public static long subscribers() { return subscribers.sum(); }
+
+	/**
+	 * Builds a machine-readable dump of every topic's counters: one JSON object per line, for the server's "stats"
+	 * command. The first line holds the server-wide counters.
+	 *
+	 * @return the dump, one line per topic, in topic order
+	 */
+	public static String dump() {
+		StringBuilder dump = new StringBuilder();
+		dump.append("{\"clients\":").append(ClientHandler.clientHandlers.size())
+		    .append(",\"publishers\":").append(publishers())
+		    .append(",\"subscribers\":").append(subscribers())
+		    .append(",\"topics\":").append(ClientHandler.topics.size())
+		    .append(",\"time\":").append(System.currentTimeMillis()).append("}\n");
+
+		Map<String, Stats> sorted = new TreeMap<>();
+		for (String topic : ClientHandler.topics.keySet()) {
+			sorted.put(topic, of(topic));
+		}
+		for (String topic : PartitionedTopics.all().keySet()) {
+			sorted.put(topic, of(topic));
+		}
+		for (var entry : sorted.entrySet()) {
+			String topic = entry.getKey();
+			Stats topicStats = entry.getValue();
+			String partitionOf = PartitionedTopics.baseOf(topic);
+			LongAdder expired = Metrics.expiredMessages.get(topic);
+			dump.append("{\"topic\":").append(quote(topic))
+			    .append(",\"partitionOf\":").append(partitionOf == null ? "null" : quote(partitionOf))
+			    .append(",\"partitions\":").append(PartitionedTopics.isPartitioned(topic) ? PartitionedTopics.count(topic) : 0)
+			    .append(",\"conflated\":").append(ConflatedTopics.isConflated(topic))
+			    .append(",\"publishers\":").append(topicStats.getPublishers())
+			    .append(",\"subscribers\":").append(topicStats.getSubscribers())
+			    .append(",\"messages\":").append(topicStats.getMessages())
+			    .append(",\"bytes\":").append(topicStats.getBytes())
+			    .append(",\"spilledBytes\":").append(SpillStore.spilledBytes(topic))
+			    .append(",\"published\":").append(topicStats.getPublished())
+			    .append(",\"expired\":").append(expired == null ? 0 : expired.sum())
+			    .append(",\"lastPublish\":").append(topicStats.getLastPublish())
+			    .append(",\"fanOutP99Micros\":").append(topicStats.getFanOut().percentile(99) / 1000).append("}\n");
+		}
+		return dump.toString();
+	}
+
+	/**
+	 * Formats a publish time for display.
+	 *
+	 * @param millis the time, 0 for never
+	 * @return the formatted time, or "never"
+	 */
+	public static String formatTime(long millis) { return millis == 0 ? "never" : dateFormat.format(Instant.ofEpochMilli(millis)); }
+
+	/**
+	 * Quotes a string as a JSON string.
+	 *
+	 * @param text the string
+	 * @return the quoted and escaped string
+	 */
+	private static String quote(String text) {
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * The counters of one topic.
+	 */
+	public static class Stats {
+		private final LongAdder publishers = new LongAdder();
+		private final LongAdder subscribers = new LongAdder();
+		private final AtomicLong messages = new AtomicLong();   // Retained messages
+		private final AtomicLong bytes = new AtomicLong();      // Retained messages' content, in UTF-8 bytes
+		private final LongAdder published = new LongAdder();    // Messages ever published
+		private volatile long lastPublish = 0;                  // Time of the last publish, 0 if none
+		private final Metrics.Latency fanOut = new Metrics.Latency(); // Time to hand each message to all recipients
+
+		public long getPublishers() { return publishers.sum(); }
+
+		public long getSubscribers() { return subscribers.sum(); }
+
+		public long getMessages() { return messages.get(); }
+
+		public long getBytes() { return bytes.get(); }
+
+		public long getPublished() { return published.sum(); }
+
+		public long getLastPublish() { return lastPublish; }
+
+		public Metrics.Latency getFanOut() { return fanOut; }
+	}
+}
@@ -0,0 +1,163 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Tracing class holds the server's Java Flight Recorder events, one per stage a message goes through:
+ * a client connecting, a command being handled, a publish (creating, storing and indexing the message, then handing it
+ * to every recipient), each hand-off to a subscriber, each flush of a subscriber's connection, and the operator's or
+ * clients' whole-topic reads (listall, export) and inspect toggles. Nested events (a publish inside its "send" command,
+ * deliveries inside their publish) break a slow publish down by stage in JDK Mission Control.
+ *
+ * Record with e.g. java -XX:StartFlightRecording=filename=pubsub.jfr,settings=profile Server 5000.
+ * When no recording is running, JFR leaves the event classes uninstrumented: begin(), shouldCommit() and commit() are
+ * empty and the events are optimized away, so the hooks cost nothing. Fields are only filled in after shouldCommit().
+ *
+ * Messages may also carry a trace timestamp set by the publishing client ("trace <epochMicros> send ..."), which is
+ * passed on to subscribers so they can measure end-to-end latency.
+ */
+public class Tracing {
+	private Tracing() {}
+
+	@Name("pubsub.Accept")
+	@Label("Client Accepted")
+	@Category("PubSub")
+	@Description("A client connected to the server")
+	@StackTrace(false)
+	public static class Accept extends Event {
+		@Label("Client ID")
+		public int userID;
+
+		@Label("Transport")
+		public String transport;
+	}
+
+	@Name("pubsub.Command")
+	@Label("Command")
+	@Category("PubSub")
+	@Description("A command line from a client, from parsing to its handling being done")
+	@StackTrace(false)
+	public static class Command extends Event {
+		@Label("Client ID")
+		public int userID;
+
+		@Label("Command")
+		public String command;
+
+		@Label("Topic")
+		public String topic;
+	}
+
+	@Name("pubsub.Publish")
+	@Label("Publish")
+	@Category("PubSub")
+	@Description("A message being created, stored, indexed and handed to every recipient")
+	@StackTrace(false)
+	public static class Publish extends Event {
+		@Label("Topic")
+		public String topic;
+
+		@Label("Message ID")
+		public long messageID;
+
+		@Label("Publisher ID")
+		public int userID;
+
+		@Label("Origin Node")
+		public String origin;
+
+		@Label("Size")
+		@DataAmount
+		public int size;
+
+		@Label("Recipients")
+		public int recipients;
+
+		@Label("Fan-Out Nanos")
+		@Timespan
+		public long fanOutNanos;
+	}
+
+	@Name("pubsub.Delivery")
+	@Label("Delivery")
+	@Category("PubSub")
+	@Description("A message handed to one subscriber's outbound queue, which never waits: a full queue holds back the publisher after the fan-out")
+	@StackTrace(false)
+	public static class Delivery extends Event {
+		@Label("Topic")
+		public String topic;
+
+		@Label("Message ID")
+		public long messageID;
+
+		@Label("Subscriber ID")
+		public int subscriberID;
+
+		@Label("Queued Frames")
+		public int queued;
+	}
+
+	@Name("pubsub.Flush")
+	@Label("Connection Flush")
+	@Category("PubSub")
+	@Description("Frames written to a client's connection and flushed; long flushes point at slow clients")
+	@StackTrace(false)
+	public static class Flush extends Event {
+		@Label("Client ID")
+		public int userID;
+
+		@Label("Frames")
+		public int frames;
+	}
+
+	@Name("pubsub.ListAll")
+	@Label("List All")
+	@Category("PubSub")
+	@Description("A whole topic, or a time window of it, listed to a client or the operator")
+	@StackTrace(false)
+	public static class ListAll extends Event {
+		@Label("Requested By")
+		@Description("Client ID, or -1 for the server operator")
+		public int userID;
+
+		@Label("Topic")
+		public String topic;
+
+		@Label("Messages")
+		public int messages;
+	}
+
+	@Name("pubsub.Export")
+	@Label("Export")
+	@Category("PubSub")
+	@Description("Messages of a user or a topic exported to a file")
+	@StackTrace(false)
+	public static class Export extends Event {
+		@Label("Kind")
+		public String kind;
+
+		@Label("Target")
+		public String target;
+
+		@Label("Messages")
+		public int messages;
+	}
+
+	@Name("pubsub.Inspect")
+	@Label("Inspect Toggle")
+	@Category("PubSub")
+	@Description("The operator started or ended inspecting a topic")
+	@StackTrace(false)
+	public static class Inspect extends Event {
+		@Label("Topic")
+		public String topic;
+
+		@Label("Started")
+		public boolean started;
+	}
+}
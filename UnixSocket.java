@@ -0,0 +1,192 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The UnixSocket class is a connection over a Unix domain socket, for clients on the same host as the server.
+ * It skips the TCP/IP stack (no checksums, segmentation, acknowledgements or Nagle delays) and offers the same
+ * streams, read timeout and close as a {@link java.net.Socket}, so the protocol on top is unchanged.
+ *
+ * The channel is non-blocking, with one selector per direction: a thread blocked reading never holds up a thread
+ * writing, which the streams of {@link java.nio.channels.Channels} do not guarantee on all JDKs, and reads can time out.
+ */
+public class UnixSocket implements Closeable {
+	private final SocketChannel channel;
+	private final Selector readSelector;
+	private final Selector writeSelector;
+	private final InputStream in = new In();
+	private final OutputStream out = new Out();
+	private volatile int soTimeout = 0;      // Read timeout in milliseconds, 0 for none
+
+	/**
+	 * Wraps a connected channel.
+	 *
+	 * @param channel the connected channel, e.g. accepted by a listener from {@link #listen(Path)}
+	 * @throws IOException if the channel cannot be made non-blocking or the selectors cannot be opened
+	 */
+	public UnixSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+		this.readSelector = Selector.open();
+		this.writeSelector = Selector.open();
+		channel.register(readSelector, SelectionKey.OP_READ);
+		channel.register(writeSelector, SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Connects to a server listening on a socket file.
+	 *
+	 * @param path the socket file
+	 * @return the connection
+	 * @throws IOException if nothing listens on the file
+	 */
+	public static UnixSocket connect(Path path) throws IOException {
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(path));
+			return new UnixSocket(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a listener on a socket file. A file left behind by a previous run is replaced.
+	 * Accepted channels are blocking; wrap them with {@link #UnixSocket(SocketChannel)}.
+	 *
+	 * @param path the socket file
+	 * @return the listener
+	 * @throws IOException if the file cannot be created
+	 */
+	public static ServerSocketChannel listen(Path path) throws IOException {
+		Files.deleteIfExists(path);
+		ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			listener.bind(UnixDomainSocketAddress.of(path));
+			return listener;
+		} catch (IOException e) {
+			listener.close();
+			throw e;
+		}
+	}
+
+	public InputStream getInputStream() { return in; }
+
+	public OutputStream getOutputStream() { return out; }
+
+	/**
+	 * Sets how long a read waits for data before throwing a {@link SocketTimeoutException}, like Socket.setSoTimeout.
+	 *
+	 * @param millis the timeout, 0 to wait forever
+	 */
+	public void setSoTimeout(int millis) { soTimeout = Math.max(0, millis); }
+
+	public boolean isClosed() { return !channel.isOpen(); }
+
+	/**
+	 * Closes the connection. Threads blocked reading or writing are woken and fail with a ClosedChannelException.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			readSelector.close(); // Also wakes a thread waiting in it, and lets the channel's descriptor be released
+			writeSelector.close();
+		}
+	}
+
+	/**
+	 * Reading side: waits on the read selector whenever no data is available.
+	 */
+	private class In extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			long timeout = soTimeout;
+			long deadline = System.currentTimeMillis() + timeout;
+			try {
+				while (true) {
+					int read = channel.read(buffer);
+					if (read != 0) {
+						return read;
+					}
+					long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+					if (timeout != 0 && wait <= 0) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+					readSelector.select(wait);
+					readSelector.selectedKeys().clear();
+				}
+			} catch (ClosedSelectorException e) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		/**
+		 * Returns 1 if a read would not block (data or end of stream), 0 otherwise.
+		 */
+		@Override
+		public int available() throws IOException {
+			try {
+				int ready = readSelector.selectNow();
+				readSelector.selectedKeys().clear();
+				return ready;
+			} catch (ClosedSelectorException e) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		@Override
+		public void close() throws IOException { UnixSocket.this.close(); }
+	}
+
+	/**
+	 * Writing side: waits on the write selector while the socket buffer is full.
+	 */
+	private class Out extends OutputStream {
+		@Override
+		public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+
+		@Override
+		public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.write(buffer) == 0) {
+						writeSelector.select();
+						writeSelector.selectedKeys().clear();
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		@Override
+		public void close() throws IOException { UnixSocket.this.close(); }
+	}
+}